@@ -17,6 +17,8 @@
 package run
 
 import benchmarks.GuardBenchmark
+import benchmarks.TransformBenchmark
+import benchmarks.ViolationBenchmark
 import ch.raffael.guards.agent.guava.base.Stopwatch
 import org.openjdk.jmh.annotations.Mode
 import org.openjdk.jmh.results.format.ResultFormatType
@@ -55,6 +57,9 @@ class RunGuardBenchmarks {
                 agent('+XnopMode', 'XnopMethod=dedicated_method'),
                 agent('+XnopMode', '+XinstrumentAll', 'XnopMethod=mh_constant'),
                 agent('+XnopMode', '+XinstrumentAll', 'XnopMethod=dedicated_method'),
+                agent('+inlineGuards'),
+                agent('+spinGuardStubs'),
+                agent('-compactCallSites'),
 
                 [['-XinstrumentAll', '+XinstrumentAll'],
                  ['-XmutableCallSites', '+XmutableCallSites'],
@@ -104,10 +109,76 @@ class RunGuardBenchmarks {
             println "Time: $sw"
             count++
         }
+        count = runViolationBenchmarks(count)
+        runTransformBenchmark(count)
         println "Total time: $totalSW"
         countFile.delete()
     }
 
+    private int runViolationBenchmarks(int count) {
+        // eager (before) vs. lazy (after) violations
+        [agent('-lazyViolations'), agent('+lazyViolations')].each { args ->
+            def name = "violations-${args.substring(args.indexOf('=') + 1)}"
+            OptionsBuilder ob = new OptionsBuilder().with {
+                include ViolationBenchmark.class.name
+
+                mode Mode.Throughput
+
+                forks 1
+                measurementIterations 10
+                warmupIterations 10
+                timeUnit TimeUnit.SECONDS
+
+                jvm javaExecutable
+                jvmArgsAppend args
+                shouldFailOnError true
+
+                result String.format("result-%03d--%s.txt", count, name)
+                resultFormat ResultFormatType.TEXT
+                output String.format("log-%03d--%s.txt", count, name)
+
+                return it
+            }
+            println String.format('Running %s #%03d: %s', label, count, name)
+            Stopwatch sw = Stopwatch.createStarted()
+            new Runner(ob.build()).run()
+            sw.stop()
+            println "Time: $sw"
+            count++
+        }
+        return count
+    }
+
+    private void runTransformBenchmark(int count) {
+        // the transformation itself doesn't need the agent, it uses the offline instrumenter
+        def name = 'transform'
+        OptionsBuilder ob = new OptionsBuilder().with {
+            include TransformBenchmark.class.name
+
+            mode Mode.Throughput
+
+            forks 1
+            measurementIterations 10
+            warmupIterations 10
+            timeUnit TimeUnit.MILLISECONDS
+
+            jvm javaExecutable
+            jvmArgsAppend '-DnoAgent=noAgent'
+            shouldFailOnError true
+
+            result String.format("result-%03d--%s.txt", count, name)
+            resultFormat ResultFormatType.TEXT
+            output String.format("log-%03d--%s.txt", count, name)
+
+            return it
+        }
+        println String.format('Running %s #%03d: %s', label, count, name)
+        Stopwatch sw = Stopwatch.createStarted()
+        new Runner(ob.build()).run()
+        sw.stop()
+        println "Time: $sw"
+    }
+
     private String agent(List args) {
         "-javaagent:$agentPath=${args.join(',')}" as String
     }
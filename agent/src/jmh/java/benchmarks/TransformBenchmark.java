@@ -0,0 +1,125 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.agent.OfflineInstrumenter;
+import ch.raffael.guards.agent.asm.ClassWriter;
+import ch.raffael.guards.agent.asm.MethodVisitor;
+import ch.raffael.guards.agent.asm.Opcodes;
+import ch.raffael.guards.agent.asm.Type;
+import ch.raffael.guards.agent.guava.io.ByteStreams;
+
+
+/**
+ * Measures the throughput of the instrumentation itself, i.e. the cost per class load. Runs
+ * without the agent, the classes are instrumented using the {@link OfflineInstrumenter}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+@State(Scope.Benchmark)
+public class TransformBenchmark {
+
+    private static final String LARGE_CLASS_NAME = "benchmarks/GeneratedLarge";
+
+    private final OfflineInstrumenter instrumenter = new OfflineInstrumenter();
+
+    private String guardBenchmarkName;
+    private byte[] guardBenchmarkClass;
+
+    @Setup
+    public void loadClasses() throws IOException {
+        guardBenchmarkName = Type.getInternalName(GuardBenchmark.class);
+        try ( InputStream in = GuardBenchmark.class.getResourceAsStream("GuardBenchmark.class") ) {
+            guardBenchmarkClass = ByteStreams.toByteArray(in);
+        }
+    }
+
+    @Benchmark
+    public byte[] guardBenchmark() {
+        return instrumenter.instrument(guardBenchmarkName, guardBenchmarkClass);
+    }
+
+    @Benchmark
+    public byte[] largeClass(LargeClass largeClass) {
+        return instrumenter.instrument(LARGE_CLASS_NAME, largeClass.bytecode);
+    }
+
+    private static byte[] generateLargeClass(int methodCount) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC, LARGE_CLASS_NAME, null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "guarded", "(Ljava/lang/Object;)I", null, null);
+        mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull.class), true).visitEnd();
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, 0);
+        mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, "java/lang/Object", "hashCode", "()I", false);
+        mv.visitInsn(Opcodes.IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        for( int i = 0; i < methodCount; i++ ) {
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "unguarded" + i, "(II)I", null, null);
+            mv.visitCode();
+            // some arithmetic to give the method a realistic size
+            for( int j = 0; j < 10; j++ ) {
+                mv.visitVarInsn(Opcodes.ILOAD, 0);
+                mv.visitVarInsn(Opcodes.ILOAD, 1);
+                mv.visitInsn(Opcodes.IADD);
+                mv.visitLdcInsn(j + i);
+                mv.visitInsn(Opcodes.IMUL);
+                mv.visitVarInsn(Opcodes.ISTORE, 0);
+            }
+            mv.visitVarInsn(Opcodes.ILOAD, 0);
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * The generated class, kept apart so only {@link #largeClass(LargeClass)} is run for each
+     * method count.
+     */
+    @State(Scope.Benchmark)
+    public static class LargeClass {
+
+        /**
+         * The number of unguarded methods in the generated class, only one method is guarded.
+         */
+        @Param({ "10", "100", "1000" })
+        public int methodCount;
+
+        private byte[] bytecode;
+
+        @Setup
+        public void generate() {
+            bytecode = generateLargeClass(methodCount);
+        }
+
+    }
+
+}
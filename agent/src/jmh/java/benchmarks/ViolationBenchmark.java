@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ch.raffael.guards.ContractViolationError;
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.agent.GuardsAgent;
+
+
+/**
+ * Measures the violations per second, i.e. the cost of guards used for input validation,
+ * where violations are caught and handled. Run with and without `lazyViolations` to compare
+ * building message and stack trace eagerly and lazily.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+@State(Scope.Benchmark)
+public class ViolationBenchmark {
+
+    private Object value = null;
+
+    public static Object validate(@NotNull Object value) {
+        return value;
+    }
+
+    @Setup
+    public void checkAgent() {
+        if ( !GuardsAgent.getInstance().isInstalled() ) {
+            throw new IllegalStateException("The violation benchmark needs the agent");
+        }
+    }
+
+    /**
+     * The violation is caught and ignored.
+     */
+    @Benchmark
+    public Object caught() {
+        try {
+            return validate(value);
+        }
+        catch ( ContractViolationError e ) {
+            return e;
+        }
+    }
+
+    /**
+     * The violation is caught and its message reported, e.g. to the client.
+     */
+    @Benchmark
+    public Object caughtWithMessage() {
+        try {
+            return validate(value);
+        }
+        catch ( ContractViolationError e ) {
+            return e.getMessage();
+        }
+    }
+
+    /**
+     * The violation is caught and logged with its stack trace.
+     */
+    @Benchmark
+    public Object caughtWithStackTrace() {
+        try {
+            return validate(value);
+        }
+        catch ( ContractViolationError e ) {
+            return e.getStackTrace();
+        }
+    }
+
+}
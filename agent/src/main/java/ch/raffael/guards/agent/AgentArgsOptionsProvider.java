@@ -24,6 +24,7 @@ import ch.raffael.guards.agent.guava.base.Function;
 import ch.raffael.guards.agent.guava.base.Splitter;
 import ch.raffael.guards.agent.guava.collect.ImmutableSet;
 import ch.raffael.guards.agent.guava.collect.Iterables;
+import ch.raffael.guards.definition.PerformanceImpact;
 
 import static ch.raffael.guards.agent.guava.base.MoreObjects.toStringHelper;
 
@@ -86,6 +87,113 @@ public class AgentArgsOptionsProvider implements OptionsProvider {
                             }
                     ));
                     break;
+                case "cachePath":
+                    builder.setCachePath(Paths.get(expectValue(name, value)));
+                    break;
+                case "cacheMaxAge":
+                    builder.setCacheMaxAge(Integer.parseInt(expectValue(name, value)));
+                    break;
+                case "retransformBatchSize":
+                    builder.setRetransformBatchSize(Integer.parseInt(expectValue(name, value)));
+                    break;
+                case "includes":
+                    builder.withIncludes(Splitter.on('+').trimResults().omitEmptyStrings().split(expectValue(name, value)));
+                    break;
+                case "excludes":
+                    builder.withExcludes(Splitter.on('+').trimResults().omitEmptyStrings().split(expectValue(name, value)));
+                    break;
+                case "excludeGenerated":
+                    builder.setExcludeGenerated(toBoolean(value));
+                    break;
+                case "prelink":
+                    builder.setPrelink(toBoolean(value));
+                    break;
+                case "backgroundThreads":
+                    builder.setBackgroundThreads(Integer.parseInt(expectValue(name, value)));
+                    break;
+                case "backgroundQueueSize":
+                    builder.setBackgroundQueueSize(Integer.parseInt(expectValue(name, value)));
+                    break;
+                case "guardControl":
+                    builder.setGuardControl(toBoolean(value));
+                    break;
+                case "maxImpact":
+                    builder.setMaxImpact(PerformanceImpact.valueOf(expectValue(name, value).trim().toUpperCase()));
+                    break;
+                case "packageMaxImpacts":
+                    for( String override : Splitter.on('+').trimResults().omitEmptyStrings().split(expectValue(name, value)) ) {
+                        int colon = override.lastIndexOf(':');
+                        if ( colon < 0 ) {
+                            throw new IllegalArgumentException("Invalid package max impact (expected <package>:<impact>): " + override);
+                        }
+                        builder.withPackageMaxImpact(override.substring(0, colon).trim(),
+                                PerformanceImpact.valueOf(override.substring(colon + 1).trim().toUpperCase()));
+                    }
+                    break;
+                case "sampleRates":
+                    for( String sampleRate : Splitter.on('+').trimResults().omitEmptyStrings().split(expectValue(name, value)) ) {
+                        int colon = sampleRate.lastIndexOf(':');
+                        if ( colon < 0 ) {
+                            throw new IllegalArgumentException("Invalid sample rate (expected <guard or impact>:<rate>): " + sampleRate);
+                        }
+                        String guardOrImpact = sampleRate.substring(0, colon).trim();
+                        if ( guardOrImpact.indexOf('.') < 0 ) {
+                            guardOrImpact = PerformanceImpact.valueOf(guardOrImpact.toUpperCase()).name();
+                        }
+                        builder.withSampleRate(guardOrImpact, Integer.parseInt(sampleRate.substring(colon + 1).trim()));
+                    }
+                    break;
+                case "samplingMode":
+                    builder.setSamplingMode(Options.SamplingMode.valueOf(expectValue(name, value).trim().toUpperCase()));
+                    break;
+                case "canaryInvocations":
+                    builder.setCanaryInvocations(Integer.parseInt(expectValue(name, value)));
+                    break;
+                case "cpuBudget":
+                    builder.setCpuBudget(Double.parseDouble(expectValue(name, value)));
+                    break;
+                case "budgetInterval":
+                    builder.setBudgetInterval(Integer.parseInt(expectValue(name, value)));
+                    break;
+                case "budgetSampleRate":
+                    builder.setBudgetSampleRate(Integer.parseInt(expectValue(name, value)));
+                    break;
+                case "eliminateImpliedGuards":
+                    builder.setEliminateImpliedGuards(toBoolean(value));
+                    break;
+                case "inlineGuards":
+                    builder.setInlineGuards(toBoolean(value));
+                    break;
+                case "spinGuardStubs":
+                    builder.setSpinGuardStubs(toBoolean(value));
+                    break;
+                case "compactCallSites":
+                    builder.setCompactCallSites(toBoolean(value));
+                    break;
+                case "uncheckedInternalCalls":
+                    builder.setUncheckedInternalCalls(toBoolean(value));
+                    break;
+                case "dormant":
+                    builder.setDormant(toBoolean(value));
+                    break;
+                case "policyFile":
+                    builder.setPolicyFile(Paths.get(expectValue(name, value)));
+                    break;
+                case "lazyViolations":
+                    builder.setLazyViolations(toBoolean(value));
+                    break;
+                case "reportOnly":
+                    builder.setReportOnly(toBoolean(value));
+                    break;
+                case "reportFile":
+                    builder.setReportFile(Paths.get(expectValue(name, value)));
+                    break;
+                case "reportRate":
+                    builder.setReportRate(Integer.parseInt(expectValue(name, value)));
+                    break;
+                case "reportBufferSize":
+                    builder.setReportBufferSize(Integer.parseInt(expectValue(name, value)));
+                    break;
                 case "Xdevel":
                     builder.setXDevel(toBoolean(value));
                     break;
@@ -118,7 +226,7 @@ public class AgentArgsOptionsProvider implements OptionsProvider {
         return value;
     }
 
-    private static boolean toBoolean(@Nullable String bool) {
+    static boolean toBoolean(@Nullable String bool) {
         if ( bool == null ) {
             return true;
         }
@@ -27,7 +27,6 @@ import java.security.ProtectionDomain;
 import ch.raffael.guards.NotNull;
 import ch.raffael.guards.Nullable;
 import ch.raffael.guards.agent.asm.ClassReader;
-import ch.raffael.guards.agent.asm.ClassWriter;
 import ch.raffael.guards.agent.asm.util.TraceClassVisitor;
 
 
@@ -52,11 +51,10 @@ class AgentTransformer implements ClassFileTransformer {
         }
         try {
             final Options options = GuardsAgent.getInstance().getOptions();
-            ClassReader classReader = new ClassReader(classfileBuffer);
-            ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS);
-            Instrumenter instrumenter = new Instrumenter(options, loader, classWriter);
-            classReader.accept(instrumenter, ClassReader.SKIP_FRAMES);
-            final byte[] instrumentedBytecode = classWriter.toByteArray();
+            final byte[] instrumentedBytecode = Instrumenter.instrument(options, loader, classfileBuffer);
+            if ( instrumentedBytecode == null ) {
+                return null;
+            }
             asmDump(options, className, instrumentedBytecode);
             return instrumentedBytecode;
         }
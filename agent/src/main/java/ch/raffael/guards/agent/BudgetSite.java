@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.raffael.guards.NotNull;
+
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodHandles.guardWithTest;
+import static java.lang.invoke.MethodType.methodType;
+
+
+/**
+ * A guard call site that measures the time spent in its guards and that can be demoted to
+ * sampling or to a nop by the {@link GuardBudget}.
+ *
+ * Every {@value #TIMING_RATE}th invocation is timed, the time spent in the guards is
+ * estimated from these. Sampled call sites use the same timed handle for the invocations they
+ * check, so the estimate always reflects the checks actually done. Invocations that violate a
+ * guard aren't measured.
+ *
+ * All relinking is done by the {@link GuardBudget} while holding its lock, which is
+ * responsible for calling {@link MutableCallSite#syncAll(MutableCallSite[]) syncAll()}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class BudgetSite extends MutableCallSite {
+
+    static final int TIMING_RATE = 64;
+
+    private static final MethodHandle NANO_TIME;
+    private static final MethodHandle RECORD;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            NANO_TIME = lookup.findStatic(System.class, "nanoTime", methodType(long.class));
+            RECORD = lookup.findVirtual(BudgetSite.class, "record", methodType(void.class, long.class));
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e ) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    enum Level {
+        FULL, SAMPLED, NOP
+    }
+
+    private final GuardTarget target;
+    private final MethodHandle full;
+    private final MethodHandle sampled;
+    private final MethodHandle nop;
+    private final int sampleRate;
+    private final AtomicLong timedNanos = new AtomicLong();
+
+    // guarded by GuardBudget's lock
+    private Level level = Level.FULL;
+    private double fullLoad = 0;
+
+    BudgetSite(@NotNull GuardTarget target, @NotNull MethodHandle guards, @NotNull Options options) {
+        super(guards.type());
+        this.target = target;
+        MethodType type = guards.type();
+        // (long start, value...) -> run the guards, then record(start)
+        MethodHandle guardsAndRecord = foldArguments(
+                dropArguments(RECORD.bindTo(this), 1, type.parameterList()),
+                dropArguments(guards, 0, long.class));
+        full = guardWithTest(Sampler.sampleHandle(TIMING_RATE, Options.SamplingMode.COUNTER),
+                foldArguments(guardsAndRecord, NANO_TIME),
+                guards);
+        nop = Indy.nopHandle(target.getValueType());
+        sampleRate = Math.max(1, options.getBudgetSampleRate());
+        sampled = guardWithTest(Sampler.sampleHandle(sampleRate, options.getSamplingMode()), full, nop);
+        setTarget(full);
+    }
+
+    @NotNull
+    GuardTarget getGuardTarget() {
+        return target;
+    }
+
+    @NotNull
+    Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Relink this site to the given level. The caller must call
+     * {@link MutableCallSite#syncAll(MutableCallSite[]) syncAll()}.
+     */
+    void setLevel(@NotNull Level level) {
+        this.level = level;
+        switch ( level ) {
+            case FULL:
+                setTarget(full);
+                break;
+            case SAMPLED:
+                setTarget(sampled);
+                break;
+            case NOP:
+            default:
+                setTarget(nop);
+                break;
+        }
+    }
+
+    /**
+     * Take the estimated time spent in the guards since the last call and update the estimated
+     * load of this site with all guards checked.
+     *
+     * @param elapsedNanos The time elapsed since the last call.
+     *
+     * @return The estimated share of a CPU used by the guards in the elapsed time.
+     */
+    double takeLoad(long elapsedNanos) {
+        double load = (double)timedNanos.getAndSet(0) * TIMING_RATE / Math.max(1, elapsedNanos);
+        if ( level == Level.FULL ) {
+            fullLoad = load;
+        }
+        else if ( level == Level.SAMPLED ) {
+            fullLoad = load * sampleRate;
+        }
+        return load;
+    }
+
+    /**
+     * The estimated load of this site at the given level, based on the last measured load.
+     */
+    double projectedLoad(@NotNull Level level) {
+        switch ( level ) {
+            case FULL:
+                return fullLoad;
+            case SAMPLED:
+                return fullLoad / sampleRate;
+            case NOP:
+            default:
+                return 0;
+        }
+    }
+
+    private void record(long start) {
+        timedNanos.addAndGet(System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.guards.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MutableCallSite;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.raffael.guards.NotNull;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+import static java.lang.invoke.MethodHandles.dropArguments;
+import static java.lang.invoke.MethodHandles.foldArguments;
+import static java.lang.invoke.MethodType.methodType;
+
+
+/**
+ * A call site that checks its guards until they passed a given number of times and then
+ * relinks itself to a nop (see {@link Options#getCanaryInvocations()}).
+ *
+ * The passes are counted after the guards, so a violation doesn't count. In report-only
+ * mode, the guards return normally on violations; an invocation only counts as a pass if the
+ * target's violation count didn't change.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class CanarySite extends MutableCallSite {
+
+    private static final MethodHandle PASSED;
+    static {
+        try {
+            PASSED = MethodHandles.lookup().findVirtual(CanarySite.class, "passed", methodType(void.class));
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e ) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final GuardTarget target;
+    private final int invocations;
+    private final AtomicInteger passes = new AtomicInteger();
+    private volatile long violations = 0;
+
+    CanarySite(@NotNull GuardTarget target, @NotNull MethodHandle guards, int invocations) {
+        super(guards.type());
+        this.target = target;
+        this.invocations = invocations;
+        // run the guards, then count the pass
+        setTarget(foldArguments(dropArguments(PASSED.bindTo(this), 0, guards.type().parameterList()), guards));
+    }
+
+    private void passed() {
+        long currentViolations = target.getViolationCount();
+        if ( currentViolations != violations ) {
+            // a violation has been reported instead of thrown
+            violations = currentViolations;
+            return;
+        }
+        if ( passes.incrementAndGet() == invocations ) {
+            LOG.fine("Retiring guards of " + target + " after " + invocations + " passes");
+            setTarget(Indy.nopHandle(target.getValueType()));
+            syncAll(new MutableCallSite[] { this });
+        }
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.util.logging.Level;
+
+import ch.raffael.guards.NotNull;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Decides which classes will be instrumented by their names.
+ *
+ *  *  Classes from the JDK and the agent itself are never instrumented.
+ *
+ *  *  The include and exclude patterns are matched against the class name, the longest
+ *     matching pattern wins (see {@link PackageTrie#packagePrefix(String)} for the syntax). If
+ *     there are any includes, only included classes will be instrumented.
+ *
+ *  *  Optionally, generated classes (proxies, CGLIB etc.) are excluded.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class ClassFilter {
+
+    private static final PackageTrie<Boolean> BUILTIN_EXCLUDES = new PackageTrie<>();
+    static {
+        for( String exclude : new String[] {
+                "java/", "sun/", "jdk/",
+                "ch/raffael/guards/agent/"
+                //, "ch/raffael/guards/definition/"
+        } ) {
+            BUILTIN_EXCLUDES.put(exclude, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Markers contained in the names of generated classes: CGLIB (`$$EnhancerByCGLIB$$`), lambdas
+     * (`$$Lambda$`), Javassist (`_$$_jvst`), Byte Buddy (`$ByteBuddy$`), Hibernate
+     * (`$HibernateProxy$`). A plain `$$` isn't enough, it's also used by code generators for
+     * classes that may well be guarded, e.g. AutoValue (`$$AutoValue_Foo`), Scala
+     * (`$$anonfun`) or Kotlin (`$$inlined`).
+     */
+    private static final String[] GENERATED_MARKERS = {
+            "$$EnhancerByCGLIB$$", "$$Lambda$", "_$$_jvst", "$ByteBuddy$", "$HibernateProxy$" };
+    private static final String JDK_PROXY_PREFIX = "$Proxy";
+
+    private final PackageTrie<Boolean> patterns = new PackageTrie<>();
+    private final boolean includeByDefault;
+    private final boolean excludeGenerated;
+
+    ClassFilter(@NotNull Iterable<String> includes, @NotNull Iterable<String> excludes, boolean excludeGenerated) {
+        boolean hasIncludes = false;
+        for( String include : includes ) {
+            patterns.put(PackageTrie.packagePrefix(include), Boolean.TRUE);
+            hasIncludes = true;
+        }
+        for( String exclude : excludes ) {
+            patterns.put(PackageTrie.packagePrefix(exclude), Boolean.FALSE);
+        }
+        this.includeByDefault = !hasIncludes;
+        this.excludeGenerated = excludeGenerated;
+    }
+
+    /**
+     * @param internalName The internal name of the class, e.g. `com/example/Foo`.
+     */
+    boolean isTransformable(@NotNull String internalName) {
+        if ( isBuiltinExclude(internalName) ) {
+            return false;
+        }
+        if ( excludeGenerated && isGenerated(internalName) ) {
+            if ( LOG.isLoggable(Level.FINE) ) {
+                LOG.fine("Not instrumenting generated class " + internalName);
+            }
+            return false;
+        }
+        Boolean include = patterns.find(internalName);
+        return include == null ? includeByDefault : include;
+    }
+
+    /**
+     * Check whether the given class is categorically excluded from instrumentation (JDK classes,
+     * the agent itself).
+     */
+    static boolean isBuiltinExclude(@NotNull String internalName) {
+        return BUILTIN_EXCLUDES.find(internalName) != null;
+    }
+
+    static boolean isGenerated(@NotNull String internalName) {
+        if ( internalName.startsWith(JDK_PROXY_PREFIX, internalName.lastIndexOf('/') + 1) ) {
+            return true;
+        }
+        for( String marker : GENERATED_MARKERS ) {
+            if ( internalName.contains(marker) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.nio.charset.StandardCharsets;
+
+import ch.raffael.guards.NotNull;
+
+import static ch.raffael.guards.agent.asm.Opcodes.V1_7;
+
+
+/**
+ * A cheap pre-pass over the constant pool of a class file that tells whether the class *may*
+ * contain guards at all. This allows the transformer to skip the vast majority of classes
+ * (libraries etc.) without paying for a full ASM parse.
+ *
+ * The scan is conservative: if it returns `true`, the class may or may not contain guards, the
+ * instrumenter will find out. If it returns `false`, the class definitely contains no guards
+ * the linker would ever pick up:
+ *
+ *  *  Guards must be runtime visible, so the constant pool must contain the attribute name
+ *     `RuntimeVisibleAnnotations` or `RuntimeVisibleParameterAnnotations`.
+ *
+ *  *  There must be at least one UTF8 entry that looks like a field descriptor of a class type
+ *     outside of the JDK (annotation types are referenced by their descriptor). Annotations from
+ *     `java.*` etc. can never be guards.
+ *
+ *  *  The class must not reference {@link Indy}, i.e. it hasn't been instrumented already (e.g.
+ *     by the {@link OfflineInstrumenter}).
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class ConstantPoolScanner {
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = bytes("RuntimeVisibleAnnotations");
+    private static final byte[] RUNTIME_VISIBLE_PARAMETER_ANNOTATIONS = bytes("RuntimeVisibleParameterAnnotations");
+
+    private static final byte[] INDY_CLASS = bytes(Indy.class.getName().replace('.', '/'));
+
+    private static final byte[][] NON_GUARD_DESCRIPTOR_PREFIXES = {
+            bytes("Ljava/"), bytes("Ljavax/annotation/"), bytes("Ljdk/"), bytes("Lsun/")
+    };
+
+    private ConstantPoolScanner() {
+    }
+
+    /**
+     * Check whether the given class file may contain guard annotations.
+     *
+     * @return `false`, if the class definitely doesn't contain any guards, `true` otherwise.
+     */
+    static boolean mayContainGuards(@NotNull byte[] classFile) {
+        try {
+            return scan(classFile);
+        }
+        catch ( ArrayIndexOutOfBoundsException e ) {
+            // malformed class file -- let ASM deal with it and report the error
+            return true;
+        }
+    }
+
+    private static boolean scan(byte[] b) {
+        if ( b.length < 10 || readInt(b, 0) != 0xCAFEBABE ) {
+            return true;
+        }
+        if ( readUnsignedShort(b, 6) < V1_7 ) {
+            // the instrumenter won't touch this anyway
+            return false;
+        }
+        int count = readUnsignedShort(b, 8);
+        int pos = 10;
+        boolean runtimeAnnotations = false;
+        boolean candidateDescriptor = false;
+        boolean candidate = false;
+        for( int i = 1; i < count; i++ ) {
+            int tag = b[pos] & 0xff;
+            switch ( tag ) {
+                case CONSTANT_UTF8:
+                    int length = readUnsignedShort(b, pos + 1);
+                    int start = pos + 3;
+                    if ( equal(b, start, length, INDY_CLASS) ) {
+                        // already instrumented
+                        return false;
+                    }
+                    if ( !runtimeAnnotations ) {
+                        runtimeAnnotations = equal(b, start, length, RUNTIME_VISIBLE_ANNOTATIONS)
+                                || equal(b, start, length, RUNTIME_VISIBLE_PARAMETER_ANNOTATIONS);
+                    }
+                    if ( !candidateDescriptor ) {
+                        candidateDescriptor = isCandidateDescriptor(b, start, length);
+                    }
+                    candidate = runtimeAnnotations && candidateDescriptor;
+                    pos = start + length;
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    pos += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    pos += 4;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    pos += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    pos += 9;
+                    // 8-byte constants take two entries
+                    i++;
+                    break;
+                default:
+                    // unknown constant type, we can't continue, so let ASM decide
+                    return true;
+            }
+        }
+        return candidate;
+    }
+
+    private static boolean isCandidateDescriptor(byte[] b, int start, int length) {
+        if ( length < 3 || b[start] != 'L' || b[start + length - 1] != ';' ) {
+            return false;
+        }
+        for( int i = start + 1; i < start + length - 1; i++ ) {
+            if ( b[i] == ';' || b[i] == '(' || b[i] == '<' ) {
+                // method descriptor or generic signature
+                return false;
+            }
+        }
+        for( byte[] prefix : NON_GUARD_DESCRIPTOR_PREFIXES ) {
+            if ( startsWith(b, start, length, prefix) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equal(byte[] b, int start, int length, byte[] expected) {
+        return length == expected.length && startsWith(b, start, length, expected);
+    }
+
+    private static boolean startsWith(byte[] b, int start, int length, byte[] prefix) {
+        if ( length < prefix.length ) {
+            return false;
+        }
+        for( int i = 0; i < prefix.length; i++ ) {
+            if ( b[start + i] != prefix[i] ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 8) | (b[pos + 1] & 0xff);
+    }
+
+    private static int readInt(byte[] b, int pos) {
+        return ((b[pos] & 0xff) << 24) | ((b[pos + 1] & 0xff) << 16) | ((b[pos + 2] & 0xff) << 8) | (b[pos + 3] & 0xff);
+    }
+
+    private static byte[] bytes(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.agent.guava.collect.ImmutableMap;
+import ch.raffael.guards.agent.guava.collect.Maps;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Activates guards at runtime, if the agent has been installed in
+ * {@link Options#isDormant() dormant} mode.
+ *
+ * A dormant agent doesn't change any class unless its package has been activated, it only
+ * records the classes that may contain guards. Activating a package retransforms just the
+ * recorded classes of that package in batches (see {@link Retransformer}), without inspecting
+ * the classes using reflection, which might load further classes. Classes loaded later are
+ * instrumented right away. Deactivating a package retransforms its
+ * classes back to their original bytecode.
+ *
+ * The longest matching pattern wins (see {@link PackageTrie#packagePrefix(String)} for the
+ * syntax), so it's possible to deactivate a sub-package of an active package.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class GuardActivation implements GuardActivationMXBean {
+
+    static final String OBJECT_NAME = "ch.raffael.guards:type=GuardActivation";
+
+    private static final GuardActivation INSTANCE = new GuardActivation();
+
+    private final Object lock = new Object();
+    private volatile Rules rules = Rules.NONE;
+    private final Set<String> candidateClasses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private GuardActivation() {
+    }
+
+    @NotNull
+    public static GuardActivation getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public Map<String, Boolean> getPackageRules() {
+        return rules.packageRules;
+    }
+
+    /**
+     * Activate or deactivate the guards in the given package and retransform the loaded classes
+     * affected by the change. This method returns when the retransformation is done.
+     */
+    public void setPackageActive(@NotNull String pattern, boolean active) {
+        synchronized ( lock ) {
+            update(rules.withPackage(pattern, active));
+        }
+    }
+
+    @Override
+    public void activatePackage(String pattern) {
+        setPackageActive(pattern, true);
+    }
+
+    @Override
+    public void deactivatePackage(String pattern) {
+        setPackageActive(pattern, false);
+    }
+
+    @Override
+    public void removePackageRule(String pattern) {
+        synchronized ( lock ) {
+            update(rules.withoutPackage(pattern));
+        }
+    }
+
+    @Override
+    public int getCandidateClassCount() {
+        return candidateClasses.size();
+    }
+
+    @Override
+    public int getActiveClassCount() {
+        Rules rules = this.rules;
+        int count = 0;
+        for( String candidate : candidateClasses ) {
+            if ( rules.isActive(candidate) ) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @param internalClassName The internal name of the class.
+     */
+    boolean isActive(@NotNull String internalClassName) {
+        return rules.isActive(internalClassName);
+    }
+
+    /**
+     * Called by the transformer for each class that may contain guards.
+     *
+     * @return `true`, if the class should be instrumented.
+     */
+    boolean recordCandidate(@NotNull String internalClassName) {
+        candidateClasses.add(internalClassName);
+        return rules.isActive(internalClassName);
+    }
+
+    private void update(@NotNull Rules newRules) {
+        assert Thread.holdsLock(lock);
+        Rules previous = rules;
+        rules = newRules;
+        GuardsAgent agent = GuardsAgent.getInstance();
+        Instrumentation instrumentation = agent.getInstrumentation();
+        if ( instrumentation == null || !agent.getOptions().isDormant() ) {
+            // the agent instruments classes as they're loaded anyway
+            return;
+        }
+        List<Class<?>> changed = changedClasses(instrumentation.getAllLoadedClasses(), candidateClasses, previous, newRules);
+        LOG.info("Guard activation changed, retransforming " + changed.size() + " candidate classes");
+        Retransformer retransformer = new Retransformer(instrumentation, agent.getTransformer(), agent.getOptions());
+        retransformer.retransform(changed);
+        LOG.info("Guard activation done: " + retransformer.getRetransformedCount() + " classes retransformed, "
+                + retransformer.getFailedCount() + " failed");
+    }
+
+    /**
+     * Select the candidate classes that change from active to dormant or vice versa.
+     */
+    @NotNull
+    static List<Class<?>> changedClasses(@NotNull Class<?>[] classes, @NotNull Set<String> candidates, @NotNull Rules previous, @NotNull Rules current) {
+        List<Class<?>> changed = new ArrayList<>();
+        for( Class<?> c : classes ) {
+            if ( c.isPrimitive() || c.isArray() ) {
+                continue;
+            }
+            String internalName = c.getName().replace('.', '/');
+            if ( candidates.contains(internalName) && previous.isActive(internalName) != current.isActive(internalName) ) {
+                changed.add(c);
+            }
+        }
+        return changed;
+    }
+
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch ( JMException e ) {
+            LOG.log(Level.WARNING, "Cannot register MBean " + OBJECT_NAME, e);
+        }
+    }
+
+    /**
+     * An immutable set of package rules.
+     */
+    static final class Rules {
+
+        static final Rules NONE = new Rules(ImmutableMap.<String, Boolean>of());
+
+        private final Map<String, Boolean> packageRules;
+        private final PackageTrie<Boolean> packages = new PackageTrie<>();
+
+        private Rules(@NotNull Map<String, Boolean> packageRules) {
+            this.packageRules = ImmutableMap.copyOf(packageRules);
+            for( Map.Entry<String, Boolean> rule : this.packageRules.entrySet() ) {
+                packages.put(PackageTrie.packagePrefix(rule.getKey()), rule.getValue());
+            }
+        }
+
+        boolean isActive(@NotNull String internalClassName) {
+            if ( packages.isEmpty() ) {
+                return false;
+            }
+            Boolean active = packages.find(internalClassName);
+            return active != null && active;
+        }
+
+        @NotNull
+        Rules withPackage(@NotNull String pattern, boolean active) {
+            Map<String, Boolean> rules = Maps.newLinkedHashMap(packageRules);
+            rules.put(pattern.trim(), active);
+            return new Rules(rules);
+        }
+
+        @NotNull
+        Rules withoutPackage(@NotNull String pattern) {
+            Map<String, Boolean> rules = Maps.newLinkedHashMap(packageRules);
+            rules.remove(pattern.trim());
+            return new Rules(rules);
+        }
+
+    }
+
+}
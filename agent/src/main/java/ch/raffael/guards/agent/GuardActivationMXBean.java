@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.util.Map;
+
+
+/**
+ * JMX interface of the {@link GuardActivation}, registered as
+ * `ch.raffael.guards:type=GuardActivation` if the option `dormant` is set.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public interface GuardActivationMXBean {
+
+    /**
+     * The package rules, patterns mapped to whether they activate or deactivate the guards.
+     */
+    Map<String, Boolean> getPackageRules();
+
+    void activatePackage(String pattern);
+
+    void deactivatePackage(String pattern);
+
+    /**
+     * Remove the rule for exactly the given pattern.
+     */
+    void removePackageRule(String pattern);
+
+    /**
+     * The number of classes seen by the transformer that may contain guards.
+     */
+    int getCandidateClassCount();
+
+    /**
+     * The number of those classes that are currently active.
+     */
+    int getActiveClassCount();
+
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+import ch.raffael.guards.agent.asm.AnnotationVisitor;
+import ch.raffael.guards.agent.asm.ClassReader;
+import ch.raffael.guards.agent.asm.ClassVisitor;
+import ch.raffael.guards.agent.guava.cache.CacheBuilder;
+import ch.raffael.guards.agent.guava.cache.CacheLoader;
+import ch.raffael.guards.agent.guava.cache.LoadingCache;
+
+import static ch.raffael.guards.agent.IntFlags.containsFlag;
+import static ch.raffael.guards.agent.Logging.LOG;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_ANNOTATION;
+import static ch.raffael.guards.agent.asm.Opcodes.ASM5;
+
+
+/**
+ * Tells at transformation time whether an annotation descriptor denotes a guard, so the
+ * instrumenter only emits call sites for actual guards.
+ *
+ * This is the bytecode equivalent of the {@link GuardAnnotationInspector}: An annotation is a
+ * guard if it's annotated with {@link ch.raffael.guards.definition.Guard @Guard} or with another guard. The annotation types
+ * are *not* loaded, their class files are read as resources from the class loader of the class
+ * being instrumented. The results are cached per class loader, the class loaders are weakly
+ * referenced, also by their resolvers, so they can still be garbage collected.
+ *
+ * The resolver is conservative: If the class file of an annotation type can't be found or read,
+ * the annotation is considered a guard and the linker will sort it out at runtime.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class GuardAnnotationResolver {
+
+    // not using Guard.class here, as this would load Guard while transforming a class
+    private static final String GUARD_DESCRIPTOR = "Lch/raffael/guards/definition/Guard;";
+    private static final String[] NON_GUARD_PREFIXES = { "Ljava/", "Ljavax/annotation/", "Ljdk/", "Lsun/" };
+
+    private static final LoadingCache<ClassLoader, GuardAnnotationResolver> RESOLVERS = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build(new CacheLoader<ClassLoader, GuardAnnotationResolver>() {
+                @Override
+                public GuardAnnotationResolver load(@NotNull ClassLoader loader) throws Exception {
+                    return new GuardAnnotationResolver(loader);
+                }
+            });
+
+    // the cached resolver must not reach its weak key
+    private final WeakReference<ClassLoader> loader;
+    private final ConcurrentMap<String, Boolean> guards = new ConcurrentHashMap<>();
+
+    private GuardAnnotationResolver(@NotNull ClassLoader loader) {
+        this.loader = new WeakReference<>(loader);
+    }
+
+    /**
+     * Get the resolver for the given class loader. The bootstrap class loader (`null`) is mapped
+     * to the system class loader.
+     */
+    @NotNull
+    static GuardAnnotationResolver forLoader(@Nullable ClassLoader loader) {
+        if ( loader == null ) {
+            loader = ClassLoader.getSystemClassLoader();
+        }
+        return RESOLVERS.getUnchecked(loader);
+    }
+
+    /**
+     * Check whether the given annotation descriptor denotes a guard.
+     */
+    boolean isGuard(@NotNull String descriptor) {
+        Boolean guard = guards.get(descriptor);
+        if ( guard == null ) {
+            Resolution resolution = new Resolution();
+            guard = resolution.resolve(descriptor);
+            if ( !resolution.cycle ) {
+                guards.putAll(resolution.resolved);
+            }
+            guards.put(descriptor, guard);
+        }
+        return guard;
+    }
+
+    private final class Resolution {
+
+        private final Set<String> visiting = new HashSet<>();
+        private final Map<String, Boolean> resolved = new HashMap<>();
+        private boolean cycle = false;
+
+        private boolean resolve(@NotNull String descriptor) {
+            Boolean guard = guards.get(descriptor);
+            if ( guard == null ) {
+                guard = resolved.get(descriptor);
+            }
+            if ( guard != null ) {
+                return guard;
+            }
+            for( String prefix : NON_GUARD_PREFIXES ) {
+                if ( descriptor.startsWith(prefix) ) {
+                    return false;
+                }
+            }
+            if ( !visiting.add(descriptor) ) {
+                // circular meta-annotations; if they involve guards, the linker will report
+                // them, otherwise, the result of the other path is what counts
+                cycle = true;
+                return false;
+            }
+            try {
+                List<String> annotations = readAnnotations(descriptor);
+                if ( annotations == null ) {
+                    guard = true;
+                }
+                else {
+                    guard = false;
+                    for( String annotation : annotations ) {
+                        if ( annotation.equals(GUARD_DESCRIPTOR) || resolve(annotation) ) {
+                            guard = true;
+                            break;
+                        }
+                    }
+                }
+            }
+            finally {
+                visiting.remove(descriptor);
+            }
+            resolved.put(descriptor, guard);
+            return guard;
+        }
+
+    }
+
+    /**
+     * Read the runtime visible annotations of the given annotation type.
+     *
+     * @return The descriptors of the annotations, an empty list if the type is not an
+     *         annotation, `null` if the class file cannot be read.
+     */
+    @Nullable
+    private List<String> readAnnotations(@NotNull String descriptor) {
+        if ( !descriptor.startsWith("L") || !descriptor.endsWith(";") ) {
+            return new ArrayList<>();
+        }
+        ClassLoader loader = this.loader.get();
+        if ( loader == null ) {
+            return null;
+        }
+        String resource = descriptor.substring(1, descriptor.length() - 1) + ".class";
+        try ( InputStream input = loader.getResourceAsStream(resource) ) {
+            if ( input == null ) {
+                LOG.fine("Cannot find class file for annotation " + descriptor + " in " + loader);
+                return null;
+            }
+            final List<String> annotations = new ArrayList<>();
+            new ClassReader(input).accept(new ClassVisitor(ASM5) {
+                private boolean annotation = false;
+                @Override
+                public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+                    annotation = containsFlag(access, ACC_ANNOTATION);
+                }
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    if ( annotation && visible ) {
+                        annotations.add(desc);
+                    }
+                    return null;
+                }
+            }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            return annotations;
+        }
+        catch ( IOException | RuntimeException e ) {
+            LOG.log(Level.FINE, "Cannot read class file for annotation " + descriptor + " from " + loader, e);
+            return null;
+        }
+    }
+
+}
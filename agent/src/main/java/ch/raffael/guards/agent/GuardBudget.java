@@ -0,0 +1,301 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.lang.invoke.MutableCallSite;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import ch.raffael.guards.NotNull;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Keeps the CPU time used by the guards within a budget (see {@link Options#getCpuBudget()}).
+ *
+ * This only affects call sites that have been linked with the option `cpuBudget` set. Every
+ * interval, the load of all call sites is estimated from their timed invocations (see
+ * {@link BudgetSite}):
+ *
+ *  *  If the total load exceeds the budget, the most expensive call sites are demoted one level
+ *     (full checks, sampling, nop) until the projected load is within the budget.
+ *
+ *  *  If the total load is below half of the budget, demoted call sites are promoted one level,
+ *     the cheapest first, as long as the projected load stays below half of the budget. The
+ *     gap between the two thresholds prevents call sites from flapping.
+ *
+ * Only the call sites affected by a decision are relinked, with a single call to
+ * {@link MutableCallSite#syncAll(MutableCallSite[]) syncAll()}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class GuardBudget implements GuardBudgetMXBean {
+
+    static final String OBJECT_NAME = "ch.raffael.guards:type=GuardBudget";
+
+    private static final GuardBudget INSTANCE = new GuardBudget();
+
+    private final Object lock = new Object();
+    private final int processors = Runtime.getRuntime().availableProcessors();
+    private volatile double cpuBudget = 0;
+    // guarded by lock; the sites are referenced by the classes they're linked into
+    private final Set<BudgetSite> sites = Collections.newSetFromMap(new WeakHashMap<BudgetSite, Boolean>());
+    private ScheduledThreadPoolExecutor scheduler = null;
+    private long lastAdjust;
+    private volatile double guardCpuUsage = 0;
+    private volatile long demotionCount = 0;
+    private volatile long promotionCount = 0;
+
+    GuardBudget() {
+    }
+
+    @NotNull
+    public static GuardBudget getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public double getCpuBudget() {
+        return cpuBudget;
+    }
+
+    /**
+     * Set the budget, 0 to disable it. The new budget applies from the next adjustment.
+     */
+    @Override
+    public void setCpuBudget(double cpuBudget) {
+        this.cpuBudget = cpuBudget;
+    }
+
+    @Override
+    public double getGuardCpuUsage() {
+        return guardCpuUsage;
+    }
+
+    @Override
+    public int getCallSiteCount() {
+        synchronized ( lock ) {
+            return sites.size();
+        }
+    }
+
+    @Override
+    public int getSampledCallSiteCount() {
+        return countSites(BudgetSite.Level.SAMPLED);
+    }
+
+    @Override
+    public int getNopCallSiteCount() {
+        return countSites(BudgetSite.Level.NOP);
+    }
+
+    private int countSites(@NotNull BudgetSite.Level level) {
+        synchronized ( lock ) {
+            int count = 0;
+            for( BudgetSite site : sites ) {
+                if ( site.getLevel() == level ) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    @Override
+    public long getDemotionCount() {
+        return demotionCount;
+    }
+
+    @Override
+    public long getPromotionCount() {
+        return promotionCount;
+    }
+
+    @Override
+    public Map<String, String> getDemotedCallSites() {
+        synchronized ( lock ) {
+            Map<String, String> demoted = new LinkedHashMap<>();
+            for( BudgetSite site : sites ) {
+                if ( site.getLevel() != BudgetSite.Level.FULL ) {
+                    demoted.put(site.getGuardTarget().appendFullString(new StringBuilder()).toString(), site.getLevel().name());
+                }
+            }
+            return demoted;
+        }
+    }
+
+    /**
+     * Register a newly linked call site.
+     */
+    @NotNull
+    BudgetSite register(@NotNull BudgetSite site) {
+        synchronized ( lock ) {
+            sites.add(site);
+        }
+        return site;
+    }
+
+    /**
+     * Start checking the budget periodically in a daemon thread and register the MBean.
+     */
+    void start(@NotNull final Options options) {
+        synchronized ( lock ) {
+            if ( scheduler != null ) {
+                return;
+            }
+            cpuBudget = options.getCpuBudget();
+            lastAdjust = System.nanoTime();
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, GuardBudget.class.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            long interval = Math.max(1, options.getBudgetInterval());
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long now = System.nanoTime();
+                        adjust(now - lastAdjust);
+                        lastAdjust = now;
+                    }
+                    catch ( Throwable e ) {
+                        // don't let the scheduler cancel the task
+                        LOG.log(Level.SEVERE, "Error adjusting guard CPU budget", e);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+        registerMBean();
+        LOG.info("Guard CPU budget: " + cpuBudget + "% checked every " + options.getBudgetInterval() + "ms");
+    }
+
+    /**
+     * Measure the load of all call sites and demote or promote them as needed.
+     *
+     * @param elapsedNanos The time elapsed since the last adjustment.
+     */
+    void adjust(long elapsedNanos) {
+        synchronized ( lock ) {
+            final Map<BudgetSite, Double> loads = new HashMap<>();
+            double total = 0;
+            for( BudgetSite site : sites ) {
+                double load = site.takeLoad(elapsedNanos);
+                loads.put(site, load);
+                total += load;
+            }
+            guardCpuUsage = total * 100 / processors;
+            double budget = cpuBudget * processors / 100;
+            List<BudgetSite> changed = new ArrayList<>();
+            if ( budget <= 0 ) {
+                // budget disabled
+                for( BudgetSite site : sites ) {
+                    if ( site.getLevel() != BudgetSite.Level.FULL ) {
+                        site.setLevel(BudgetSite.Level.FULL);
+                        changed.add(site);
+                        promotionCount++;
+                    }
+                }
+            }
+            else if ( total > budget ) {
+                List<BudgetSite> candidates = new ArrayList<>(loads.size());
+                for( BudgetSite site : loads.keySet() ) {
+                    if ( site.getLevel() != BudgetSite.Level.NOP && loads.get(site) > 0 ) {
+                        candidates.add(site);
+                    }
+                }
+                Collections.sort(candidates, new Comparator<BudgetSite>() {
+                    @Override
+                    public int compare(BudgetSite left, BudgetSite right) {
+                        return Double.compare(loads.get(right), loads.get(left));
+                    }
+                });
+                for( BudgetSite site : candidates ) {
+                    if ( total <= budget ) {
+                        break;
+                    }
+                    BudgetSite.Level level = BudgetSite.Level.values()[site.getLevel().ordinal() + 1];
+                    total += site.projectedLoad(level) - loads.get(site);
+                    site.setLevel(level);
+                    changed.add(site);
+                    demotionCount++;
+                    LOG.fine("Demoted guards of " + site.getGuardTarget() + " to " + level);
+                }
+            }
+            else if ( total < budget / 2 ) {
+                List<BudgetSite> candidates = new ArrayList<>();
+                for( BudgetSite site : loads.keySet() ) {
+                    if ( site.getLevel() != BudgetSite.Level.FULL ) {
+                        candidates.add(site);
+                    }
+                }
+                Collections.sort(candidates, new Comparator<BudgetSite>() {
+                    @Override
+                    public int compare(BudgetSite left, BudgetSite right) {
+                        return Double.compare(left.projectedLoad(BudgetSite.Level.FULL), right.projectedLoad(BudgetSite.Level.FULL));
+                    }
+                });
+                for( BudgetSite site : candidates ) {
+                    BudgetSite.Level level = BudgetSite.Level.values()[site.getLevel().ordinal() - 1];
+                    double projected = total + site.projectedLoad(level) - site.projectedLoad(site.getLevel());
+                    if ( projected >= budget / 2 ) {
+                        break;
+                    }
+                    total = projected;
+                    site.setLevel(level);
+                    changed.add(site);
+                    promotionCount++;
+                    LOG.fine("Promoted guards of " + site.getGuardTarget() + " to " + level);
+                }
+            }
+            if ( !changed.isEmpty() ) {
+                MutableCallSite.syncAll(changed.toArray(new MutableCallSite[changed.size()]));
+                LOG.info(String.format("Guards used %.3f%% CPU (budget: %.3f%%), relinked %d of %d call sites",
+                        guardCpuUsage, cpuBudget, changed.size(), sites.size()));
+            }
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch ( JMException e ) {
+            LOG.log(Level.WARNING, "Cannot register MBean " + OBJECT_NAME, e);
+        }
+    }
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.util.Map;
+
+
+/**
+ * JMX interface of the {@link GuardBudget}, registered as `ch.raffael.guards:type=GuardBudget`
+ * if the option `cpuBudget` is set.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public interface GuardBudgetMXBean {
+
+    /**
+     * The share of the CPU time the guards may use in percent of all available processors.
+     */
+    double getCpuBudget();
+
+    void setCpuBudget(double cpuBudget);
+
+    /**
+     * The estimated share of the CPU time used by the guards in the last interval, in percent
+     * of all available processors.
+     */
+    double getGuardCpuUsage();
+
+    /**
+     * The number of call sites currently controlled.
+     */
+    int getCallSiteCount();
+
+    int getSampledCallSiteCount();
+
+    int getNopCallSiteCount();
+
+    /**
+     * The total number of demotions so far.
+     */
+    long getDemotionCount();
+
+    /**
+     * The total number of promotions so far.
+     */
+    long getPromotionCount();
+
+    /**
+     * The demoted call sites mapped to their level (`SAMPLED` or `NOP`).
+     */
+    Map<String, String> getDemotedCallSites();
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.guards.agent;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MutableCallSite;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.agent.guava.collect.ImmutableSet;
+import ch.raffael.guards.agent.guava.collect.Sets;
+import ch.raffael.guards.definition.PerformanceImpact;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Enables and disables guards while the VM is running, globally, per package, per guard type
+ * or per {@link PerformanceImpact} level.
+ *
+ * This only affects call sites that have been linked with the option `guardControl` set.
+ * Disabled guards are removed from the call site's method handle chain, if all guards of a
+ * call site are disabled, it's relinked to a nop. Enabling guards again restores the original
+ * chain. Only the call sites affected by a change are relinked, with a single call to
+ * {@link MutableCallSite#syncAll(MutableCallSite[]) syncAll()}. The sites are indexed by
+ * class, guard type and impact level, so the cost of a change depends on the number of sites
+ * it affects, not on the number of all sites (except for enabling or disabling all guards).
+ *
+ * The policy may also be read from a file that's reloaded whenever it changes, see
+ * {@link Options#getPolicyFile()}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class GuardControl implements GuardControlMXBean {
+
+    static final String OBJECT_NAME = "ch.raffael.guards:type=GuardControl";
+
+    private static final GuardControl INSTANCE = new GuardControl();
+
+    private final Object lock = new Object();
+    private volatile GuardPolicy policy = GuardPolicy.DEFAULT;
+    // guarded by lock; the sites are referenced by the classes they're linked into
+    private final Set<GuardSite> sites = newSiteSet();
+    private final NavigableMap<String, Set<GuardSite>> sitesByClass = new TreeMap<>();
+    private final Map<String, Set<GuardSite>> sitesByGuard = new HashMap<>();
+    private final Map<PerformanceImpact, Set<GuardSite>> sitesByImpact = new EnumMap<>(PerformanceImpact.class);
+
+    private GuardControl() {
+    }
+
+    @NotNull
+    public static GuardControl getInstance() {
+        return INSTANCE;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return policy.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        synchronized ( lock ) {
+            update(policy.withEnabled(enabled));
+        }
+    }
+
+    @Override
+    public Map<String, Boolean> getPackageRules() {
+        return policy.getPackageRules();
+    }
+
+    /**
+     * Enable or disable the guards in the given package (see
+     * {@link PackageTrie#packagePrefix(String)} for the syntax). The longest matching pattern
+     * wins, so it's possible to re-enable a sub-package of a disabled package.
+     */
+    public void setPackageEnabled(@NotNull String pattern, boolean enabled) {
+        synchronized ( lock ) {
+            update(policy.withPackage(pattern, enabled));
+        }
+    }
+
+    @Override
+    public void enablePackage(String pattern) {
+        setPackageEnabled(pattern, true);
+    }
+
+    @Override
+    public void disablePackage(String pattern) {
+        setPackageEnabled(pattern, false);
+    }
+
+    @Override
+    public void removePackageRule(String pattern) {
+        synchronized ( lock ) {
+            update(policy.withoutPackage(pattern));
+        }
+    }
+
+    @Override
+    public Set<String> getDisabledGuards() {
+        return policy.getDisabledGuards();
+    }
+
+    public void setGuardEnabled(@NotNull Class<? extends Annotation> guardType, boolean enabled) {
+        setGuardEnabled(guardType.getName(), enabled);
+    }
+
+    public void setGuardEnabled(@NotNull String guardType, boolean enabled) {
+        synchronized ( lock ) {
+            update(policy.withGuard(guardType.trim(), enabled));
+        }
+    }
+
+    @Override
+    public void enableGuard(String guardType) {
+        setGuardEnabled(guardType, true);
+    }
+
+    @Override
+    public void disableGuard(String guardType) {
+        setGuardEnabled(guardType, false);
+    }
+
+    @Override
+    public Set<String> getDisabledImpacts() {
+        ImmutableSet.Builder<String> impacts = ImmutableSet.builder();
+        for( PerformanceImpact impact : policy.getDisabledImpacts() ) {
+            impacts.add(impact.name());
+        }
+        return impacts.build();
+    }
+
+    public void setImpactEnabled(@NotNull PerformanceImpact impact, boolean enabled) {
+        synchronized ( lock ) {
+            update(policy.withImpact(impact, enabled));
+        }
+    }
+
+    @Override
+    public void enableImpact(String impact) {
+        setImpactEnabled(PerformanceImpact.valueOf(impact.trim().toUpperCase()), true);
+    }
+
+    @Override
+    public void disableImpact(String impact) {
+        setImpactEnabled(PerformanceImpact.valueOf(impact.trim().toUpperCase()), false);
+    }
+
+    @Override
+    public Map<String, Integer> getSampleRates() {
+        return policy.getSampleRates();
+    }
+
+    /**
+     * Override the sample rate of a guard type or impact level, see
+     * {@link Options#getSampleRates()}.
+     */
+    @Override
+    public void setSampleRate(String guardTypeOrImpact, int sampleRate) {
+        synchronized ( lock ) {
+            update(policy.withSampleRate(guardTypeOrImpact, sampleRate));
+        }
+    }
+
+    @Override
+    public void removeSampleRate(String guardTypeOrImpact) {
+        synchronized ( lock ) {
+            update(policy.withoutSampleRate(guardTypeOrImpact));
+        }
+    }
+
+    @Override
+    public void reset() {
+        synchronized ( lock ) {
+            update(GuardPolicy.DEFAULT);
+        }
+    }
+
+    @Override
+    public int getCallSiteCount() {
+        synchronized ( lock ) {
+            return sites.size();
+        }
+    }
+
+    @NotNull
+    GuardPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Replace the whole policy, e.g. when the policy file has been reloaded.
+     */
+    void setPolicy(@NotNull GuardPolicy policy) {
+        synchronized ( lock ) {
+            update(policy);
+        }
+    }
+
+    /**
+     * The sample rate for the given guard: The {@link Options#getSampleRates() configured rate},
+     * unless it's overridden by the current policy.
+     */
+    static int getSampleRate(@NotNull Options options, @NotNull Class<? extends Annotation> guardType, @NotNull PerformanceImpact impact) {
+        int rate = options.getSampleRate(guardType, impact);
+        if ( options.isGuardControl() ) {
+            rate = INSTANCE.policy.getSampleRate(guardType.getName(), impact, rate);
+        }
+        return rate;
+    }
+
+    /**
+     * Register a newly linked call site and link it according to the current policy. The site
+     * isn't published yet, so there's no need to sync it.
+     */
+    @NotNull
+    GuardSite register(@NotNull GuardSite site) {
+        synchronized ( lock ) {
+            site.relink(policy);
+            sites.add(site);
+            index(sitesByClass, site.getClassName(), site);
+            for( GuardInstance instance : site.getInstances() ) {
+                Class<? extends Annotation> guardType = instance.getAnnotation().annotationType();
+                index(sitesByGuard, guardType.getName(), site);
+                index(sitesByImpact, GuardDefinition.get(guardType).getPerformanceImpact(), site);
+            }
+        }
+        return site;
+    }
+
+    private void update(@NotNull GuardPolicy newPolicy) {
+        assert Thread.holdsLock(lock);
+        Collection<GuardSite> affected = affectedSites(policy, newPolicy);
+        policy = newPolicy;
+        List<GuardSite> changed = new ArrayList<>();
+        for( GuardSite site : affected ) {
+            if ( site.relink(newPolicy) ) {
+                changed.add(site);
+            }
+        }
+        if ( !changed.isEmpty() ) {
+            MutableCallSite.syncAll(changed.toArray(new MutableCallSite[changed.size()]));
+        }
+        LOG.info("Guard policy changed, relinked " + changed.size() + " of " + affected.size()
+                + " affected call sites (" + sites.size() + " total)");
+    }
+
+    /**
+     * Select the sites that may have to be relinked when changing from the previous to the
+     * current policy.
+     */
+    @NotNull
+    private Collection<GuardSite> affectedSites(@NotNull GuardPolicy previous, @NotNull GuardPolicy current) {
+        assert Thread.holdsLock(lock);
+        if ( previous.isEnabled() != current.isEnabled() ) {
+            return new ArrayList<>(sites);
+        }
+        Set<GuardSite> affected = new HashSet<>();
+        for( String pattern : changedKeys(previous.getPackageRules(), current.getPackageRules()) ) {
+            String prefix = PackageTrie.packagePrefix(pattern);
+            for( Set<GuardSite> classSites : sitesByClass.subMap(prefix, true, prefix + Character.MAX_VALUE, false).values() ) {
+                affected.addAll(classSites);
+            }
+        }
+        for( String guardType : Sets.symmetricDifference(previous.getDisabledGuards(), current.getDisabledGuards()) ) {
+            addAll(affected, sitesByGuard.get(guardType));
+        }
+        for( PerformanceImpact impact : Sets.symmetricDifference(previous.getDisabledImpacts(), current.getDisabledImpacts()) ) {
+            addAll(affected, sitesByImpact.get(impact));
+        }
+        for( String key : changedKeys(previous.getSampleRates(), current.getSampleRates()) ) {
+            addAll(affected, sitesByGuard.get(key));
+            for( PerformanceImpact impact : PerformanceImpact.values() ) {
+                if ( impact.name().equals(key) ) {
+                    addAll(affected, sitesByImpact.get(impact));
+                }
+            }
+        }
+        return affected;
+    }
+
+    @NotNull
+    private static <K> Set<K> changedKeys(@NotNull Map<K, ?> previous, @NotNull Map<K, ?> current) {
+        Set<K> changed = new HashSet<>();
+        for( K key : Sets.union(previous.keySet(), current.keySet()) ) {
+            if ( !Objects.equals(previous.get(key), current.get(key)) ) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    private static void addAll(@NotNull Set<GuardSite> target, Set<GuardSite> sites) {
+        if ( sites != null ) {
+            target.addAll(sites);
+        }
+    }
+
+    private static <K> void index(@NotNull Map<K, Set<GuardSite>> index, @NotNull K key, @NotNull GuardSite site) {
+        Set<GuardSite> sites = index.get(key);
+        if ( sites == null ) {
+            sites = newSiteSet();
+            index.put(key, sites);
+        }
+        sites.add(site);
+    }
+
+    @NotNull
+    private static Set<GuardSite> newSiteSet() {
+        return Collections.newSetFromMap(new WeakHashMap<GuardSite, Boolean>());
+    }
+
+    void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch ( JMException e ) {
+            LOG.log(Level.WARNING, "Cannot register MBean " + OBJECT_NAME, e);
+        }
+    }
+
+}
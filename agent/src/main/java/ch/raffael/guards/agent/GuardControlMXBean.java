@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.guards.agent;
+
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * JMX interface of the {@link GuardControl}, registered as `ch.raffael.guards:type=GuardControl`
+ * if the option `guardControl` is set.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public interface GuardControlMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * The package rules, patterns mapped to whether they enable or disable the guards.
+     */
+    Map<String, Boolean> getPackageRules();
+
+    void enablePackage(String pattern);
+
+    void disablePackage(String pattern);
+
+    /**
+     * Remove the rule for exactly the given pattern.
+     */
+    void removePackageRule(String pattern);
+
+    /**
+     * The fully qualified names of the disabled guard types.
+     */
+    Set<String> getDisabledGuards();
+
+    void enableGuard(String guardType);
+
+    void disableGuard(String guardType);
+
+    /**
+     * The disabled performance impact levels.
+     */
+    Set<String> getDisabledImpacts();
+
+    void enableImpact(String impact);
+
+    void disableImpact(String impact);
+
+    /**
+     * The sample rates overriding the configured ones, by guard type or impact level.
+     */
+    Map<String, Integer> getSampleRates();
+
+    void setSampleRate(String guardTypeOrImpact, int sampleRate);
+
+    void removeSampleRate(String guardTypeOrImpact);
+
+    /**
+     * Enable all guards and remove all rules.
+     */
+    void reset();
+
+    /**
+     * The number of call sites currently controlled.
+     */
+    int getCallSiteCount();
+
+}
@@ -27,6 +27,7 @@ import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import ch.raffael.guards.GuardNotApplicableError;
@@ -39,13 +40,16 @@ import ch.raffael.guards.agent.guava.base.Joiner;
 import ch.raffael.guards.agent.guava.base.Supplier;
 import ch.raffael.guards.agent.guava.base.Suppliers;
 import ch.raffael.guards.agent.guava.collect.AbstractSequentialIterator;
+import ch.raffael.guards.agent.guava.collect.ImmutableList;
 import ch.raffael.guards.agent.guava.collect.ImmutableSet;
 import ch.raffael.guards.agent.guava.collect.Iterables;
+import ch.raffael.guards.agent.guava.collect.Lists;
 import ch.raffael.guards.agent.guava.primitives.Primitives;
 import ch.raffael.guards.agent.guava.reflect.TypeToken;
 import ch.raffael.guards.definition.Guard;
 import ch.raffael.guards.definition.Guard.Handler;
 import ch.raffael.guards.definition.Message;
+import ch.raffael.guards.definition.PerformanceImpact;
 import ch.raffael.guards.definition.Positioning;
 import ch.raffael.guards.definition.Relations;
 
@@ -69,7 +73,6 @@ final class GuardDefinition {
     private final Guard guard;
     @SuppressWarnings("UnusedDeclaration")
     private final Message message;
-    @SuppressWarnings("UnusedDeclaration")
     private final Relations relations;
     @SuppressWarnings("UnusedDeclaration")
     private final Positioning positioning;
@@ -239,15 +242,93 @@ final class GuardDefinition {
         }
     }
 
+    @NotNull
+    Class<? extends Annotation> getType() {
+        return type;
+    }
+
+    /**
+     * The relations to other guards as declared by the guard type.
+     */
     @Nullable
-    MethodHandle resolveTestMethod(@NotNull GuardInstance instance, @Nullable MethodHandle prependTo) {
+    Relations getRelations() {
+        return relations;
+    }
+
+    /**
+     * The performance impact of this guard. Guards that only combine other guards have the
+     * highest impact of the guards they imply.
+     */
+    @NotNull
+    PerformanceImpact getPerformanceImpact() {
+        if ( guard != null ) {
+            return guard.performanceImpact();
+        }
+        PerformanceImpact impact = PerformanceImpact.LOW;
         for( Annotation ann : implied ) {
-            GuardInstance inst = new GuardInstance(instance, ann);
-            prependTo = GuardDefinition.get(ann.annotationType()).resolveTestMethod(inst, prependTo);
+            PerformanceImpact impliedImpact = GuardDefinition.get(ann.annotationType()).getPerformanceImpact();
+            if ( impliedImpact.compareTo(impact) > 0 ) {
+                impact = impliedImpact;
+            }
+        }
+        return impact;
+    }
+
+    /**
+     * Add the guards to be checked for the given instance to the list: The guard itself, if it
+     * has a test of its own, followed by its implied guards. The order is the order in which
+     * the guards are checked.
+     */
+    void collectGuards(@NotNull GuardInstance instance, @NotNull List<GuardInstance> guards) {
+        if ( guard != null ) {
+            guards.add(instance);
+        }
+        for( Annotation ann : Lists.reverse(ImmutableList.copyOf(implied)) ) {
+            GuardDefinition.get(ann.annotationType()).collectGuards(new GuardInstance(instance, ann), guards);
+        }
+    }
+
+    /**
+     * The number of null checks this guard's own test adds to a call site for a reference type:
+     * One for `@NotNull` and for guards that don't test `null` values.
+     */
+    int nullCheckCount() {
+        if ( guard != null && (type == NotNull.class || !guard.testNulls()) ) {
+            return 1;
         }
+        return 0;
+    }
+
+    @Nullable
+    MethodHandle resolveTestMethod(@NotNull GuardInstance instance, @Nullable MethodHandle prependTo) {
+        return resolveTestMethod(instance, prependTo, Nullness.UNKNOWN);
+    }
+
+    /**
+     * Prepend the test of this guard to the given method handle. Implied guards aren't
+     * included, see {@link #collectGuards(GuardInstance, List)}.
+     *
+     * @param nullness What's known about the value being `null`: If it's known, the guard
+     *                 doesn't check for `null` again.
+     */
+    @Nullable
+    MethodHandle resolveTestMethod(@NotNull GuardInstance instance, @Nullable MethodHandle prependTo, @NotNull Nullness nullness) {
         if ( guard == null ) {
             return prependTo;
         }
+        if ( nullness == Nullness.NULL && !guard.testNulls() ) {
+            // passes anyway
+            return prependTo;
+        }
+        if ( nullness == Nullness.NOT_NULL && type == NotNull.class ) {
+            return prependTo;
+        }
+        Options options = GuardsAgent.getInstance().getOptions();
+        String className = instance.getTarget().getMember().getDeclaringClass().getName().replace('.', '/');
+        if ( guard.performanceImpact().compareTo(options.getMaxImpact(className)) > 0 ) {
+            // above the configured maximum impact: link to nop
+            return prependTo;
+        }
         TestMethod testMethod = findTestMethod(instance);
         if ( testMethod == null ) {
             throw new GuardNotApplicableError(instance.getTarget() + ": No matching test method found for " + handlerClass.getName());
@@ -261,10 +342,12 @@ final class GuardDefinition {
             throw new GuardsInternalError("Access to method " + testMethod.method + " unexpectedly denied");
         }
         if ( !Modifier.isStatic(testMethod.method.getModifiers()) ) {
-            handle = handle.bindTo(handlerInstantiator.get().instantiate(instance.getAnnotation(), instance.getTarget().getGenericValueType()));
+            Handler handler = handlerInstantiator.get().instantiate(instance.getAnnotation(), instance.getTarget().getGenericValueType());
+            MethodHandle stub = options.isSpinGuardStubs() ? GuardStubs.stub(testMethod.method, handler) : null;
+            handle = stub != null ? stub : handle.bindTo(handler);
         }
         // add null guards if necessary
-        if ( !guard.testNulls() ) {
+        if ( !guard.testNulls() && nullness == Nullness.UNKNOWN ) {
             if ( testMethod.valueType.isPrimitive() ) {
                 // check for unboxing
                 if ( !instance.getTarget().getValueType().isPrimitive() ) {
@@ -514,6 +597,13 @@ final class GuardDefinition {
 
     }
 
+    /**
+     * What's known about a value being `null` when composing the guards.
+     */
+    enum Nullness {
+        UNKNOWN, NULL, NOT_NULL
+    }
+
     static final class TestMethod {
         private final TypeToken<?> valueType;
         private final Method method;
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.raffael.guards.Max;
+import ch.raffael.guards.Min;
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+import ch.raffael.guards.Positive;
+import ch.raffael.guards.Unsigned;
+import ch.raffael.guards.agent.guava.collect.ImmutableSet;
+import ch.raffael.guards.agent.guava.collect.Lists;
+
+import static java.lang.invoke.MethodType.methodType;
+
+
+/**
+ * Combines guards of a call site that can be checked together:
+ *
+ *  *  `@Min`, `@Max`, `@Unsigned` and `@Positive` on an integral primitive (`byte`, `short`,
+ *     `int`, `long`) are fused into a single range check. If the check fails, the guards are
+ *     tested one by one in the order they're declared and the first failing one is reported.
+ *     The range check comes first, before any other guards, just like the `LEADING` slot of
+ *     these guards suggests. Guards that are sampled (see {@link Options#getSampleRates()})
+ *     aren't fused.
+ *
+ *  *  On reference types, the null checks of `@NotNull` and of all guards that don't test
+ *     `null` values are replaced by a single null check, if there are at least two of them. If
+ *     the value is `null`, only the guards that test `null` values are checked, otherwise,
+ *     all guards but `@NotNull` are checked without checking for `null` again.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class GuardFusion {
+
+    private static final ImmutableSet<Class<? extends Annotation>> RANGE_GUARDS = ImmutableSet.of(
+            Min.class, Max.class, Unsigned.class, Positive.class);
+    private static final ImmutableSet<Class<?>> RANGE_TYPES = ImmutableSet.<Class<?>>of(
+            byte.class, short.class, int.class, long.class);
+
+    private static final MethodHandle IN_RANGE;
+    private static final MethodHandle RANGE_VIOLATION;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            IN_RANGE = lookup.findStatic(GuardFusion.class, "inRange", methodType(boolean.class, long.class, long.class, long.class));
+            RANGE_VIOLATION = lookup.findVirtual(Range.class, "violation", methodType(void.class, long.class));
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e ) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private GuardFusion() {
+    }
+
+    /**
+     * Compose the given guards, fusing them where possible.
+     *
+     * @return The composed guards or `null`, if there's nothing to fuse.
+     */
+    @Nullable
+    static MethodHandle fuse(@NotNull GuardTarget target, @NotNull List<GuardInstance> guardInstances) {
+        if ( guardInstances.size() < 2 ) {
+            return null;
+        }
+        Class<?> type = target.getValueType();
+        if ( RANGE_TYPES.contains(type) ) {
+            return fuseRange(target, guardInstances);
+        }
+        else if ( !type.isPrimitive() ) {
+            return fuseNullChecks(target, guardInstances);
+        }
+        else {
+            return null;
+        }
+    }
+
+    @Nullable
+    private static MethodHandle fuseRange(@NotNull GuardTarget target, @NotNull List<GuardInstance> guardInstances) {
+        Options options = GuardsAgent.getInstance().getOptions();
+        List<GuardInstance> ranges = new ArrayList<>(guardInstances.size());
+        List<GuardInstance> others = new ArrayList<>(guardInstances.size());
+        for( GuardInstance instance : guardInstances ) {
+            Class<? extends Annotation> guardType = instance.getAnnotation().annotationType();
+            if ( RANGE_GUARDS.contains(guardType)
+                    && GuardControl.getSampleRate(options, guardType, GuardDefinition.get(guardType).getPerformanceImpact()) <= 1 ) {
+                ranges.add(instance);
+            }
+            else {
+                others.add(instance);
+            }
+        }
+        if ( ranges.size() < 2 ) {
+            return null;
+        }
+        Range range = new Range(ranges, options.isReportOnly());
+        MethodHandle handle = compose(others, GuardDefinition.Nullness.UNKNOWN);
+        Class<?> type = target.getValueType();
+        MethodHandle next = handle == null ? Indy.nopHandle(type) : handle;
+        MethodHandle violation = RANGE_VIOLATION.bindTo(range).asType(methodType(void.class, type));
+        if ( options.isReportOnly() ) {
+            // continue with the remaining guards after reporting
+            violation = MethodHandles.foldArguments(next, violation);
+        }
+        return MethodHandles.guardWithTest(
+                MethodHandles.insertArguments(IN_RANGE, 1, range.min, range.max).asType(methodType(boolean.class, type)),
+                next,
+                violation);
+    }
+
+    @Nullable
+    private static MethodHandle fuseNullChecks(@NotNull GuardTarget target, @NotNull List<GuardInstance> guardInstances) {
+        int nullChecks = 0;
+        for( GuardInstance instance : guardInstances ) {
+            nullChecks += GuardDefinition.get(instance.getAnnotation().annotationType()).nullCheckCount();
+        }
+        if ( nullChecks < 2 ) {
+            return null;
+        }
+        Class<?> type = target.getValueType();
+        MethodHandle notNull = compose(guardInstances, GuardDefinition.Nullness.NOT_NULL);
+        MethodHandle isNull = compose(guardInstances, GuardDefinition.Nullness.NULL);
+        return MethodHandles.guardWithTest(
+                Indy.testNotNullHandle(type),
+                notNull == null ? Indy.nopHandle(type) : notNull,
+                isNull == null ? Indy.nopHandle(type) : isNull);
+    }
+
+    @Nullable
+    private static MethodHandle compose(@NotNull List<GuardInstance> guardInstances, @NotNull GuardDefinition.Nullness nullness) {
+        MethodHandle handle = null;
+        for( GuardInstance guardInstance : Lists.reverse(guardInstances) ) {
+            handle = GuardDefinition.get(guardInstance.getAnnotation().annotationType()).resolveTestMethod(guardInstance, handle, nullness);
+        }
+        return handle;
+    }
+
+    private static boolean inRange(long value, long min, long max) {
+        return value >= min && value <= max;
+    }
+
+    /**
+     * The fused range guards, reports the first guard violated (all of them in report-only
+     * mode).
+     */
+    private static final class Range {
+
+        private final boolean reportOnly;
+        private final GuardInstance[] instances;
+        private final long[] mins;
+        private final long[] maxs;
+        private final long min;
+        private final long max;
+
+        private Range(@NotNull List<GuardInstance> instances, boolean reportOnly) {
+            this.reportOnly = reportOnly;
+            this.instances = instances.toArray(new GuardInstance[instances.size()]);
+            mins = new long[this.instances.length];
+            maxs = new long[this.instances.length];
+            long min = Long.MIN_VALUE;
+            long max = Long.MAX_VALUE;
+            for( int i = 0; i < this.instances.length; i++ ) {
+                GuardInstance instance = this.instances[i];
+                GuardDefinition definition = GuardDefinition.get(instance.getAnnotation().annotationType());
+                GuardDefinition.TestMethod testMethod = definition.findTestMethod(instance);
+                if ( testMethod != null ) {
+                    instance.updateTestMethod(testMethod.method());
+                }
+                mins[i] = Long.MIN_VALUE;
+                maxs[i] = Long.MAX_VALUE;
+                Annotation annotation = instance.getAnnotation();
+                if ( annotation instanceof Min ) {
+                    mins[i] = ((Min)annotation).value();
+                }
+                else if ( annotation instanceof Max ) {
+                    maxs[i] = ((Max)annotation).value();
+                }
+                else if ( annotation instanceof Unsigned ) {
+                    mins[i] = 0;
+                }
+                else if ( annotation instanceof Positive ) {
+                    mins[i] = 1;
+                }
+                min = Math.max(min, mins[i]);
+                max = Math.min(max, maxs[i]);
+            }
+            this.min = min;
+            this.max = max;
+        }
+
+        void violation(long value) {
+            for( int i = 0; i < instances.length; i++ ) {
+                if ( value < mins[i] || value > maxs[i] ) {
+                    if ( reportOnly ) {
+                        // box the value only for violations that haven't been reported yet
+                        if ( !instances[i].countReportedViolation() ) {
+                            instances[i].guardViolation(value);
+                        }
+                    }
+                    else {
+                        instances[i].guardViolation(value);
+                    }
+                }
+            }
+            if ( !reportOnly ) {
+                throw new AssertionError("No violated guard found for value " + value + " in range " + min + ".." + max);
+            }
+        }
+
+    }
+
+}
@@ -18,12 +18,14 @@ package ch.raffael.guards.agent;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 
 import ch.raffael.guards.ContractViolationError;
+import ch.raffael.guards.NotNull;
 import ch.raffael.guards.Sensitive;
 import ch.raffael.guards.agent.guava.base.Joiner;
 import ch.raffael.guards.agent.guava.collect.ForwardingMap;
@@ -31,6 +33,7 @@ import ch.raffael.guards.agent.guava.collect.ImmutableBiMap;
 import ch.raffael.guards.agent.guava.collect.ImmutableList;
 import ch.raffael.guards.agent.guava.collect.ImmutableMap;
 import ch.raffael.guards.agent.guava.collect.ImmutableSet;
+import ch.raffael.guards.agent.guava.collect.MapMaker;
 import ch.raffael.guards.agent.guava.reflect.Reflection;
 import ch.raffael.guards.definition.Message;
 import ch.raffael.guards.internal.Substitutor;
@@ -50,6 +53,9 @@ final class GuardInstance {
     private final List<Annotation> annotationPath;
     private final String message;
     private Method testMethod;
+    // the value types of the violations reported so far in report-only mode, weak to not
+    // keep their classes from being unloaded
+    private volatile Set<Class<?>> reportedTypes = null;
 
     GuardInstance(GuardTarget target, Annotation annotation, String message) {
         this.target = target;
@@ -93,6 +99,60 @@ final class GuardInstance {
     }
 
     void guardViolation(Object value) {
+        Options options = GuardsAgent.getInstance().getOptions();
+        if ( options.isReportOnly() ) {
+            ViolationReporter.getInstance().report(this, value);
+            return;
+        }
+        if ( options.isLazyViolations() ) {
+            throw new GuardViolationError(this, value);
+        }
+        ContractViolationError violationError = new ContractViolationError(violationMessage(value));
+        StackTraceElement[] stackTrace = violationError.getStackTrace();
+        StackTraceElement[] trimmedStackTrace = trimStackTrace(stackTrace, getTarget().getParameterIndex());
+        if ( trimmedStackTrace != stackTrace ) {
+            violationError.setStackTrace(trimmedStackTrace);
+        }
+        throw violationError;
+    }
+
+    /**
+     * Count a violation of a primitive value, if it has been reported before. This allows the
+     * call site to skip boxing the value for repeated violations.
+     *
+     * @return `false`, if the violation still has to be reported.
+     */
+    boolean countReportedViolation() {
+        Set<Class<?>> types = reportedTypes;
+        if ( types != null && types.contains(target.getValueType()) ) {
+            target.countViolation();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark violations with values of the given type as reported.
+     *
+     * @return `true`, if no such violation has been reported before.
+     */
+    boolean markReported(@NotNull Class<?> valueType) {
+        Set<Class<?>> types = reportedTypes;
+        if ( types == null ) {
+            synchronized ( this ) {
+                types = reportedTypes;
+                if ( types == null ) {
+                    types = Collections.newSetFromMap(new MapMaker().concurrencyLevel(1).weakKeys().<Class<?>, Boolean>makeMap());
+                    reportedTypes = types;
+                }
+            }
+        }
+        // check first, add() would allocate a new entry
+        return !types.contains(valueType) && types.add(valueType);
+    }
+
+    @NotNull
+    String violationMessage(Object value) {
         StringBuilder buf = new StringBuilder();
         buf.append("Contract Violation at ");
         target.appendShortString(buf);
@@ -131,15 +191,23 @@ final class GuardInstance {
         buf.append("\n  Target: ");
         target.appendFullString(buf);
         buf.append("\n  Method: ").append(testMethod != null ? testMethod : "(unknown)");
-        ContractViolationError violationError = new ContractViolationError(buf.toString());
-        StackTraceElement[] stackTrace = violationError.getStackTrace();
+        return buf.toString();
+    }
+
+    /**
+     * Remove the agent's frames from the top of the stack trace.
+     *
+     * @return The trimmed stack trace or the given one, if there was nothing to remove.
+     */
+    @NotNull
+    static StackTraceElement[] trimStackTrace(@NotNull StackTraceElement[] stackTrace, int parameterIndex) {
         int removeCount = 0;
         for( StackTraceElement aStackTrace : stackTrace ) {
             if ( Reflection.getPackageName(aStackTrace.getClassName()).equals(MY_PACKAGE_NAME) ) {
                 removeCount++;
             }
             else {
-                if ( getTarget().getParameterIndex() >= 0 && removeCount < stackTrace.length - 1 ) {
+                if ( parameterIndex >= 0 && removeCount < stackTrace.length - 1 ) {
                     // Remove the called method. Logically, the calling method violated the,
                     // contract, even though technically, the called method did the check. Reflect
                     // that in the stack trace.
@@ -148,12 +216,12 @@ final class GuardInstance {
                 break;
             }
         }
-        if ( removeCount > 0 ) {
-            StackTraceElement[] newStackTrace = new StackTraceElement[stackTrace.length - removeCount];
-            System.arraycopy(stackTrace, removeCount, newStackTrace, 0, newStackTrace.length);
-            violationError.setStackTrace(newStackTrace);
+        if ( removeCount == 0 ) {
+            return stackTrace;
         }
-        throw violationError;
+        StackTraceElement[] newStackTrace = new StackTraceElement[stackTrace.length - removeCount];
+        System.arraycopy(stackTrace, removeCount, newStackTrace, 0, newStackTrace.length);
+        return newStackTrace;
     }
 
     private void appendMessage(StringBuilder buf, Object value) {
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.guards.agent;
+
+import java.lang.annotation.Annotation;
+import java.util.Map;
+import java.util.Set;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.agent.guava.collect.ImmutableMap;
+import ch.raffael.guards.agent.guava.collect.ImmutableSet;
+import ch.raffael.guards.agent.guava.collect.Maps;
+import ch.raffael.guards.agent.guava.collect.Sets;
+import ch.raffael.guards.definition.PerformanceImpact;
+
+
+/**
+ * An immutable set of rules deciding which guards are enabled at runtime (see
+ * {@link GuardControl}).
+ *
+ * A guard is enabled, if
+ *
+ *  *  guards are enabled globally,
+ *  *  the longest matching package rule for the class declaring the guarded method doesn't
+ *     disable it (see {@link PackageTrie#packagePrefix(String)} for the syntax),
+ *  *  its guard type hasn't been disabled and
+ *  *  its {@link PerformanceImpact} hasn't been disabled.
+ *
+ * The policy may also override the {@link Options#getSampleRates() sample rates} by guard type
+ * or impact level.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class GuardPolicy {
+
+    static final GuardPolicy DEFAULT = new GuardPolicy(true,
+            ImmutableMap.<String, Boolean>of(), ImmutableSet.<String>of(), ImmutableSet.<PerformanceImpact>of(),
+            ImmutableMap.<String, Integer>of());
+
+    private final boolean enabled;
+    private final Map<String, Boolean> packageRules;
+    private final PackageTrie<Boolean> packages = new PackageTrie<>();
+    private final Set<String> disabledGuards;
+    private final Set<PerformanceImpact> disabledImpacts;
+    private final Map<String, Integer> sampleRates;
+
+    private GuardPolicy(boolean enabled, @NotNull Map<String, Boolean> packageRules, @NotNull Set<String> disabledGuards, @NotNull Set<PerformanceImpact> disabledImpacts, @NotNull Map<String, Integer> sampleRates) {
+        this.enabled = enabled;
+        this.packageRules = ImmutableMap.copyOf(packageRules);
+        this.disabledGuards = ImmutableSet.copyOf(disabledGuards);
+        this.disabledImpacts = Sets.immutableEnumSet(disabledImpacts);
+        this.sampleRates = ImmutableMap.copyOf(sampleRates);
+        for( Map.Entry<String, Boolean> rule : this.packageRules.entrySet() ) {
+            packages.put(PackageTrie.packagePrefix(rule.getKey()), rule.getValue());
+        }
+    }
+
+    /**
+     * @param internalClassName The internal name of the class declaring the guarded method.
+     */
+    boolean isEnabled(@NotNull String internalClassName, @NotNull Class<? extends Annotation> guardType, @NotNull PerformanceImpact impact) {
+        if ( !enabled ) {
+            return false;
+        }
+        if ( !packages.isEmpty() ) {
+            Boolean packageEnabled = packages.find(internalClassName);
+            if ( packageEnabled != null && !packageEnabled ) {
+                return false;
+            }
+        }
+        return !disabledGuards.contains(guardType.getName()) && !disabledImpacts.contains(impact);
+    }
+
+    /**
+     * The sample rate for the given guard: The rate for the guard type, if there's none, the
+     * rate for its impact level, if there's none either, the given default.
+     */
+    int getSampleRate(@NotNull String guardTypeName, @NotNull PerformanceImpact impact, int defaultRate) {
+        if ( sampleRates.isEmpty() ) {
+            return defaultRate;
+        }
+        Integer rate = sampleRates.get(guardTypeName);
+        if ( rate == null ) {
+            rate = sampleRates.get(impact.name());
+        }
+        return rate == null ? defaultRate : Math.max(1, rate);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    @NotNull
+    Map<String, Boolean> getPackageRules() {
+        return packageRules;
+    }
+
+    @NotNull
+    Set<String> getDisabledGuards() {
+        return disabledGuards;
+    }
+
+    @NotNull
+    Set<PerformanceImpact> getDisabledImpacts() {
+        return disabledImpacts;
+    }
+
+    @NotNull
+    Map<String, Integer> getSampleRates() {
+        return sampleRates;
+    }
+
+    @NotNull
+    GuardPolicy withEnabled(boolean enabled) {
+        return new GuardPolicy(enabled, packageRules, disabledGuards, disabledImpacts, sampleRates);
+    }
+
+    @NotNull
+    GuardPolicy withPackage(@NotNull String pattern, boolean enabled) {
+        Map<String, Boolean> rules = Maps.newLinkedHashMap(packageRules);
+        rules.put(pattern.trim(), enabled);
+        return new GuardPolicy(this.enabled, rules, disabledGuards, disabledImpacts, sampleRates);
+    }
+
+    @NotNull
+    GuardPolicy withoutPackage(@NotNull String pattern) {
+        Map<String, Boolean> rules = Maps.newLinkedHashMap(packageRules);
+        rules.remove(pattern.trim());
+        return new GuardPolicy(enabled, rules, disabledGuards, disabledImpacts, sampleRates);
+    }
+
+    @NotNull
+    GuardPolicy withGuard(@NotNull String guardType, boolean enabled) {
+        Set<String> guards = Sets.newLinkedHashSet(disabledGuards);
+        if ( enabled ) {
+            guards.remove(guardType);
+        }
+        else {
+            guards.add(guardType);
+        }
+        return new GuardPolicy(this.enabled, packageRules, guards, disabledImpacts, sampleRates);
+    }
+
+    @NotNull
+    GuardPolicy withImpact(@NotNull PerformanceImpact impact, boolean enabled) {
+        Set<PerformanceImpact> impacts = Sets.newEnumSet(disabledImpacts, PerformanceImpact.class);
+        if ( enabled ) {
+            impacts.remove(impact);
+        }
+        else {
+            impacts.add(impact);
+        }
+        return new GuardPolicy(this.enabled, packageRules, disabledGuards, impacts, sampleRates);
+    }
+
+    /**
+     * @param key The guard type or impact level, see {@link Options#getSampleRates()}.
+     */
+    @NotNull
+    GuardPolicy withSampleRate(@NotNull String key, int rate) {
+        Map<String, Integer> rates = Maps.newLinkedHashMap(sampleRates);
+        rates.put(key.trim(), Math.max(1, rate));
+        return new GuardPolicy(enabled, packageRules, disabledGuards, disabledImpacts, rates);
+    }
+
+    @NotNull
+    GuardPolicy withoutSampleRate(@NotNull String key) {
+        Map<String, Integer> rates = Maps.newLinkedHashMap(sampleRates);
+        rates.remove(key.trim());
+        return new GuardPolicy(enabled, packageRules, disabledGuards, disabledImpacts, rates);
+    }
+
+}
@@ -0,0 +1,564 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+import ch.raffael.guards.agent.guava.collect.ImmutableSet;
+import ch.raffael.guards.definition.Relations;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Eliminates guards that are implied by other guards on the same value, using the guards'
+ * {@link Relations @Relations} (see {@link Options#isEliminateImpliedGuards()}).
+ *
+ * A guard *A* implies a guard *B*, if every value accepted by *A* is also accepted by *B*:
+ *
+ *  *  *A* and *B* are equal annotations, e.g. `@NotNull` implied twice by composite guards.
+ *
+ *  *  *A* declares itself a subset of (or equal to) *B* and *B* declares itself a superset of
+ *     (or equal to) *A*. Both sides must agree, one-sided declarations are ignored.
+ *
+ *  *  The rules of *A* for *B* (or the rules of *B* for *A*) say so. The rules are evaluated
+ *     in order, the first rule whose condition is true decides. If a condition can't be
+ *     evaluated (e.g. because it uses an unknown identifier), the rules don't imply anything.
+ *     The rules are written for integral values (e.g. `@Min(1)` is equal to `@Positive`), so
+ *     they're only used for values of an integral type.
+ *
+ * The rule expressions are a subset of the expression grammar of the analysis module:
+ * Literals, identifiers (attributes of the guard, `that.attribute` for attributes of the other
+ * guard), the arithmetic, comparison and logical operators and the conditional operator.
+ *
+ * Of two equal guards, the first one is kept.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class GuardRelations {
+
+    private static final Set<Class<?>> INTEGRAL_TYPES = ImmutableSet.<Class<?>>of(
+            byte.class, short.class, int.class, long.class,
+            Byte.class, Short.class, Integer.class, Long.class, BigInteger.class);
+
+    private GuardRelations() {
+    }
+
+    /**
+     * Get the guards to be checked for the given guard instances: Composite guards are
+     * replaced by the guards they imply and, if enabled, guards implied by others are dropped.
+     */
+    @NotNull
+    static List<GuardInstance> effectiveGuards(@NotNull List<GuardInstance> guardInstances) {
+        List<GuardInstance> guards = new ArrayList<>(guardInstances.size());
+        for( GuardInstance instance : guardInstances ) {
+            GuardDefinition.get(instance.getAnnotation().annotationType()).collectGuards(instance, guards);
+        }
+        Options options = GuardsAgent.getInstance().getOptions();
+        if ( !options.isEliminateImpliedGuards() || guards.size() < 2 ) {
+            return guards;
+        }
+        boolean[] redundant = new boolean[guards.size()];
+        for( int i = 0; i < guards.size(); i++ ) {
+            if ( redundant[i] || !isCheckedAlways(guards.get(i), options) ) {
+                continue;
+            }
+            for( int j = 0; j < guards.size(); j++ ) {
+                if ( i == j || redundant[j] ) {
+                    continue;
+                }
+                if ( implies(guards.get(i), guards.get(j)) ) {
+                    // of two equal guards, keep the first one
+                    if ( i < j || !implies(guards.get(j), guards.get(i)) ) {
+                        LOG.fine(guards.get(i).getTarget() + ": " + guards.get(j).getAnnotation() + " is implied by " + guards.get(i).getAnnotation());
+                        redundant[j] = true;
+                    }
+                }
+            }
+        }
+        List<GuardInstance> effective = new ArrayList<>(guards.size());
+        for( int i = 0; i < guards.size(); i++ ) {
+            if ( !redundant[i] ) {
+                effective.add(guards.get(i));
+            }
+        }
+        return effective;
+    }
+
+    private static boolean isCheckedAlways(@NotNull GuardInstance instance, @NotNull Options options) {
+        GuardDefinition definition = GuardDefinition.get(instance.getAnnotation().annotationType());
+        String className = instance.getTarget().getMember().getDeclaringClass().getName().replace('.', '/');
+        return definition.getPerformanceImpact().compareTo(options.getMaxImpact(className)) <= 0
+                && GuardControl.getSampleRate(options, definition.getType(), definition.getPerformanceImpact()) <= 1;
+    }
+
+    /**
+     * Check whether the first guard implies the second one, i.e. whether each value accepted
+     * by the first guard is also accepted by the second one.
+     */
+    static boolean implies(@NotNull GuardInstance first, @NotNull GuardInstance second) {
+        Annotation a = first.getAnnotation();
+        Annotation b = second.getAnnotation();
+        if ( a.equals(b) ) {
+            return true;
+        }
+        Relations relationsA = GuardDefinition.get(a.annotationType()).getRelations();
+        Relations relationsB = GuardDefinition.get(b.annotationType()).getRelations();
+        if ( relationsA != null && relationsB != null ) {
+            if ( contains(relationsA.subsetOf(), b) && contains(relationsB.supersetOf(), a) ) {
+                return true;
+            }
+            if ( (contains(relationsA.equalTo(), b) || contains(relationsA.synonymousTo(), b))
+                    && (contains(relationsB.equalTo(), a) || contains(relationsB.synonymousTo(), a)) ) {
+                return true;
+            }
+        }
+        if ( !INTEGRAL_TYPES.contains(first.getTarget().getValueType())
+                || !INTEGRAL_TYPES.contains(second.getTarget().getValueType()) ) {
+            // e.g. @Min(1) isn't equal to @Positive for a double or a char
+            return false;
+        }
+        String relation = relationsA == null ? null : evaluateRules(relationsA, a, b);
+        if ( relation != null ) {
+            return relation.equals("subset") || relation.equals("equal");
+        }
+        relation = relationsB == null ? null : evaluateRules(relationsB, b, a);
+        return relation != null && (relation.equals("superset") || relation.equals("equal"));
+    }
+
+    private static boolean contains(@NotNull Class<? extends Annotation>[] types, @NotNull Annotation annotation) {
+        return Arrays.asList(types).contains(annotation.annotationType());
+    }
+
+    /**
+     * Evaluate the rules of `self` regarding `that`.
+     *
+     * @return The relation, `null` if there's no applicable rule or it can't be evaluated.
+     */
+    @Nullable
+    private static String evaluateRules(@NotNull Relations relations, @NotNull Annotation self, @NotNull Annotation that) {
+        for( Relations.Rules rules : relations.rules() ) {
+            boolean applicable;
+            if ( rules.type().length == 0 ) {
+                applicable = self.annotationType() == that.annotationType();
+            }
+            else {
+                applicable = contains(rules.type(), that);
+            }
+            if ( !applicable ) {
+                continue;
+            }
+            for( String rule : rules.value() ) {
+                int arrow = rule.lastIndexOf("->");
+                if ( arrow < 0 ) {
+                    LOG.fine("Invalid rule in " + self.annotationType().getName() + ": " + rule);
+                    return null;
+                }
+                String condition = rule.substring(0, arrow).trim();
+                try {
+                    if ( condition.isEmpty() || Boolean.TRUE.equals(new Expression(condition, self, that).evaluate()) ) {
+                        return rule.substring(arrow + 2).trim();
+                    }
+                }
+                catch ( Unevaluable e ) {
+                    LOG.fine("Cannot evaluate rule in " + self.annotationType().getName() + ": " + rule + ": " + e.getMessage());
+                    return null;
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    private static final class Unevaluable extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private Unevaluable(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /**
+     * Recursive descent evaluator for rule conditions. Integral numbers are evaluated as
+     * `long`, floating point numbers as `double`.
+     */
+    private static final class Expression {
+
+        private static final String[] OPERATORS = {
+                ">>>", "&&", "||", "==", "!=", ">=", "<=", "<<", ">>",
+                "<", ">", "+", "-", "*", "/", "%", "!", "~", "(", ")", ".", "?", ":", "@" };
+
+        private final String source;
+        private final Annotation self;
+        private final Annotation that;
+        private int pos = 0;
+
+        private Expression(@NotNull String source, @NotNull Annotation self, @NotNull Annotation that) {
+            this.source = source;
+            this.self = self;
+            this.that = that;
+        }
+
+        private Object evaluate() {
+            Object value = conditional();
+            skipWhitespace();
+            if ( pos < source.length() ) {
+                throw new Unevaluable("Unexpected input at " + pos);
+            }
+            return value;
+        }
+
+        private Object conditional() {
+            Object condition = logical();
+            if ( accept("?") ) {
+                Object ifTrue = logical();
+                expect(":");
+                Object ifFalse = logical();
+                return toBoolean(condition) ? ifTrue : ifFalse;
+            }
+            return condition;
+        }
+
+        private Object logical() {
+            Object left = equality();
+            while ( true ) {
+                if ( accept("&&") ) {
+                    Object right = equality();
+                    left = toBoolean(left) && toBoolean(right);
+                }
+                else if ( accept("||") ) {
+                    Object right = equality();
+                    left = toBoolean(left) || toBoolean(right);
+                }
+                else {
+                    return left;
+                }
+            }
+        }
+
+        private Object equality() {
+            Object left = relational();
+            while ( true ) {
+                if ( accept("==") ) {
+                    left = isEqual(left, relational());
+                }
+                else if ( accept("!=") ) {
+                    left = !isEqual(left, relational());
+                }
+                else {
+                    return left;
+                }
+            }
+        }
+
+        private Object relational() {
+            Object left = additive();
+            while ( true ) {
+                if ( accept(">=") ) {
+                    left = compare(left, additive()) >= 0;
+                }
+                else if ( accept("<=") ) {
+                    left = compare(left, additive()) <= 0;
+                }
+                else if ( accept(">") ) {
+                    left = compare(left, additive()) > 0;
+                }
+                else if ( accept("<") ) {
+                    left = compare(left, additive()) < 0;
+                }
+                else {
+                    return left;
+                }
+            }
+        }
+
+        private Object additive() {
+            Object left = multiplicative();
+            while ( true ) {
+                if ( accept("+") ) {
+                    left = arithmetic('+', left, multiplicative());
+                }
+                else if ( accept("-") ) {
+                    left = arithmetic('-', left, multiplicative());
+                }
+                else {
+                    return left;
+                }
+            }
+        }
+
+        private Object multiplicative() {
+            Object left = unary();
+            while ( true ) {
+                if ( accept("*") ) {
+                    left = arithmetic('*', left, unary());
+                }
+                else if ( accept("/") ) {
+                    left = arithmetic('/', left, unary());
+                }
+                else if ( accept("%") ) {
+                    left = arithmetic('%', left, unary());
+                }
+                else {
+                    return left;
+                }
+            }
+        }
+
+        private Object unary() {
+            if ( accept("-") ) {
+                return arithmetic('-', 0L, unary());
+            }
+            else if ( accept("+") ) {
+                return arithmetic('+', 0L, unary());
+            }
+            else if ( accept("!") ) {
+                return !toBoolean(unary());
+            }
+            return dereference();
+        }
+
+        private Object dereference() {
+            Object value = factor();
+            while ( accept(".") ) {
+                String name = identifier();
+                if ( !(value instanceof Annotation) ) {
+                    throw new Unevaluable("Cannot dereference " + name + " on " + value);
+                }
+                value = attribute((Annotation)value, name);
+            }
+            return value;
+        }
+
+        private Object factor() {
+            skipWhitespace();
+            if ( accept("(") ) {
+                Object value = conditional();
+                expect(")");
+                return value;
+            }
+            if ( pos >= source.length() ) {
+                throw new Unevaluable("Unexpected end of expression");
+            }
+            char c = source.charAt(pos);
+            if ( Character.isDigit(c) ) {
+                return number();
+            }
+            if ( c == '\'' ) {
+                int end = source.indexOf('\'', pos + 1);
+                if ( end < 0 ) {
+                    throw new Unevaluable("Unterminated string literal");
+                }
+                String string = source.substring(pos + 1, end);
+                pos = end + 1;
+                return string;
+            }
+            accept("@");
+            String name = identifier();
+            switch ( name ) {
+                case "true":
+                    return true;
+                case "false":
+                    return false;
+                case "that":
+                    return that;
+                default:
+                    return attribute(self, name);
+            }
+        }
+
+        private Object number() {
+            int start = pos;
+            boolean floating = false;
+            if ( source.startsWith("0x", pos) || source.startsWith("0X", pos) ) {
+                pos += 2;
+                while ( pos < source.length() && Character.digit(source.charAt(pos), 16) >= 0 ) {
+                    pos++;
+                }
+                long value = Long.parseLong(source.substring(start + 2, pos), 16);
+                suffix("lL");
+                return value;
+            }
+            while ( pos < source.length() ) {
+                char c = source.charAt(pos);
+                if ( c == '.' || c == 'e' || c == 'E' ) {
+                    floating = true;
+                }
+                else if ( !Character.isDigit(c) ) {
+                    break;
+                }
+                pos++;
+            }
+            String literal = source.substring(start, pos);
+            try {
+                if ( suffix("fFdD") || floating ) {
+                    return Double.parseDouble(literal);
+                }
+                suffix("lL");
+                return Long.parseLong(literal);
+            }
+            catch ( NumberFormatException e ) {
+                throw new Unevaluable("Invalid number: " + literal);
+            }
+        }
+
+        private boolean suffix(@NotNull String suffixes) {
+            if ( pos < source.length() && suffixes.indexOf(source.charAt(pos)) >= 0 ) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private String identifier() {
+            skipWhitespace();
+            int start = pos;
+            while ( pos < source.length() && (pos == start ? Character.isJavaIdentifierStart(source.charAt(pos)) : Character.isJavaIdentifierPart(source.charAt(pos))) ) {
+                pos++;
+            }
+            if ( start == pos ) {
+                throw new Unevaluable("Identifier expected at " + pos);
+            }
+            return source.substring(start, pos);
+        }
+
+        private static Object attribute(@NotNull Annotation annotation, @NotNull String name) {
+            Method method;
+            try {
+                method = annotation.annotationType().getMethod(name);
+            }
+            catch ( NoSuchMethodException e ) {
+                throw new Unevaluable("Unknown identifier: " + name);
+            }
+            Object value;
+            try {
+                method.setAccessible(true);
+                value = method.invoke(annotation);
+            }
+            catch ( ReflectiveOperationException | RuntimeException e ) {
+                throw new Unevaluable("Cannot read " + name + " from " + annotation + ": " + e);
+            }
+            if ( value instanceof Byte || value instanceof Short || value instanceof Integer ) {
+                return ((Number)value).longValue();
+            }
+            else if ( value instanceof Float ) {
+                return ((Number)value).doubleValue();
+            }
+            else if ( value instanceof Character ) {
+                return (long)(Character)value;
+            }
+            return value;
+        }
+
+        private static boolean toBoolean(Object value) {
+            if ( !(value instanceof Boolean) ) {
+                throw new Unevaluable("Not a boolean: " + value);
+            }
+            return (Boolean)value;
+        }
+
+        private static boolean isEqual(Object left, Object right) {
+            if ( left instanceof Number && right instanceof Number ) {
+                return compare(left, right) == 0;
+            }
+            return left == null ? right == null : left.equals(right);
+        }
+
+        private static int compare(Object left, Object right) {
+            if ( left instanceof Long && right instanceof Long ) {
+                return Long.compare((Long)left, (Long)right);
+            }
+            else if ( left instanceof Number && right instanceof Number ) {
+                return Double.compare(((Number)left).doubleValue(), ((Number)right).doubleValue());
+            }
+            throw new Unevaluable("Cannot compare " + left + " and " + right);
+        }
+
+        private static Object arithmetic(char operator, Object left, Object right) {
+            if ( left instanceof Long && right instanceof Long ) {
+                long l = (Long)left;
+                long r = (Long)right;
+                switch ( operator ) {
+                    case '+':
+                        return l + r;
+                    case '-':
+                        return l - r;
+                    case '*':
+                        return l * r;
+                    default:
+                        if ( r == 0 ) {
+                            throw new Unevaluable("Division by zero");
+                        }
+                        return operator == '/' ? l / r : l % r;
+                }
+            }
+            else if ( left instanceof Number && right instanceof Number ) {
+                double l = ((Number)left).doubleValue();
+                double r = ((Number)right).doubleValue();
+                switch ( operator ) {
+                    case '+':
+                        return l + r;
+                    case '-':
+                        return l - r;
+                    case '*':
+                        return l * r;
+                    case '/':
+                        return l / r;
+                    default:
+                        return l % r;
+                }
+            }
+            throw new Unevaluable("Not a number: " + left + " " + operator + " " + right);
+        }
+
+        private boolean accept(@NotNull String token) {
+            skipWhitespace();
+            if ( !source.startsWith(token, pos) ) {
+                return false;
+            }
+            // don't take the prefix of a longer operator, e.g. '<' of '<='
+            for( String operator : OPERATORS ) {
+                if ( operator.length() > token.length() && operator.startsWith(token) && source.startsWith(operator, pos) ) {
+                    return false;
+                }
+            }
+            pos += token.length();
+            return true;
+        }
+
+        private void expect(@NotNull String token) {
+            if ( !accept(token) ) {
+                throw new Unevaluable("'" + token + "' expected at " + pos);
+            }
+        }
+
+        private void skipWhitespace() {
+            while ( pos < source.length() && Character.isWhitespace(source.charAt(pos)) ) {
+                pos++;
+            }
+        }
+
+    }
+
+}
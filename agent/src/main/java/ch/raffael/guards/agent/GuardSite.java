@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.guards.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.agent.guava.collect.ImmutableList;
+import ch.raffael.guards.definition.PerformanceImpact;
+
+
+/**
+ * A guard call site that can be relinked at runtime according to a {@link GuardPolicy}. All
+ * guard sites are registered with the {@link GuardControl}.
+ *
+ * The handle with all guards is composed once when the site is linked, subsets and handles
+ * with different sample rates are composed when needed. All relinking is done by the
+ * {@link GuardControl} while holding its lock, which is responsible for calling
+ * {@link MutableCallSite#syncAll(MutableCallSite[]) syncAll()}.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class GuardSite extends MutableCallSite {
+
+    private final GuardTarget target;
+    private final String className;
+    private final List<GuardInstance> instances;
+    private final PerformanceImpact[] impacts;
+    private final MethodHandle allGuards;
+    private final int[] linkedSampleRates;
+
+    // guarded by GuardControl's lock
+    private boolean[] enabled;
+    private int[] sampleRates;
+
+    GuardSite(@NotNull GuardTarget target, @NotNull List<GuardInstance> instances, @NotNull MethodHandle allGuards) {
+        super(allGuards);
+        this.target = target;
+        this.className = target.getMember().getDeclaringClass().getName().replace('.', '/');
+        this.instances = ImmutableList.copyOf(instances);
+        this.allGuards = allGuards;
+        impacts = new PerformanceImpact[this.instances.size()];
+        for( int i = 0; i < impacts.length; i++ ) {
+            impacts[i] = GuardDefinition.get(this.instances.get(i).getAnnotation().annotationType()).getPerformanceImpact();
+        }
+        enabled = new boolean[impacts.length];
+        Arrays.fill(enabled, true);
+        linkedSampleRates = sampleRates(GuardControl.getInstance().getPolicy());
+        sampleRates = linkedSampleRates;
+    }
+
+    @NotNull
+    String getClassName() {
+        return className;
+    }
+
+    @NotNull
+    List<GuardInstance> getInstances() {
+        return instances;
+    }
+
+    @NotNull
+    GuardTarget getGuardTarget() {
+        return target;
+    }
+
+    /**
+     * Relink this site according to the given policy, if necessary. The caller must call
+     * {@link MutableCallSite#syncAll(MutableCallSite[]) syncAll()} for all changed sites.
+     *
+     * @return  if the site has been relinked.
+     */
+    boolean relink(@NotNull GuardPolicy policy) {
+        boolean[] newEnabled = new boolean[impacts.length];
+        boolean all = true;
+        for( int i = 0; i < newEnabled.length; i++ ) {
+            newEnabled[i] = policy.isEnabled(className, instances.get(i).getAnnotation().annotationType(), impacts[i]);
+            all &= newEnabled[i];
+        }
+        int[] newSampleRates = sampleRates(policy);
+        if ( Arrays.equals(enabled, newEnabled) && Arrays.equals(sampleRates, newSampleRates) ) {
+            return false;
+        }
+        enabled = newEnabled;
+        sampleRates = newSampleRates;
+        if ( all && Arrays.equals(linkedSampleRates, newSampleRates) ) {
+            setTarget(allGuards);
+        }
+        else {
+            List<GuardInstance> enabledInstances = new ArrayList<>(instances.size());
+            for( int i = 0; i < newEnabled.length; i++ ) {
+                if ( newEnabled[i] ) {
+                    enabledInstances.add(instances.get(i));
+                }
+            }
+            setTarget(Linker.composeGuards(target, enabledInstances));
+        }
+        return true;
+    }
+
+    @NotNull
+    private int[] sampleRates(@NotNull GuardPolicy policy) {
+        Options options = GuardsAgent.getInstance().getOptions();
+        int[] rates = new int[impacts.length];
+        for( int i = 0; i < rates.length; i++ ) {
+            String guardType = instances.get(i).getAnnotation().annotationType().getName();
+            rates[i] = policy.getSampleRate(guardType, impacts[i], options.getSampleRate(guardType, impacts[i]));
+        }
+        return rates;
+    }
+
+}
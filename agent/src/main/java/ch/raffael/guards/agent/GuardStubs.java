@@ -0,0 +1,413 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+import ch.raffael.guards.agent.asm.AnnotationVisitor;
+import ch.raffael.guards.agent.asm.ClassReader;
+import ch.raffael.guards.agent.asm.ClassVisitor;
+import ch.raffael.guards.agent.asm.ClassWriter;
+import ch.raffael.guards.agent.asm.MethodVisitor;
+import ch.raffael.guards.agent.asm.Type;
+import ch.raffael.guards.agent.asm.tree.AbstractInsnNode;
+import ch.raffael.guards.agent.asm.tree.ClassNode;
+import ch.raffael.guards.agent.asm.tree.FieldInsnNode;
+import ch.raffael.guards.agent.asm.tree.IincInsnNode;
+import ch.raffael.guards.agent.asm.tree.MethodNode;
+import ch.raffael.guards.agent.asm.tree.VarInsnNode;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+import static ch.raffael.guards.agent.asm.Opcodes.*;
+
+
+/**
+ * Spins a small class for a guard with the values of the handler embedded as constants (see
+ * {@link Options#isSpinGuardStubs()}).
+ *
+ * The bytecode of the test method is copied to a static method of a VM anonymous class
+ * hosted by the handler class, which gives it the same access rights as the handler. Every
+ * `aload 0; getfield` of a final field is replaced by loading the value of that field. Values
+ * that can't be stored in the constant pool are patched into it as live objects. This only
+ * works if the test method doesn't use `this` for anything else, otherwise, there's no stub and
+ * the handler is bound to its test method as before.
+ *
+ * Stubs are shared by all guards with the same test method and the same field values.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class GuardStubs {
+
+    private static final String TEST_METHOD_NAME = "test";
+    private static final String CHECK_METHOD_NAME = "check";
+    private static final String STUB_SUFFIX = "$$GuardStub";
+    private static final String CONSTANT_PLACEHOLDER = "guards:constant:";
+
+    private static final Object UNSAFE;
+    private static final Method DEFINE_ANONYMOUS_CLASS;
+    private static final Method ENSURE_CLASS_INITIALIZED;
+    static {
+        Object unsafe = null;
+        Method defineAnonymousClass = null;
+        Method ensureClassInitialized = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            defineAnonymousClass = unsafeClass.getMethod("defineAnonymousClass", Class.class, byte[].class, Object[].class);
+            ensureClassInitialized = unsafeClass.getMethod("ensureClassInitialized", Class.class);
+        }
+        catch ( ReflectiveOperationException | RuntimeException e ) {
+            LOG.log(Level.FINE, "VM anonymous classes not available, guard stubs disabled", e);
+            unsafe = null;
+        }
+        UNSAFE = unsafe;
+        DEFINE_ANONYMOUS_CLASS = defineAnonymousClass;
+        ENSURE_CLASS_INITIALIZED = ensureClassInitialized;
+    }
+
+    private static final ClassValue<GuardStubs> STUBS = new ClassValue<GuardStubs>() {
+        @Override
+        protected GuardStubs computeValue(Class<?> type) {
+            return new GuardStubs(type);
+        }
+    };
+
+    private final Class<?> handlerClass;
+    private final ConcurrentMap<Method, Template> templates = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<Object>, MethodHandle> stubs = new ConcurrentHashMap<>();
+    private volatile byte[] classFile;
+
+    private GuardStubs(@NotNull Class<?> handlerClass) {
+        this.handlerClass = handlerClass;
+    }
+
+    static boolean isAvailable() {
+        return UNSAFE != null;
+    }
+
+    /**
+     * Get a stub for the given test method of the given handler.
+     *
+     * @return A method handle of the same type as the test method bound to the handler or
+     *         `null`, if no stub can be generated for the test method.
+     */
+    @Nullable
+    static MethodHandle stub(@NotNull Method testMethod, @NotNull Object handler) {
+        if ( !isAvailable() || Modifier.isStatic(testMethod.getModifiers()) || testMethod.getDeclaringClass() != handler.getClass() ) {
+            return null;
+        }
+        return STUBS.get(handler.getClass()).forHandler(testMethod, handler);
+    }
+
+    @Nullable
+    private MethodHandle forHandler(@NotNull Method testMethod, @NotNull Object handler) {
+        Template template = templates.get(testMethod);
+        if ( template == null ) {
+            template = analyze(testMethod);
+            Template prev = templates.putIfAbsent(testMethod, template);
+            if ( prev != null ) {
+                template = prev;
+            }
+        }
+        if ( template.fields == null ) {
+            return null;
+        }
+        List<Object> key = new ArrayList<>(template.fields.size() + 1);
+        key.add(testMethod);
+        try {
+            for( Field field : template.fields ) {
+                key.add(field.get(handler));
+            }
+        }
+        catch ( IllegalAccessException e ) {
+            LOG.log(Level.WARNING, "Cannot read fields of handler " + handler, e);
+            return null;
+        }
+        MethodHandle stub = stubs.get(key);
+        if ( stub == null ) {
+            stub = spin(template, key.subList(1, key.size()));
+            if ( stub == null ) {
+                return null;
+            }
+            MethodHandle prev = stubs.putIfAbsent(key, stub);
+            if ( prev != null ) {
+                stub = prev;
+            }
+        }
+        return stub;
+    }
+
+    /**
+     * Check whether the test method can be turned into a stub and find the fields it reads.
+     */
+    @NotNull
+    private Template analyze(@NotNull Method testMethod) {
+        byte[] bytecode = classFile();
+        if ( bytecode == null ) {
+            return new Template(testMethod, null);
+        }
+        String desc = Type.getMethodDescriptor(testMethod);
+        ClassNode classNode = new ClassNode();
+        new ClassReader(bytecode).accept(classNode, ClassReader.SKIP_DEBUG);
+        for( MethodNode method : classNode.methods ) {
+            if ( method.name.equals(testMethod.getName()) && method.desc.equals(desc) ) {
+                return new Template(testMethod, findFields(method));
+            }
+        }
+        return new Template(testMethod, null);
+    }
+
+    /**
+     * Find the fields read by `aload 0; getfield`.
+     *
+     * @return The fields in the order of the `getfield` instructions, `null` if `this` is used
+     *         in any other way or a field isn't final.
+     */
+    @Nullable
+    private List<Field> findFields(@NotNull MethodNode method) {
+        List<Field> fields = new ArrayList<>();
+        for( AbstractInsnNode insn = method.instructions.getFirst(); insn != null; insn = insn.getNext() ) {
+            if ( insn instanceof IincInsnNode && ((IincInsnNode)insn).var == 0 ) {
+                return null;
+            }
+            if ( !(insn instanceof VarInsnNode) || ((VarInsnNode)insn).var != 0 ) {
+                continue;
+            }
+            if ( insn.getOpcode() != ALOAD || insn.getNext() == null || insn.getNext().getOpcode() != GETFIELD ) {
+                return null;
+            }
+            Field field = findField(((FieldInsnNode)insn.getNext()).name);
+            if ( field == null ) {
+                return null;
+            }
+            fields.add(field);
+            insn = insn.getNext();
+        }
+        return fields;
+    }
+
+    @Nullable
+    private Field findField(@NotNull String name) {
+        for( Class<?> type = handlerClass; type != null; type = type.getSuperclass() ) {
+            try {
+                Field field = type.getDeclaredField(name);
+                if ( !Modifier.isFinal(field.getModifiers()) || Modifier.isStatic(field.getModifiers()) ) {
+                    return null;
+                }
+                field.setAccessible(true);
+                return field;
+            }
+            catch ( NoSuchFieldException e ) {
+                // try the superclass
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private byte[] classFile() {
+        byte[] bytecode = classFile;
+        if ( bytecode != null ) {
+            return bytecode;
+        }
+        String resource = Type.getInternalName(handlerClass) + ".class";
+        ClassLoader loader = handlerClass.getClassLoader();
+        try ( InputStream input = loader == null ? ClassLoader.getSystemResourceAsStream(resource) : loader.getResourceAsStream(resource) ) {
+            if ( input == null ) {
+                LOG.fine("Cannot find class file of handler " + handlerClass.getName());
+                return null;
+            }
+            bytecode = new ClassReader(input).b;
+            classFile = bytecode;
+            return bytecode;
+        }
+        catch ( IOException e ) {
+            LOG.log(Level.FINE, "Cannot read class file of handler " + handlerClass.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Generate the stub class with the given field values.
+     */
+    @Nullable
+    private MethodHandle spin(@NotNull final Template template, @NotNull final List<Object> values) {
+        final String hostName = Type.getInternalName(handlerClass);
+        final String stubName = hostName + STUB_SUFFIX;
+        final String testDesc = Type.getMethodDescriptor(template.method);
+        final String staticDesc = "(L" + hostName + ";" + testDesc.substring(1);
+        final ClassWriter classWriter = new ClassWriter(0);
+        final Map<Integer, Object> patches = new HashMap<>();
+        ClassReader classReader = new ClassReader(classFile);
+        classWriter.visit(classReader.readShort(6), ACC_PUBLIC | ACC_FINAL | ACC_SUPER, stubName, null, "java/lang/Object", null);
+        classReader.accept(new ClassVisitor(ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if ( !name.equals(template.method.getName()) || !desc.equals(testDesc) ) {
+                    return null;
+                }
+                MethodVisitor mv = classWriter.visitMethod(ACC_PRIVATE | ACC_STATIC, TEST_METHOD_NAME, staticDesc, null, null);
+                return new ConstantFieldsAdapter(mv, values, classWriter, patches);
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.EXPAND_FRAMES);
+        writeCheckMethod(classWriter, stubName, staticDesc, Type.getType(testDesc));
+        classWriter.visitEnd();
+        byte[] bytecode = classWriter.toByteArray();
+        Object[] cpPatches = null;
+        if ( !patches.isEmpty() ) {
+            // u4 magic, u2 minor, u2 major, u2 constant_pool_count
+            cpPatches = new Object[((bytecode[8] & 0xff) << 8) | (bytecode[9] & 0xff)];
+            for( Map.Entry<Integer, Object> patch : patches.entrySet() ) {
+                cpPatches[patch.getKey()] = patch.getValue();
+            }
+        }
+        try {
+            Class<?> stubClass = (Class<?>)DEFINE_ANONYMOUS_CLASS.invoke(UNSAFE, handlerClass, bytecode, cpPatches);
+            ENSURE_CLASS_INITIALIZED.invoke(UNSAFE, stubClass);
+            Method check = stubClass.getDeclaredMethod(CHECK_METHOD_NAME, template.method.getParameterTypes());
+            check.setAccessible(true);
+            return MethodHandles.publicLookup().unreflect(check);
+        }
+        catch ( ReflectiveOperationException | LinkageError e ) {
+            LOG.log(Level.WARNING, "Cannot define guard stub for " + template.method + ", falling back to the handler", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the entry point of the stub: It has the signature of the test method and calls the
+     * copied test method with `null` for `this`.
+     */
+    private static void writeCheckMethod(@NotNull ClassWriter classWriter, @NotNull String stubName, @NotNull String staticDesc, @NotNull Type testType) {
+        String checkDesc = testType.getDescriptor();
+        MethodVisitor mv = classWriter.visitMethod(ACC_PUBLIC | ACC_STATIC, CHECK_METHOD_NAME, checkDesc, null, null);
+        mv.visitCode();
+        mv.visitInsn(ACONST_NULL);
+        int local = 0;
+        for( Type argument : testType.getArgumentTypes() ) {
+            mv.visitVarInsn(argument.getOpcode(ILOAD), local);
+            local += argument.getSize();
+        }
+        mv.visitMethodInsn(INVOKESTATIC, stubName, TEST_METHOD_NAME, staticDesc, false);
+        mv.visitInsn(testType.getReturnType().getOpcode(IRETURN));
+        mv.visitMaxs(Math.max(local + 1, testType.getReturnType().getSize()), local);
+        mv.visitEnd();
+    }
+
+    /**
+     * Replaces `aload 0; getfield` by the value of the field.
+     */
+    private static final class ConstantFieldsAdapter extends MethodVisitor {
+
+        private final List<Object> values;
+        private final ClassWriter classWriter;
+        private final Map<Integer, Object> patches;
+        private int nextField = 0;
+        private boolean loadThis = false;
+
+        private ConstantFieldsAdapter(@NotNull MethodVisitor mv, @NotNull List<Object> values, @NotNull ClassWriter classWriter, @NotNull Map<Integer, Object> patches) {
+            super(ASM5, mv);
+            this.values = values;
+            this.classWriter = classWriter;
+            this.patches = patches;
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            if ( opcode == ALOAD && var == 0 ) {
+                // always followed by getfield, see findFields()
+                loadThis = true;
+                return;
+            }
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            if ( loadThis ) {
+                loadThis = false;
+                pushConstant(values.get(nextField++), Type.getType(desc));
+                return;
+            }
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        private void pushConstant(@Nullable Object value, @NotNull Type type) {
+            if ( value == null ) {
+                super.visitInsn(ACONST_NULL);
+            }
+            else if ( value instanceof Boolean ) {
+                super.visitInsn((Boolean)value ? ICONST_1 : ICONST_0);
+            }
+            else if ( value instanceof Character ) {
+                super.visitLdcInsn((int)(Character)value);
+            }
+            else if ( value instanceof Byte || value instanceof Short ) {
+                super.visitLdcInsn(((Number)value).intValue());
+            }
+            else if ( type.getSort() != Type.OBJECT && type.getSort() != Type.ARRAY || value instanceof String ) {
+                // int, long, float, double
+                super.visitLdcInsn(value);
+            }
+            else {
+                // patched into the constant pool by defineAnonymousClass()
+                String placeholder = CONSTANT_PLACEHOLDER + patches.size();
+                patches.put(classWriter.newConst(placeholder), value);
+                super.visitLdcInsn(placeholder);
+                super.visitTypeInsn(CHECKCAST, type.getInternalName());
+            }
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+            return null;
+        }
+    }
+
+    private static final class Template {
+        private final Method method;
+        @Nullable
+        private final List<Field> fields;
+        private Template(@NotNull Method method, @Nullable List<Field> fields) {
+            this.method = method;
+            this.fields = fields;
+        }
+    }
+
+}
@@ -17,6 +17,7 @@
 package ch.raffael.guards.agent;
 
 import java.lang.annotation.Annotation;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 import ch.raffael.guards.GuardsInternalError;
 import ch.raffael.guards.Sensitive;
@@ -28,12 +29,17 @@ import ch.raffael.guards.agent.guava.reflect.TypeToken;
  */
 final class GuardTarget {
 
+    private static final AtomicLongFieldUpdater<GuardTarget> VIOLATION_COUNT =
+            AtomicLongFieldUpdater.newUpdater(GuardTarget.class, "violationCount");
+
     private final GuardableMember member;
     private final int parameterIndex;
     private final String parameterName;
     private final boolean sensitive;
     private final Class<?> valueType;
     private final TypeToken<?> genericValueType;
+    // only counted in report-only mode, see ViolationReporter
+    private volatile long violationCount = 0;
 
     GuardTarget(GuardableMember member, int parameterIndex, String parameterName) {
         this.member = member;
@@ -102,6 +108,14 @@ final class GuardTarget {
         return genericValueType;
     }
 
+    long countViolation() {
+        return VIOLATION_COUNT.incrementAndGet(this);
+    }
+
+    long getViolationCount() {
+        return violationCount;
+    }
+
     @Override
     public boolean equals(Object o) {
         if ( this == o ) {
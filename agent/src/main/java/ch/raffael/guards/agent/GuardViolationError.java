@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.io.ObjectStreamException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+
+import ch.raffael.guards.ContractViolationError;
+import ch.raffael.guards.NotNull;
+
+
+/**
+ * A contract violation that builds its message and trims its stack trace only when needed
+ * (see {@link Options#isLazyViolations()}).
+ *
+ * The JVM captures the stack trace natively when the error is created, it's only
+ * materialised as `StackTraceElement`s when it's requested, so the trimming is done in
+ * {@link #getStackTrace()}, {@link #printStackTrace(PrintStream) printStackTrace()} and when
+ * serialising. A violation that is caught and handled never pays for either.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class GuardViolationError extends ContractViolationError {
+
+    private static final long serialVersionUID = 1L;
+
+    // guarded by this; message and stack trace are complete when serialised
+    private transient GuardInstance instance;
+    private transient Object value;
+    private String message;
+    private boolean trimmed = false;
+
+    GuardViolationError(@NotNull GuardInstance instance, Object value) {
+        this.instance = instance;
+        this.value = value;
+    }
+
+    @Override
+    public synchronized String getMessage() {
+        if ( message == null ) {
+            message = instance.violationMessage(value);
+            // the value isn't needed anymore, don't keep it alive
+            value = null;
+        }
+        return message;
+    }
+
+    @Override
+    public StackTraceElement[] getStackTrace() {
+        trimStackTrace();
+        return super.getStackTrace();
+    }
+
+    @Override
+    public void printStackTrace(PrintStream s) {
+        trimStackTrace();
+        super.printStackTrace(s);
+    }
+
+    @Override
+    public void printStackTrace(PrintWriter s) {
+        trimStackTrace();
+        super.printStackTrace(s);
+    }
+
+    /**
+     * Report the public type, not the implementation.
+     */
+    @Override
+    public String toString() {
+        return ContractViolationError.class.getName() + ": " + getLocalizedMessage();
+    }
+
+    private synchronized void trimStackTrace() {
+        if ( !trimmed ) {
+            trimmed = true;
+            StackTraceElement[] stackTrace = super.getStackTrace();
+            StackTraceElement[] trimmedStackTrace = GuardInstance.trimStackTrace(stackTrace, instance.getTarget().getParameterIndex());
+            if ( trimmedStackTrace != stackTrace ) {
+                setStackTrace(trimmedStackTrace);
+            }
+        }
+    }
+
+    /**
+     * Complete message and stack trace before serialising, `Throwable`'s fields are written
+     * before `writeObject()` of this class would be called.
+     */
+    private Object writeReplace() throws ObjectStreamException {
+        getMessage();
+        trimStackTrace();
+        return this;
+    }
+
+}
@@ -22,7 +22,6 @@ import java.io.PrintWriter;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
-import java.lang.instrument.UnmodifiableClassException;
 import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.URL;
@@ -33,8 +32,13 @@ import java.security.ProtectionDomain;
 import java.util.Map;
 import java.util.Properties;
 import java.util.ServiceLoader;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
@@ -44,7 +48,6 @@ import ch.raffael.guards.NoNulls;
 import ch.raffael.guards.NotNull;
 import ch.raffael.guards.Nullable;
 import ch.raffael.guards.agent.asm.ClassReader;
-import ch.raffael.guards.agent.asm.ClassWriter;
 import ch.raffael.guards.agent.asm.util.TraceClassVisitor;
 import ch.raffael.guards.agent.guava.base.Joiner;
 import ch.raffael.guards.agent.guava.collect.ImmutableBiMap;
@@ -76,13 +79,17 @@ public class GuardsAgent {
 
     private final static GuardsAgent INSTANCE = new GuardsAgent();
 
+    private static final long BACKGROUND_KEEP_ALIVE_SECONDS = 30;
+
     private final Transformer transformer = new Transformer();
     private final AtomicReference<Instrumentation> instrumentation = new AtomicReference<>(null);
     private volatile Options options = new Options();
 
+    private final Object transformCacheLock = new Object();
+    private volatile CacheHolder transformCache = null;
+
     private final Object backgroundLock = new Object();
-    private Thread backgroundThread = null;
-    private final BlockingQueue<Runnable> backgroundQueue = new LinkedBlockingQueue<>();
+    private volatile ThreadPoolExecutor backgroundExecutor = null;
 
     private GuardsAgent() {
     }
@@ -95,7 +102,40 @@ public class GuardsAgent {
         if ( !this.instrumentation.compareAndSet(null, instrumentation) ) {
             throw new IllegalStateException("Guards agent already initialized");
         }
+        // initialize Indy before the transformer is active: its static initializer loads
+        // ch.raffael.guards.* classes, which must not happen while one of those is being
+        // transformed (this used to be hidden by the first transformed class being an
+        // application class, with the transform cache, that's not guaranteed anymore)
+        try {
+            Class.forName(Indy.class.getName(), true, GuardsAgent.class.getClassLoader());
+        }
+        catch ( ClassNotFoundException e ) {
+            throw new IllegalStateException("Cannot initialize " + Indy.class.getName(), e);
+        }
         instrumentation.addTransformer(transformer, true);
+        if ( options.isGuardControl() ) {
+            GuardControl.getInstance().registerMBean();
+        }
+        if ( options.getPolicyFile() != null ) {
+            new PolicyFile(options.getPolicyFile(), GuardControl.getInstance()).start();
+        }
+        if ( options.getCpuBudget() > 0 ) {
+            GuardBudget.getInstance().start(options);
+        }
+        if ( options.isDormant() ) {
+            GuardActivation.getInstance().registerMBean();
+        }
+        if ( options.isReportOnly() ) {
+            ViolationReporter.getInstance();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(GuardsAgent.class.getName() + " Shutdown") {
+            @Override
+            public void run() {
+                shutdownBackgroundExecutor();
+                ViolationReporter.flush();
+                closeTransformCache();
+            }
+        });
         LOG.info(String.format("Guards Agent installed: Version %s (branch:%s; commit:%s(clean:%s); built:%s)",
                 VERSION_INFO.get("version"),
                 VERSION_INFO.get("branch"),
@@ -122,10 +162,52 @@ public class GuardsAgent {
         this.options = options;
     }
 
+    @Nullable
+    TransformCache getTransformCache(@NotNull Options options) {
+        CacheHolder holder = transformCache;
+        if ( holder == null || holder.options != options ) {
+            synchronized ( transformCacheLock ) {
+                holder = transformCache;
+                if ( holder == null || holder.options != options ) {
+                    if ( holder != null && holder.cache != null ) {
+                        holder.cache.close();
+                    }
+                    holder = new CacheHolder(options, TransformCache.open(options, versionFingerprint()));
+                    transformCache = holder;
+                }
+            }
+        }
+        return holder.cache;
+    }
+
+    private void closeTransformCache() {
+        synchronized ( transformCacheLock ) {
+            CacheHolder holder = transformCache;
+            if ( holder != null && holder.cache != null ) {
+                holder.cache.close();
+            }
+        }
+    }
+
+    @NotNull
+    static String versionFingerprint() {
+        return VERSION_INFO.get("version") + ":" + VERSION_INFO.get("commit") + ":" + VERSION_INFO.get("time");
+    }
+
     public boolean isInstalled() {
         return instrumentation.get() != null;
     }
 
+    @Nullable
+    Instrumentation getInstrumentation() {
+        return instrumentation.get();
+    }
+
+    @NotNull
+    Transformer getTransformer() {
+        return transformer;
+    }
+
     public void configure(@Nullable @NoNulls OptionsProvider... providers) {
         OptionsBuilder builder = new OptionsBuilder();
         ServiceLoader<OptionsProvider> services = ServiceLoader.load(OptionsProvider.class);
@@ -148,19 +230,11 @@ public class GuardsAgent {
 
     public static void agentmain(String agentArgs, Instrumentation instrumentation) {
         main(agentArgs, instrumentation);
-        LOG.info("Retransforming all classes");
-        for( Class<?> c : instrumentation.getAllLoadedClasses() ) {
-            Transformer transformer = getInstance().transformer;
-            if ( transformer.isTransformable(c) ) {
-                try {
-                    instrumentation.retransformClasses(c);
-                }
-                catch ( UnmodifiableClassException e ) {
-                    LOG.log(Level.WARNING, "Cannot retransform " + c, e);
-                }
-            }
+        if ( getInstance().getOptions().isDormant() ) {
+            // the loaded classes will be retransformed when their package is activated
+            return;
         }
-        LOG.info("Retransformation done");
+        new Retransformer(instrumentation, getInstance().transformer, getInstance().getOptions()).retransformAll();
     }
 
     private static void main(String agentArgs, Instrumentation instrumentation) {
@@ -231,60 +305,68 @@ public class GuardsAgent {
         return jarFile.toString();
     }
 
-    void submitToBackground(Runnable runnable) {
-        synchronized ( backgroundLock ) {
-            if ( backgroundThread == null || !backgroundThread.isAlive()) {
-                Runnable loop = new Runnable() {
+    /**
+     * Run a task in the background. The background executor is created on first use with the
+     * then current options. Background tasks are optimisations, if the queue is full, the task
+     * will be dropped.
+     */
+    void submitToBackground(@NotNull Runnable runnable) {
+        ThreadPoolExecutor executor = backgroundExecutor;
+        if ( executor == null ) {
+            synchronized ( backgroundLock ) {
+                executor = backgroundExecutor;
+                if ( executor == null ) {
+                    executor = createBackgroundExecutor(getOptions());
+                    backgroundExecutor = executor;
+                }
+            }
+        }
+        try {
+            executor.execute(runnable);
+        }
+        catch ( RejectedExecutionException e ) {
+            LOG.fine("Background queue full or shut down, dropping task " + runnable);
+        }
+    }
+
+    @NotNull
+    private static ThreadPoolExecutor createBackgroundExecutor(@NotNull Options options) {
+        int threads = Math.max(1, options.getBackgroundThreads());
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                BACKGROUND_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, options.getBackgroundQueueSize())),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
                     @Override
-                    public void run() {
-                        try {
-                            Runnable runnable = null;
-                            try {
-                                runnable = backgroundQueue.take();
-                            }
-                            catch ( InterruptedException e ) {
-                                // ignore
-                            }
-                            if ( runnable != null ) {
-                                //Thread.currentThread().setDaemon(false);
-                                try {
-                                    runnable.run();
-                                }
-                                finally {
-                                    //Thread.currentThread().setDaemon(true);
-                                }
-                            }
-                        }
-                        catch ( ThreadDeath e ) {
-                            throw e;
-                        }
-                        catch ( Throwable e ) {
-                            Thread thread = Thread.currentThread();
-                            Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
-                            if ( handler != null ) {
-                                handler.uncaughtException(thread, e);
-                            }
-                            else {
-                                e.printStackTrace(System.err);
-                            }
-                        }
+                    public Thread newThread(@NotNull Runnable runnable) {
+                        Thread thread = new Thread(runnable, GuardsAgent.class.getName() + " Background Tasks #" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
                     }
-                };
-                backgroundThread = new Thread(loop, GuardsAgent.class.getName() + " Background Tasks");
-                backgroundThread.setDaemon(true);
-                backgroundThread.start();
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private void shutdownBackgroundExecutor() {
+        synchronized ( backgroundLock ) {
+            if ( backgroundExecutor != null ) {
+                backgroundExecutor.shutdownNow();
             }
         }
-        backgroundQueue.offer(runnable);
     }
 
-    class Transformer implements ClassFileTransformer {
+    private static final class CacheHolder {
+        private final Options options;
+        private final TransformCache cache;
+        private CacheHolder(Options options, TransformCache cache) {
+            this.options = options;
+            this.cache = cache;
+        }
+    }
 
-        private final String[] BUILTIN_EXCLUDES = {
-                "java/", "sun/", "jdk/",
-                "ch/raffael/guards/agent/"
-                //, "ch/raffael/guards/definition/"
-        };
+    class Transformer implements ClassFileTransformer {
 
         boolean isTransformable(ClassLoader loader, String internalName) {
             if ( loader == null ) {
@@ -297,12 +379,7 @@ public class GuardsAgent {
                 // todo: Add an option for this
                 return false;
             }
-            for( String builtExclude : BUILTIN_EXCLUDES ) {
-                if ( internalName.startsWith(builtExclude) ) {
-                    return false;
-                }
-            }
-            return true;
+            return getOptions().getClassFilter().isTransformable(internalName);
         }
 
         boolean isTransformable(Class<?> c) {
@@ -319,28 +396,57 @@ public class GuardsAgent {
             if ( !isTransformable(loader, className) ) {
                 return null;
             }
-            try {
-                final Options options = getInstance().getOptions();
-                ClassReader classReader = new ClassReader(classfileBuffer);
-                // DO NOT USE CALCULATE_FRAMES! It tries to load classes! #BYTECODE-UPGRADE
-                ClassWriter classWriter = new ClassWriter(0);
-                Instrumenter instrumenter = new Instrumenter(options, loader, classWriter);
-                // #BYTECODE-UPGRADE: EXPAND_FRAMES is set for Analyzer adapter
-                classReader.accept(instrumenter, ClassReader.EXPAND_FRAMES);
-                final byte[] instrumentedBytecode = classWriter.toByteArray();
-                asmDump(options, className, instrumentedBytecode);
-                return instrumentedBytecode;
+            Options options = getInstance().getOptions();
+            if ( !options.isXInstrumentAll() && !ConstantPoolScanner.mayContainGuards(classfileBuffer) ) {
+                return null;
             }
-            catch ( CancelException e ) {
-                //System.out.println("Cancel: " + className);
+            if ( options.isDormant() && !GuardActivation.getInstance().recordCandidate(className) ) {
+                // returning null on retransformation restores the original bytecode
                 return null;
             }
+            TransformCache cache = getInstance().getTransformCache(options);
+            if ( classBeingRedefined != null && options.isUncheckedInternalCalls() && !options.isDormant() && !Instrumenter.hasTwins(classBeingRedefined) ) {
+                // retransforming can't add methods, the class must keep the shape it was loaded with
+                options = new OptionsBuilder(options).withUncheckedInternalCalls(false).toOptions();
+                cache = null;
+            }
+            Set<String> guardAnnotations = null;
+            if ( cache != null ) {
+                guardAnnotations = Instrumenter.guardAnnotations(loader, classfileBuffer);
+                byte[] cached = cache.lookup(className, classfileBuffer, guardAnnotations);
+                if ( cached != null ) {
+                    if ( cached == TransformCache.UNCHANGED ) {
+                        return null;
+                    }
+                    prelink(options, loader, className, cached);
+                    return cached;
+                }
+            }
+            try {
+                byte[] instrumentedBytecode = Instrumenter.instrument(options, loader, classfileBuffer);
+                if ( instrumentedBytecode != null ) {
+                    asmDump(options, className, instrumentedBytecode);
+                }
+                if ( cache != null ) {
+                    cache.store(className, classfileBuffer, guardAnnotations, instrumentedBytecode);
+                }
+                if ( instrumentedBytecode != null ) {
+                    prelink(options, loader, className, instrumentedBytecode);
+                }
+                return instrumentedBytecode;
+            }
             catch ( Throwable e ) {
                 e.printStackTrace();
                 throw e;
             }
         }
 
+        private void prelink(@NotNull Options options, @NotNull ClassLoader loader, @NotNull String className, @NotNull byte[] instrumentedBytecode) {
+            if ( options.isPrelink() && !options.isXNopMode() && Prelinker.isAvailable() ) {
+                submitToBackground(new Prelinker(loader, className, instrumentedBytecode));
+            }
+        }
+
         private void asmDump(@NotNull Options options, @NotNull String className, @NotNull byte[] instrumentedBytecode) {
             try {
                 if ( !options.isDump() || options.getDumpPath() == null || options.getDumpFormats().isEmpty() ) {
@@ -16,6 +16,7 @@
 
 package ch.raffael.guards.agent;
 
+import java.lang.annotation.Annotation;
 import java.lang.invoke.CallSite;
 import java.lang.invoke.ConstantCallSite;
 import java.lang.invoke.MethodHandle;
@@ -56,6 +57,20 @@ public final class Indy {
                             getType(String.class)
                     }).getDescriptor());
 
+    static final Handle BOOTSTRAP_ARGUMENTS_ASM_HANDLE = new Handle(
+            Opcodes.H_INVOKESTATIC, getType(Indy.class).getInternalName(), "bootstrapArguments",
+            new Method("bootstrapArguments",
+                    getType(CallSite.class),
+                    new Type[] {
+                            getType(MethodHandles.Lookup.class),
+                            getType(String.class),
+                            getType(MethodType.class),
+                            getType(String.class),
+                            getType(String.class),
+                            getType(String.class),
+                            getType(String.class)
+                    }).getDescriptor());
+
     //private static final MethodHandle NOP_HANDLE =
     //        MethodHandles.constant(Void.class, null).asType(methodType(void.class));
     private static final MethodHandle DEDICATED_NOP_HANDLE;
@@ -63,6 +78,7 @@ public final class Indy {
     private static final MethodHandle ILLEGAL_GUARD_HANDLE;
     private static final MethodHandle GUARD_NOT_APPLICABLE_HANDLE;
     static final MethodHandle GUARD_VIOLATION_HANDLE;
+    static final MethodHandle COUNT_REPORTED_VIOLATION_HANDLE;
     static {
         try {
             MethodHandles.Lookup lookup = MethodHandles.lookup();
@@ -73,6 +89,7 @@ public final class Indy {
             GUARD_NOT_APPLICABLE_HANDLE = lookup.findStatic(Indy.class, "guardNotApplicable",
                     methodType(void.class, String.class));
             GUARD_VIOLATION_HANDLE = lookup.findVirtual(GuardInstance.class, "guardViolation", methodType(void.class, Object.class));
+            COUNT_REPORTED_VIOLATION_HANDLE = lookup.findVirtual(GuardInstance.class, "countReportedViolation", methodType(boolean.class));
         }
         catch ( NoSuchMethodException | IllegalAccessException e ) {
             throw new ExceptionInInitializerError(e);
@@ -151,10 +168,47 @@ public final class Indy {
     @NotNull
     static MethodHandle prependGuardMethod(@NotNull MethodHandle guardMethod, @NotNull GuardInstance instance, @Nullable MethodHandle prependTo) {
         Class<?> type = instance.getTarget().getValueType();
+        MethodHandle test = guardMethod.asType(methodType(boolean.class, type));
+        Class<? extends Annotation> guardType = instance.getAnnotation().annotationType();
+        Options options = GuardsAgent.getInstance().getOptions();
+        int sampleRate = GuardControl.getSampleRate(options, guardType, GuardDefinition.get(guardType).getPerformanceImpact());
+        if ( sampleRate > 1 ) {
+            // invocations that aren't sampled pass without calling the test
+            test = MethodHandles.guardWithTest(
+                    dropArguments(Sampler.sampleHandle(sampleRate, options.getSamplingMode()), 0, type),
+                    test,
+                    alwaysTrueHandle(type));
+        }
+        MethodHandle next = prependTo == null ? nopHandle(type) : prependTo;
         return MethodHandles.guardWithTest(
-                guardMethod.asType(methodType(boolean.class, type)),
-                prependTo == null ? nopHandle(type) : prependTo,
-                GUARD_VIOLATION_HANDLE.bindTo(instance).asType(methodType(void.class, type)));
+                test,
+                next,
+                violationHandle(instance, type, options, next));
+    }
+
+    /**
+     * The handle reporting a violation of the given guard instance. In report-only mode, it
+     * continues with the remaining guards (`next`) after reporting.
+     */
+    @NotNull
+    static MethodHandle violationHandle(@NotNull GuardInstance instance, @NotNull Class<?> type, @NotNull Options options, @NotNull MethodHandle next) {
+        MethodHandle violation = GUARD_VIOLATION_HANDLE.bindTo(instance).asType(methodType(void.class, type));
+        if ( !options.isReportOnly() ) {
+            return violation;
+        }
+        if ( type.isPrimitive() ) {
+            // count repeated violations without boxing the value
+            violation = MethodHandles.guardWithTest(
+                    dropArguments(COUNT_REPORTED_VIOLATION_HANDLE.bindTo(instance), 0, type),
+                    nopHandle(type),
+                    violation);
+        }
+        return MethodHandles.foldArguments(next, violation);
+    }
+
+    @NotNull
+    static Linker linker(@NotNull Class<?> type) {
+        return LINKERS.get(type);
     }
 
     public static CallSite bootstrap(MethodHandles.Lookup caller, String ignoredName, MethodType type, String targetMethodName, String targetMethodDescriptor, int parameterIndex, String parameterName) {
@@ -164,7 +218,23 @@ public final class Indy {
             return new ConstantCallSite(nopHandle(type.parameterType(0)));
         }
         else {
-            return LINKERS.get(caller.lookupClass()).bootstrap(caller, type, targetMethodName, targetMethodDescriptor, parameterIndex, parameterName);
+            return linker(caller.lookupClass()).bootstrap(caller, type, targetMethodName, targetMethodDescriptor, parameterIndex, parameterName);
+        }
+    }
+
+    /**
+     * Bootstrap a call site checking several arguments.
+     *
+     * @param parameterIndexes The comma separated indexes of the arguments.
+     * @param parameterNames   The comma separated names of the arguments, empty if unknown.
+     */
+    public static CallSite bootstrapArguments(MethodHandles.Lookup caller, String ignoredName, MethodType type, String targetMethodName, String targetMethodDescriptor, String parameterIndexes, String parameterNames) {
+        assert type.returnType() == void.class;
+        if ( GuardsAgent.getInstance().getOptions().isXNopMode() ) {
+            return new ConstantCallSite(dropArguments(nopHandle(null), 0, type.parameterList()));
+        }
+        else {
+            return linker(caller.lookupClass()).bootstrapArguments(caller, type, targetMethodName, targetMethodDescriptor, parameterIndexes, parameterNames);
         }
     }
 
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.util.List;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+import ch.raffael.guards.agent.asm.Label;
+import ch.raffael.guards.agent.asm.MethodVisitor;
+import ch.raffael.guards.agent.asm.Type;
+import ch.raffael.guards.agent.asm.tree.AnnotationNode;
+import ch.raffael.guards.definition.PerformanceImpact;
+
+import static ch.raffael.guards.agent.asm.Opcodes.BIPUSH;
+import static ch.raffael.guards.agent.asm.Opcodes.DUP;
+import static ch.raffael.guards.agent.asm.Opcodes.DUP2;
+import static ch.raffael.guards.agent.asm.Opcodes.ICONST_0;
+import static ch.raffael.guards.agent.asm.Opcodes.IFGT;
+import static ch.raffael.guards.agent.asm.Opcodes.IFLE;
+import static ch.raffael.guards.agent.asm.Opcodes.IFLT;
+import static ch.raffael.guards.agent.asm.Opcodes.IFNULL;
+import static ch.raffael.guards.agent.asm.Opcodes.IF_ICMPGT;
+import static ch.raffael.guards.agent.asm.Opcodes.IF_ICMPLT;
+import static ch.raffael.guards.agent.asm.Opcodes.ILOAD;
+import static ch.raffael.guards.agent.asm.Opcodes.LCMP;
+import static ch.raffael.guards.agent.asm.Opcodes.LCONST_0;
+import static ch.raffael.guards.agent.asm.Opcodes.SIPUSH;
+
+
+/**
+ * The built-in guards of a value that can be checked directly in the bytecode (see
+ * {@link Options#isInlineGuards()}).
+ *
+ * The guards are recognised by their descriptors only, no classes are loaded. The range guards
+ * are combined into one range, so there are at most two compares for a primitive value and one
+ * null check for a reference.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class InlineGuards {
+
+    /**
+     * Appended to the name of the `invokedynamic` instructions reporting violations of inlined
+     * guards. These call sites are never prelinked.
+     */
+    static final String VIOLATION_SUFFIX = ":violation";
+
+    private static final String NOT_NULL = "Lch/raffael/guards/NotNull;";
+    private static final String MIN = "Lch/raffael/guards/Min;";
+    private static final String MAX = "Lch/raffael/guards/Max;";
+    private static final String UNSIGNED = "Lch/raffael/guards/Unsigned;";
+    private static final String POSITIVE = "Lch/raffael/guards/Positive;";
+
+    private final Type type;
+    private final boolean notNull;
+    private final long min;
+    private final long max;
+
+    private InlineGuards(@NotNull Type type, boolean notNull, long min, long max) {
+        this.type = type;
+        this.notNull = notNull;
+        this.min = min;
+        this.max = max;
+    }
+
+    @NotNull
+    Type getType() {
+        return type;
+    }
+
+    /**
+     * Check whether the options allow inlining guards at all.
+     */
+    static boolean isEnabled(@NotNull Options options) {
+        return options.isInlineGuards()
+                && !options.isGuardControl()
+                && options.getCpuBudget() <= 0
+                && options.getCanaryInvocations() <= 0
+                && !options.isXNopMode();
+    }
+
+    /**
+     * Get the inlined guards for a value.
+     *
+     * @param annotations The runtime visible annotations of the value.
+     *
+     * @return The inline guards or `null`, if the value has guards that can't be inlined.
+     */
+    @Nullable
+    static InlineGuards forValue(@NotNull Options options, @NotNull GuardAnnotationResolver guardResolver,
+                                 @NotNull Type type, @Nullable List<AnnotationNode> annotations) {
+        if ( annotations == null || !isEnabled(options) ) {
+            return null;
+        }
+        boolean reference = type.getSort() == Type.OBJECT || type.getSort() == Type.ARRAY;
+        long typeMin = typeMin(type);
+        long typeMax = typeMax(type);
+        if ( !reference && typeMin == typeMax ) {
+            // not an integral type
+            return null;
+        }
+        boolean notNull = false;
+        long min = typeMin;
+        long max = typeMax;
+        boolean any = false;
+        for( AnnotationNode annotation : annotations ) {
+            if ( !guardResolver.isGuard(annotation.desc) ) {
+                continue;
+            }
+            if ( options.getSampleRate(Type.getType(annotation.desc).getClassName(), PerformanceImpact.LOW) > 1 ) {
+                return null;
+            }
+            any = true;
+            if ( reference ) {
+                if ( !annotation.desc.equals(NOT_NULL) ) {
+                    return null;
+                }
+                notNull = true;
+            }
+            else {
+                switch ( annotation.desc ) {
+                    case MIN:
+                        min = Math.max(min, longValue(annotation));
+                        break;
+                    case MAX:
+                        max = Math.min(max, longValue(annotation));
+                        break;
+                    case UNSIGNED:
+                        min = Math.max(min, 0);
+                        break;
+                    case POSITIVE:
+                        min = Math.max(min, 1);
+                        break;
+                    default:
+                        return null;
+                }
+            }
+        }
+        if ( !any || min > max ) {
+            // values that always violate the guards are left to the linker
+            return null;
+        }
+        return new InlineGuards(type, notNull, min, max);
+    }
+
+    private static long typeMin(@NotNull Type type) {
+        switch ( type.getSort() ) {
+            case Type.BYTE:
+                return Byte.MIN_VALUE;
+            case Type.SHORT:
+                return Short.MIN_VALUE;
+            case Type.INT:
+                return Integer.MIN_VALUE;
+            case Type.LONG:
+                return Long.MIN_VALUE;
+            default:
+                return 0;
+        }
+    }
+
+    private static long typeMax(@NotNull Type type) {
+        switch ( type.getSort() ) {
+            case Type.BYTE:
+                return Byte.MAX_VALUE;
+            case Type.SHORT:
+                return Short.MAX_VALUE;
+            case Type.INT:
+                return Integer.MAX_VALUE;
+            case Type.LONG:
+                return Long.MAX_VALUE;
+            default:
+                return 0;
+        }
+    }
+
+    private static long longValue(@NotNull AnnotationNode annotation) {
+        if ( annotation.values != null ) {
+            for( int i = 0; i < annotation.values.size() - 1; i += 2 ) {
+                if ( "value".equals(annotation.values.get(i)) ) {
+                    return ((Number)annotation.values.get(i + 1)).longValue();
+                }
+            }
+        }
+        throw new CancelException("No value in " + annotation.desc);
+    }
+
+    /**
+     * Emit the checks, jumping to the given label if a guard is violated. The stack remains
+     * unchanged.
+     *
+     * @param local The local variable containing the value, -1 if the value is on top of the
+     *              stack.
+     */
+    void emitChecks(@NotNull MethodVisitor mv, int local, @NotNull Label violation) {
+        if ( notNull ) {
+            load(mv, local);
+            mv.visitJumpInsn(IFNULL, violation);
+        }
+        if ( min > typeMin(type) ) {
+            emitCompare(mv, local, min, true, violation);
+        }
+        if ( max < typeMax(type) ) {
+            emitCompare(mv, local, max, false, violation);
+        }
+    }
+
+    private void emitCompare(@NotNull MethodVisitor mv, int local, long bound, boolean lower, @NotNull Label violation) {
+        load(mv, local);
+        if ( type.getSort() == Type.LONG ) {
+            if ( bound == 0 ) {
+                mv.visitInsn(LCONST_0);
+            }
+            else {
+                mv.visitLdcInsn(bound);
+            }
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(lower ? IFLT : IFGT, violation);
+        }
+        else if ( lower && bound == 1 ) {
+            mv.visitJumpInsn(IFLE, violation);
+        }
+        else if ( bound == 0 ) {
+            mv.visitJumpInsn(lower ? IFLT : IFGT, violation);
+        }
+        else {
+            pushInt(mv, (int)bound);
+            mv.visitJumpInsn(lower ? IF_ICMPLT : IF_ICMPGT, violation);
+        }
+    }
+
+    /**
+     * Load the value, either from the local variable or by duplicating the top of the stack.
+     */
+    void load(@NotNull MethodVisitor mv, int local) {
+        if ( local < 0 ) {
+            mv.visitInsn(type.getSize() == 2 ? DUP2 : DUP);
+        }
+        else {
+            mv.visitVarInsn(type.getOpcode(ILOAD), local);
+        }
+    }
+
+    private static void pushInt(@NotNull MethodVisitor mv, int value) {
+        if ( value >= -1 && value <= 5 ) {
+            mv.visitInsn(ICONST_0 + value);
+        }
+        else if ( value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE ) {
+            mv.visitIntInsn(BIPUSH, value);
+        }
+        else if ( value >= Short.MIN_VALUE && value <= Short.MAX_VALUE ) {
+            mv.visitIntInsn(SIPUSH, value);
+        }
+        else {
+            mv.visitLdcInsn(value);
+        }
+    }
+
+}
@@ -16,56 +16,466 @@
 
 package ch.raffael.guards.agent;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Level;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
 import ch.raffael.guards.agent.asm.AnnotationVisitor;
+import ch.raffael.guards.agent.asm.ClassReader;
 import ch.raffael.guards.agent.asm.ClassVisitor;
+import ch.raffael.guards.agent.asm.ClassWriter;
 import ch.raffael.guards.agent.asm.Label;
 import ch.raffael.guards.agent.asm.MethodVisitor;
 import ch.raffael.guards.agent.asm.Opcodes;
 import ch.raffael.guards.agent.asm.Type;
+import ch.raffael.guards.agent.asm.TypePath;
 import ch.raffael.guards.agent.asm.commons.AdviceAdapter;
 import ch.raffael.guards.agent.asm.commons.AnalyzerAdapter;
+import ch.raffael.guards.agent.asm.tree.AbstractInsnNode;
+import ch.raffael.guards.agent.asm.tree.AnnotationNode;
+import ch.raffael.guards.agent.asm.tree.InsnNode;
+import ch.raffael.guards.agent.asm.tree.MethodInsnNode;
 import ch.raffael.guards.agent.asm.tree.MethodNode;
+import ch.raffael.guards.agent.asm.tree.VarInsnNode;
 
 import static ch.raffael.guards.agent.IntFlags.containsFlag;
+import static ch.raffael.guards.agent.Logging.LOG;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_ABSTRACT;
 import static ch.raffael.guards.agent.asm.Opcodes.ACC_ANNOTATION;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_BRIDGE;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_FINAL;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_INTERFACE;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_NATIVE;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_PRIVATE;
 import static ch.raffael.guards.agent.asm.Opcodes.ACC_STATIC;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_STRICT;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_SYNCHRONIZED;
+import static ch.raffael.guards.agent.asm.Opcodes.ACC_SYNTHETIC;
+import static ch.raffael.guards.agent.asm.Opcodes.ALOAD;
 import static ch.raffael.guards.agent.asm.Opcodes.ASM5;
+import static ch.raffael.guards.agent.asm.Opcodes.CHECKCAST;
+import static ch.raffael.guards.agent.asm.Opcodes.ILOAD;
+import static ch.raffael.guards.agent.asm.Opcodes.INVOKEINTERFACE;
+import static ch.raffael.guards.agent.asm.Opcodes.INVOKESPECIAL;
+import static ch.raffael.guards.agent.asm.Opcodes.INVOKESTATIC;
+import static ch.raffael.guards.agent.asm.Opcodes.IRETURN;
+import static ch.raffael.guards.agent.asm.Opcodes.RETURN;
 import static ch.raffael.guards.agent.asm.Opcodes.V1_7;
 
 
 /**
+ * Instruments the guarded methods of a class.
+ *
+ * Instrumentation happens in two passes: A cheap first pass ({@link GuardedMethodScanner}) skips
+ * all code and only records which methods carry guard annotations. The second pass buffers and
+ * analyzes these methods only, all other methods are copied to the class writer unchanged. If
+ * the first pass doesn't find any guarded methods, the class remains unchanged without a second
+ * pass.
+ *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
 class Instrumenter extends ClassVisitor {
 
+    private static final String TWIN_SUFFIX = "$$unchecked";
+
     private final Options options;
     private final ClassLoader loader;
+    private final GuardAnnotationResolver guardResolver;
+    private final Map<String, Set<String>> guardedMethods;
+    private final Set<String> nonOverridableMethods;
+    private final Set<String> twinMethods;
 
     private String className;
+    private int callSiteCount = 0;
 
-    Instrumenter(Options options, ClassLoader loader, ClassVisitor cv) {
+    Instrumenter(Options options, ClassLoader loader, Map<String, Set<String>> guardedMethods, Set<String> nonOverridableMethods, Set<String> twinMethods, ClassVisitor cv) {
         super(ASM5, cv);
         this.loader = loader;
         this.options = options;
+        this.guardedMethods = guardedMethods;
+        this.nonOverridableMethods = nonOverridableMethods;
+        this.twinMethods = twinMethods;
+        guardResolver = GuardAnnotationResolver.forLoader(loader);
     }
 
-    @Override
-    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
-        if ( version < V1_7 ) {
-            // TODO: can we just upgrade the bytecode version and if so, from what versions?
-            throw new CancelException("Bytecode version <1.7 (" + V1_7 + "): " + version);
+    /**
+     * Instrument the given class.
+     *
+     * @return The instrumented bytecode or `null`, if the class remains unchanged.
+     */
+    @Nullable
+    static byte[] instrument(@NotNull Options options, @Nullable ClassLoader loader, @NotNull byte[] classfileBuffer) {
+        try {
+            ClassReader classReader = new ClassReader(classfileBuffer);
+            GuardedMethodScanner scanner = new GuardedMethodScanner(options, GuardAnnotationResolver.forLoader(loader));
+            classReader.accept(scanner, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            if ( scanner.guardedMethods.isEmpty() ) {
+                return null;
+            }
+            // DO NOT USE CALCULATE_FRAMES! It tries to load classes! #BYTECODE-UPGRADE
+            // passing the class reader lets ASM copy the unguarded methods as they are
+            ClassWriter classWriter = new ClassWriter(classReader, 0);
+            Instrumenter instrumenter = new Instrumenter(options, loader, scanner.guardedMethods, scanner.nonOverridableMethods, scanner.twinMethods, classWriter);
+            // #BYTECODE-UPGRADE: EXPAND_FRAMES is set for Analyzer adapter
+            classReader.accept(instrumenter, ClassReader.EXPAND_FRAMES);
+            byte[] instrumented = classWriter.toByteArray();
+            if ( LOG.isLoggable(Level.FINE) ) {
+                LOG.fine("Instrumented " + instrumenter.className + ": " + scanner.guardedMethods.size() + " methods, "
+                        + instrumenter.callSiteCount + " call sites to bootstrap, "
+                        + classfileBuffer.length + " -> " + instrumented.length + " bytes");
+            }
+            return instrumented;
         }
-        if ( containsFlag(access, ACC_ANNOTATION) ) {
-            throw new CancelException("Is an annotation type");
+        catch ( CancelException e ) {
+            return null;
         }
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         this.className = name;
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, final String name, final String desc, String signature, String[] exceptions) {
-        return new ParameterNameCollector(super.visitMethod(access, name, desc, signature, exceptions),
-                access, name, desc, signature, exceptions);
+        MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
+        Set<String> guards = guardedMethods.get(methodKey(name, desc));
+        if ( guards == null ) {
+            return mv;
+        }
+        if ( !twinMethods.isEmpty() && isCheckedEntry(access, guards) ) {
+            mv = new InternalCallRewriter(mv);
+        }
+        return new ParameterNameCollector(mv, access, name, desc, signature, exceptions);
+    }
+
+    /**
+     * Check whether a method checks its own parameters, only calls from such methods are
+     * rewritten to call the unchecked twins. Bridges and other synthetic methods are entry
+     * points for external callers (e.g. through a generic interface), even if they're guarded,
+     * they may forward to the target without checking anything (see
+     * {@link ParameterNameCollector#isForwardingToGuardedMethod()}).
+     */
+    private static boolean isCheckedEntry(int access, @NotNull Set<String> guards) {
+        if ( containsFlag(access, ACC_BRIDGE) || containsFlag(access, ACC_SYNTHETIC) ) {
+            return false;
+        }
+        for( String guard : guards ) {
+            if ( !guard.startsWith("-1:") ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String methodKey(String name, String desc) {
+        return name + desc;
+    }
+
+    private static String twinName(String name) {
+        return name + TWIN_SUFFIX;
+    }
+
+    /**
+     * Check whether the given class has been instrumented with unchecked twins (see
+     * {@link Options#isUncheckedInternalCalls()}).
+     */
+    static boolean hasTwins(@NotNull Class<?> type) {
+        for( java.lang.reflect.Method method : type.getDeclaredMethods() ) {
+            if ( method.isSynthetic() && method.getName().endsWith(TWIN_SUFFIX) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the guard annotations on the methods and parameters of the given class, as resolved by
+     * the {@link GuardAnnotationResolver}. Besides the class itself, the result of the
+     * instrumentation depends on these: Whether an annotation is a guard is defined by the class
+     * files of the annotation types.
+     */
+    @NotNull
+    static SortedSet<String> guardAnnotations(@Nullable ClassLoader loader, @NotNull byte[] classfileBuffer) {
+        final GuardAnnotationResolver guardResolver = GuardAnnotationResolver.forLoader(loader);
+        final SortedSet<String> guards = new TreeSet<>();
+        new ClassReader(classfileBuffer).accept(new ClassVisitor(ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return new MethodVisitor(ASM5) {
+                    @Override
+                    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                        add(desc, visible);
+                        return null;
+                    }
+                    @Override
+                    public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+                        add(desc, visible);
+                        return null;
+                    }
+                    private void add(String desc, boolean visible) {
+                        if ( visible && guardResolver.isGuard(desc) ) {
+                            guards.add(desc);
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return guards;
+    }
+
+    private boolean isGuard(String desc, boolean visible) {
+        // guards must be visible at runtime, the linker uses reflection
+        return visible && guardResolver.isGuard(desc);
+    }
+
+    /**
+     * The first pass: Collects the methods that need to be instrumented, skipping all code. It
+     * also rejects classes that can't be instrumented as early as possible.
+     */
+    private static final class GuardedMethodScanner extends ClassVisitor {
+
+        private final Options options;
+        private final GuardAnnotationResolver guardResolver;
+        /**
+         * The guarded methods with their guards: The index of the parameter (-1 for the return
+         * value), the descriptor and the values of the guard annotation.
+         */
+        private final Map<String, Set<String>> guardedMethods = new HashMap<>();
+        /**
+         * The guarded methods that can't be overridden: private, static or final methods and all
+         * methods of a final class.
+         */
+        private final Set<String> nonOverridableMethods = new HashSet<>();
+        private final Set<String> twinMethods = new HashSet<>();
+        private boolean finalClass;
+        private boolean isInterface;
+
+        private GuardedMethodScanner(Options options, GuardAnnotationResolver guardResolver) {
+            super(ASM5);
+            this.options = options;
+            this.guardResolver = guardResolver;
+        }
+
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            if ( version < V1_7 ) {
+                // TODO: can we just upgrade the bytecode version and if so, from what versions?
+                throw new CancelException("Bytecode version <1.7 (" + V1_7 + "): " + version);
+            }
+            if ( containsFlag(access, ACC_ANNOTATION) ) {
+                throw new CancelException("Is an annotation type");
+            }
+            finalClass = containsFlag(access, ACC_FINAL);
+            isInterface = containsFlag(access, ACC_INTERFACE);
+        }
+
+        @Override
+        public MethodVisitor visitMethod(final int access, final String name, String desc, String signature, String[] exceptions) {
+            if ( containsFlag(access, ACC_ABSTRACT) || containsFlag(access, ACC_NATIVE) ) {
+                // no code, nothing to instrument
+                return null;
+            }
+            final String key = methodKey(name, desc);
+            if ( options.isXInstrumentAll() ) {
+                guardedMethods.put(key, new HashSet<String>());
+                return null;
+            }
+            return new MethodVisitor(ASM5) {
+                private boolean parametersGuarded = false;
+                @Override
+                public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                    return check(-1, desc, visible);
+                }
+                @Override
+                public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+                    AnnotationVisitor guard = check(parameter, desc, visible);
+                    parametersGuarded |= guard != null;
+                    return guard;
+                }
+                @Nullable
+                private AnnotationVisitor check(int index, String desc, boolean visible) {
+                    // guards must be visible at runtime, the linker uses reflection
+                    if ( visible && guardResolver.isGuard(desc) ) {
+                        Set<String> guards = guardedMethods.get(key);
+                        if ( guards == null ) {
+                            guards = new HashSet<>();
+                            guardedMethods.put(key, guards);
+                            if ( finalClass || containsFlag(access, ACC_PRIVATE | ACC_STATIC | ACC_FINAL) ) {
+                                nonOverridableMethods.add(key);
+                            }
+                        }
+                        return new GuardValueCollector(new StringBuilder().append(index).append(':').append(desc).append('('), ")", guards);
+                    }
+                    return null;
+                }
+                @Override
+                public void visitEnd() {
+                    if ( parametersGuarded && isTwinnable(access, name) ) {
+                        twinMethods.add(key);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Check whether a method can be split into a checked entry and an unchecked twin (see
+         * {@link Options#isUncheckedInternalCalls()}). Calls to the twin are non-virtual, so the
+         * method must not be overridable.
+         */
+        private boolean isTwinnable(int access, String name) {
+            return options.isUncheckedInternalCalls()
+                    && !options.isDormant()
+                    && !isInterface
+                    && !name.startsWith("<")
+                    && !containsFlag(access, ACC_BRIDGE)
+                    && (finalClass || containsFlag(access, ACC_STATIC) || containsFlag(access, ACC_PRIVATE) || containsFlag(access, ACC_FINAL));
+        }
+    }
+
+    /**
+     * Appends the values of a guard annotation to its description and adds the description to
+     * the guards of the method when done. Equal annotations with their values in a different
+     * order or with default values given explicitly are described differently, so they're
+     * considered different guards, which is on the safe side.
+     */
+    private static final class GuardValueCollector extends AnnotationVisitor {
+
+        private final StringBuilder description;
+        private final String close;
+        @Nullable
+        private final Set<String> guards;
+        private boolean first = true;
+
+        private GuardValueCollector(@NotNull StringBuilder description, @NotNull String close, @Nullable Set<String> guards) {
+            super(ASM5);
+            this.description = description;
+            this.close = close;
+            this.guards = guards;
+        }
+
+        @Override
+        public void visit(String name, Object value) {
+            appendName(name);
+            if ( value instanceof String ) {
+                description.append('"').append(value).append('"');
+            }
+            else if ( value != null && value.getClass().isArray() ) {
+                description.append('[');
+                for( int i = 0; i < Array.getLength(value); i++ ) {
+                    description.append(i == 0 ? "" : ",").append(Array.get(value, i));
+                }
+                description.append(']');
+            }
+            else {
+                description.append(value);
+            }
+        }
+
+        @Override
+        public void visitEnum(String name, String desc, String value) {
+            appendName(name);
+            description.append(desc).append('.').append(value);
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String name, String desc) {
+            appendName(name);
+            description.append(desc).append('(');
+            return new GuardValueCollector(description, ")", null);
+        }
+
+        @Override
+        public AnnotationVisitor visitArray(String name) {
+            appendName(name);
+            description.append('[');
+            return new GuardValueCollector(description, "]", null);
+        }
+
+        @Override
+        public void visitEnd() {
+            description.append(close);
+            if ( guards != null ) {
+                guards.add(description.toString());
+            }
+        }
+
+        private void appendName(@Nullable String name) {
+            if ( !first ) {
+                description.append(',');
+            }
+            first = false;
+            if ( name != null ) {
+                description.append(name).append('=');
+            }
+        }
+    }
+
+    /**
+     * Rewrites the calls to the methods of this class that have an unchecked twin to call the
+     * twin instead.
+     */
+    private class InternalCallRewriter extends MethodVisitor {
+
+        private InternalCallRewriter(MethodVisitor mv) {
+            super(ASM5, mv);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if ( owner.equals(className) && opcode != INVOKEINTERFACE && twinMethods.contains(methodKey(name, desc)) ) {
+                // the twin is private: invokespecial for instance methods
+                super.visitMethodInsn(opcode == INVOKESTATIC ? INVOKESTATIC : INVOKESPECIAL, owner, twinName(name), desc, false);
+            }
+            else {
+                super.visitMethodInsn(opcode, owner, name, desc, itf);
+            }
+        }
+    }
+
+    /**
+     * Drops everything from the twin that's not code: The twin must not look like a guarded
+     * method itself.
+     */
+    private static final class TwinAdapter extends MethodVisitor {
+
+        private TwinAdapter(MethodVisitor mv) {
+            super(ASM5, mv);
+        }
+
+        @Override
+        public void visitParameter(String name, int access) {
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotationDefault() {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitTypeAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
+            return null;
+        }
+
+        @Override
+        public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
+            return null;
+        }
     }
 
     private class ParameterNameCollector extends MethodNode {
@@ -101,13 +511,17 @@ class Instrumenter extends ClassVisitor {
 
         @Override
         public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
-            hasMethodAnnotations = true;
+            if ( isGuard(desc, visible) ) {
+                hasMethodAnnotations = true;
+            }
             return super.visitAnnotation(desc, visible);
         }
 
         @Override
         public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
-            hasParameterAnnotations[parameter] = true;
+            if ( isGuard(desc, visible) ) {
+                hasParameterAnnotations[parameter] = true;
+            }
             return super.visitParameterAnnotation(parameter, desc, visible);
         }
 
@@ -123,7 +537,110 @@ class Instrumenter extends ClassVisitor {
         @Override
         public void visitEnd() {
             super.visitEnd();
-            accept(new MethodInstrumenter());
+            if ( isForwardingToGuardedMethod() ) {
+                // the target checks the same guards
+                accept(mv);
+                return;
+            }
+            if ( !twinMethods.contains(methodKey(name, desc)) ) {
+                accept(new MethodInstrumenter(mv, true, true));
+                return;
+            }
+            // the twin: the original code without the parameter checks
+            MethodVisitor twin = Instrumenter.this.cv.visitMethod(
+                    ACC_PRIVATE | ACC_SYNTHETIC | (access & (ACC_STATIC | ACC_SYNCHRONIZED | ACC_STRICT)),
+                    twinName(name), desc, signature, exceptions.toArray(new String[exceptions.size()]));
+            accept(new MethodInstrumenter(new InternalCallRewriter(new TwinAdapter(twin)), false, true));
+            // the entry: check the parameters and delegate to the twin, keeping everything else
+            instructions.clear();
+            tryCatchBlocks.clear();
+            localVariables = null;
+            visibleLocalVariableAnnotations = null;
+            invisibleLocalVariableAnnotations = null;
+            int local = 0;
+            if ( !isStatic ) {
+                instructions.add(new VarInsnNode(ALOAD, local++));
+            }
+            for( Type parameterType : parameterTypes ) {
+                instructions.add(new VarInsnNode(parameterType.getOpcode(ILOAD), local));
+                local += parameterType.getSize();
+            }
+            instructions.add(new MethodInsnNode(isStatic ? INVOKESTATIC : INVOKESPECIAL, className, twinName(name), desc, false));
+            instructions.add(new InsnNode(returnType.getOpcode(IRETURN)));
+            maxStack = Math.max(local, returnType.getSize());
+            accept(new MethodInstrumenter(mv, true, false));
+        }
+
+        /**
+         * Check whether this is a bridge or other synthetic method that just forwards its
+         * arguments to a method of this class that checks the same guards. Compilers copy the
+         * annotations of the target method to the bridge, checking them in the bridge would check
+         * everything twice.
+         *
+         * The target must not be overridable: An override in a subclass doesn't necessarily
+         * declare the same guards, the bridge would then be the only one checking them. The
+         * guards are compared with their values, `@Max(10)` isn't covered by `@Max(100)`.
+         */
+        private boolean isForwardingToGuardedMethod() {
+            if ( !containsFlag(access, ACC_BRIDGE) && !containsFlag(access, ACC_SYNTHETIC) ) {
+                return false;
+            }
+            List<Integer> loads = new ArrayList<>(parameterCount + 1);
+            MethodInsnNode call = null;
+            boolean returned = false;
+            for( AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext() ) {
+                int opcode = insn.getOpcode();
+                if ( opcode < 0 ) {
+                    // labels, frames, line numbers
+                    continue;
+                }
+                if ( returned ) {
+                    return false;
+                }
+                else if ( call != null ) {
+                    if ( opcode < IRETURN || opcode > RETURN ) {
+                        return false;
+                    }
+                    returned = true;
+                }
+                else if ( insn instanceof VarInsnNode && opcode >= ILOAD && opcode <= ALOAD ) {
+                    loads.add(((VarInsnNode)insn).var);
+                }
+                else if ( insn instanceof MethodInsnNode && ((MethodInsnNode)insn).owner.equals(className) ) {
+                    call = (MethodInsnNode)insn;
+                }
+                else if ( opcode != CHECKCAST ) {
+                    return false;
+                }
+            }
+            if ( call == null || !returned ) {
+                return false;
+            }
+            // all arguments in the original order
+            List<Integer> arguments = new ArrayList<>(parameterCount + 1);
+            if ( !isStatic ) {
+                arguments.add(0);
+            }
+            for( int i = 0; i < parameterCount; i++ ) {
+                arguments.add(argLocal(i));
+            }
+            if ( !loads.equals(arguments) || (isStatic != (call.getOpcode() == INVOKESTATIC)) ) {
+                return false;
+            }
+            String targetKey = methodKey(call.name, call.desc);
+            if ( !nonOverridableMethods.contains(targetKey) ) {
+                return false;
+            }
+            Set<String> targetGuards = guardedMethods.get(targetKey);
+            return targetGuards != null && targetGuards.containsAll(guardedMethods.get(methodKey(name, desc)));
+        }
+
+        private int argLocal(int arg) {
+            int local = isStatic ? 0 : 1;
+            for( int i = 0; i < arg; i++ ) {
+                local += parameterTypes[i].getSize();
+            }
+            return local;
         }
 
         private class MethodInstrumenter extends AdviceAdapter {
@@ -131,7 +648,13 @@ class Instrumenter extends ClassVisitor {
             private int stackExtensionEntry = 0;
             private int stackExtensionExit = 0;
 
-            public MethodInstrumenter() {
+            private final List<Violation> violations = new ArrayList<>();
+            private final boolean parameterChecks;
+            private final boolean returnChecks;
+            private final Label sharedExit;
+            private boolean sharedExitUsed = false;
+
+            public MethodInstrumenter(MethodVisitor target, boolean parameterChecks, boolean returnChecks) {
                 super(Opcodes.ASM5,
                         // #BYTECODE-UPGRADE: The AnalyzerAdapter expands our frames as needed;
                         new AnalyzerAdapter(
@@ -139,16 +662,21 @@ class Instrumenter extends ClassVisitor {
                                 ParameterNameCollector.this.access,
                                 ParameterNameCollector.this.name,
                                 ParameterNameCollector.this.desc,
-                                ParameterNameCollector.this.mv),
+                                target),
                         ParameterNameCollector.this.access,
                         ParameterNameCollector.this.name,
                         ParameterNameCollector.this.desc);
+                this.parameterChecks = parameterChecks;
+                this.returnChecks = returnChecks;
+                sharedExit = returnChecks && useSharedExit() ? new Label() : null;
             }
 
             @Override
             public void visitCode() {
                 super.visitCode();
-                checkParameters();
+                if ( parameterChecks ) {
+                    checkParameters();
+                }
             }
 
             @Override
@@ -169,9 +697,47 @@ class Instrumenter extends ClassVisitor {
                 super.onMethodEnter();
             }
 
+            @Override
+            public void visitInsn(int opcode) {
+                AnalyzerAdapter analyzer = (AnalyzerAdapter)mv;
+                if ( sharedExit != null && opcode >= IRETURN && opcode <= ARETURN
+                        && analyzer.stack != null && analyzer.stack.size() == returnType.getSize() ) {
+                    // jump to the shared exit, bypassing onMethodExit()
+                    mv.visitJumpInsn(GOTO, sharedExit);
+                    sharedExitUsed = true;
+                    return;
+                }
+                super.visitInsn(opcode);
+            }
+
+            /**
+             * Check whether all returns should jump to a shared exit checking the return value
+             * (see {@link Options#isCompactCallSites()}).
+             */
+            private boolean useSharedExit() {
+                if ( !options.isCompactCallSites() || returnType.getSort() == Type.VOID
+                        || !(options.isXInstrumentAll() || hasMethodAnnotations)
+                        // a violation must be thrown within the same exception handlers as before
+                        || !tryCatchBlocks.isEmpty() ) {
+                    return false;
+                }
+                if ( hasMethodAnnotations && InlineGuards.forValue(options, guardResolver, returnType, visibleAnnotations) != null ) {
+                    return false;
+                }
+                int returns = 0;
+                for( AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext() ) {
+                    if ( insn.getOpcode() >= IRETURN && insn.getOpcode() <= ARETURN ) {
+                        returns++;
+                    }
+                }
+                return returns > 1;
+            }
+
             @Override
             protected void onMethodExit(int opcode) {
-                checkReturnValue(opcode);
+                if ( returnChecks ) {
+                    checkReturnValue(opcode);
+                }
                 super.onMethodExit(opcode);
             }
 
@@ -179,21 +745,67 @@ class Instrumenter extends ClassVisitor {
                 if ( parameterCount == 0 ) {
                     return;
                 }
+                boolean inlined = false;
+                List<Integer> linked = new ArrayList<>(parameterCount);
                 for( int i = 0; i < parameterCount; i++ ) {
-                    if ( options.isXInstrumentAll() || hasParameterAnnotations[i] ) {
+                    if ( hasParameterAnnotations[i] && inlineCheck(parameterTypes[i],
+                            visibleParameterAnnotations == null ? null : visibleParameterAnnotations[i],
+                            argLocal(i), "guard:arg" + i, i, parameterName(i)) ) {
+                        inlined = true;
+                    }
+                    else if ( options.isXInstrumentAll() || hasParameterAnnotations[i] ) {
+                        linked.add(i);
+                    }
+                }
+                if ( linked.size() > 1 && options.isCompactCallSites() ) {
+                    // one call site checking all arguments
+                    StringBuilder guardDesc = new StringBuilder("(");
+                    StringBuilder indexes = new StringBuilder();
+                    StringBuilder names = new StringBuilder();
+                    for( int i : linked ) {
+                        loadArg(i);
+                        guardDesc.append(parameterTypes[i].getDescriptor());
+                        if ( indexes.length() > 0 ) {
+                            indexes.append(',');
+                            names.append(',');
+                        }
+                        indexes.append(i);
+                        names.append(parameterName(i));
+                    }
+                    invokeDynamic("guard:args", guardDesc.append(")V").toString(), Indy.BOOTSTRAP_ARGUMENTS_ASM_HANDLE,
+                            name, desc, indexes.toString(), names.toString());
+                    callSiteCount++;
+                }
+                else {
+                    for( int i : linked ) {
                         loadArg(i);
                         invokeDynamic("guard:arg" + i, "(" + parameterTypes[i].getDescriptor() + ")V", Indy.BOOTSTRAP_ASM_HANDLE,
-                                name, desc, i, parameterName[i] == null ? "" : parameterName[i]);
+                                name, desc, i, parameterName(i));
                         stackExtensionEntry = Math.max(stackExtensionEntry, parameterTypes[i].getSize());
+                        callSiteCount++;
                     }
                 }
+                if ( inlined ) {
+                    // the method's code may start with a frame of its own, avoid two frames at
+                    // the same offset
+                    mv.visitInsn(NOP);
+                }
             }
 
             private void checkReturnValue(int opcode) {
+                if ( hasMethodAnnotations && opcode != RETURN && opcode != ATHROW
+                        // a violation must be thrown within the same exception handlers as before
+                        && tryCatchBlocks.isEmpty()
+                        && inlineCheck(returnType, visibleAnnotations, -1, "guard:return", -1, "") ) {
+                    return;
+                }
                 if ( options.isXInstrumentAll() || hasMethodAnnotations ) {
                     String guardDesc = "(" + Type.getReturnType(desc) + ")V";
                     String indyName = "guard:return";
                     String pname = "";
+                    if ( opcode != RETURN && opcode != ATHROW ) {
+                        callSiteCount++;
+                    }
                     switch ( opcode ) {
                         case IRETURN: // return int / short / byte / boolean / char
                             assert returnType.equals(Type.INT_TYPE)
@@ -239,6 +851,27 @@ class Instrumenter extends ClassVisitor {
 
             @Override
             public void visitMaxs(int maxStack, int maxLocals) {
+                if ( sharedExitUsed ) {
+                    // the return value is the only thing needed, all locals may be dropped
+                    mv.visitLabel(sharedExit);
+                    mv.visitFrame(F_NEW, 0, new Object[0], 1, new Object[] { frameType(returnType) });
+                    mv.visitInsn(returnType.getSize() == 2 ? DUP2 : DUP);
+                    mv.visitInvokeDynamicInsn("guard:return", "(" + returnType.getDescriptor() + ")V", Indy.BOOTSTRAP_ASM_HANDLE,
+                            name, desc, -1, "");
+                    mv.visitInsn(returnType.getOpcode(IRETURN));
+                    callSiteCount++;
+                }
+                // the out-of-line code reporting violations of inlined guards: the linked call
+                // site throws the exception with the usual message
+                for( Violation violation : violations ) {
+                    mv.visitLabel(violation.label);
+                    mv.visitFrame(F_NEW, violation.locals.length, violation.locals, violation.stack.length, violation.stack);
+                    violation.guards.load(mv, violation.local);
+                    mv.visitInvokeDynamicInsn(violation.indyName + InlineGuards.VIOLATION_SUFFIX,
+                            "(" + violation.guards.getType().getDescriptor() + ")V", Indy.BOOTSTRAP_ASM_HANDLE,
+                            name, desc, violation.index, violation.parameterName);
+                    mv.visitJumpInsn(GOTO, violation.resume);
+                }
                 // @BYTECODE-UPGRADE: AnalyzerAdapter takes care of this
                 super.visitMaxs(maxStack, maxLocals);
                 //if ( stackExtensionExit > 0 ) {
@@ -248,6 +881,96 @@ class Instrumenter extends ClassVisitor {
                 //    super.visitMaxs(Math.max(maxStack, stackExtensionEntry), maxLocals);
                 //}
             }
+
+            private String parameterName(int arg) {
+                return parameterName[arg] == null ? "" : parameterName[arg];
+            }
+
+            /**
+             * Inline the guards of a value, if possible (see {@link Options#isInlineGuards()}).
+             *
+             * @param local The local variable of the parameter, -1 for the return value on top of
+             *              the stack.
+             *
+             * @return `true`, if the guards have been inlined.
+             */
+            private boolean inlineCheck(Type type, List<AnnotationNode> annotations, int local, String indyName, int index, String parameterName) {
+                AnalyzerAdapter analyzer = (AnalyzerAdapter)mv;
+                if ( analyzer.locals == null ) {
+                    return false;
+                }
+                InlineGuards guards = InlineGuards.forValue(options, guardResolver, type, annotations);
+                if ( guards == null ) {
+                    return false;
+                }
+                Violation violation = new Violation(guards, local, indyName, index, parameterName,
+                        frameTypes(analyzer.locals), frameTypes(analyzer.stack));
+                guards.emitChecks(mv, local, violation.label);
+                mv.visitLabel(violation.resume);
+                mv.visitFrame(F_NEW, violation.locals.length, violation.locals, violation.stack.length, violation.stack);
+                violations.add(violation);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * The type of a value of the given type in a stack map frame.
+     */
+    private static Object frameType(Type type) {
+        switch ( type.getSort() ) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+                return Opcodes.INTEGER;
+            case Type.FLOAT:
+                return Opcodes.FLOAT;
+            case Type.LONG:
+                return Opcodes.LONG;
+            case Type.DOUBLE:
+                return Opcodes.DOUBLE;
+            default:
+                return type.getInternalName();
+        }
+    }
+
+    /**
+     * Converts the types as tracked by the `AnalyzerAdapter` to the types of an expanded frame,
+     * where long and double take one element only.
+     */
+    private static Object[] frameTypes(List<Object> types) {
+        List<Object> result = new ArrayList<>(types.size());
+        for( int i = 0; i < types.size(); i++ ) {
+            Object type = types.get(i);
+            result.add(type);
+            if ( type == Opcodes.LONG || type == Opcodes.DOUBLE ) {
+                i++;
+            }
+        }
+        return result.toArray();
+    }
+
+    private static final class Violation {
+        private final Label label = new Label();
+        private final Label resume = new Label();
+        private final InlineGuards guards;
+        private final int local;
+        private final String indyName;
+        private final int index;
+        private final String parameterName;
+        private final Object[] locals;
+        private final Object[] stack;
+
+        private Violation(InlineGuards guards, int local, String indyName, int index, String parameterName, Object[] locals, Object[] stack) {
+            this.guards = guards;
+            this.local = local;
+            this.indyName = indyName;
+            this.index = index;
+            this.parameterName = parameterName;
+            this.locals = locals;
+            this.stack = stack;
         }
     }
 
@@ -23,13 +23,14 @@ import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.MethodType;
 import java.lang.invoke.MutableCallSite;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ch.raffael.guards.Min;
 import ch.raffael.guards.NotNull;
@@ -39,39 +40,81 @@ import ch.raffael.guards.agent.guava.collect.Lists;
 
 
 /**
+ * Links the guard call sites of a class. The guards of a method are resolved lazily on the first
+ * bootstrap of a call site in that method, keyed by the method's name and descriptor. Only the
+ * guarded methods that are actually called are reflected, regardless of the class' size.
+ *
  * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
  */
 final class Linker {
 
-    private static final Linker NULL_LINKER = new Linker(Collections.<MethodPointer, MethodGuards>emptyMap());
-
-    private final Map<MethodPointer, MethodGuards> callSiteCache;
+    private final Class<?> type;
+    private final ConcurrentMap<String, Optional<MethodGuards>> methodGuards = new ConcurrentHashMap<>();
+    private final AtomicInteger bootstrapCount = new AtomicInteger();
 
-    private Linker(@NotNull Map<MethodPointer, MethodGuards> callSiteCache) {
-        this.callSiteCache = callSiteCache;
+    private Linker(@NotNull Class<?> type) {
+        this.type = type;
     }
 
     @NotNull
     static Linker create(@NotNull Class<?> type) {
-        Map<MethodPointer, MethodGuards> methodGuards = new HashMap<>();
-        for( Method method : type.getDeclaredMethods() ) {
-            MethodGuards guards = guardsForMember(GuardableMember.of(method));
-            if ( guards != null ) {
-                methodGuards.put(new MethodPointer(method), guards);
+        return new Linker(type);
+    }
+
+    @Nullable
+    private MethodGuards methodGuards(@NotNull String name, @NotNull String descriptor) {
+        String key = name + descriptor;
+        Optional<MethodGuards> guards = methodGuards.get(key);
+        if ( guards == null ) {
+            MethodType methodType = MethodType.fromMethodDescriptorString(descriptor, type.getClassLoader());
+            GuardableMember member = findMember(name, methodType);
+            guards = Optional.fromNullable(member == null ? null : guardsForMember(member));
+            Optional<MethodGuards> previous = methodGuards.putIfAbsent(key, guards);
+            if ( previous != null ) {
+                guards = previous;
             }
         }
-        for( Constructor constructor : type.getDeclaredConstructors() ) {
-            MethodGuards guards = guardsForMember(GuardableMember.of(constructor));
-            if ( guards != null ) {
-                methodGuards.put(new MethodPointer(constructor), guards);
+        return guards.orNull();
+    }
+
+    /**
+     * Check whether the guards of the given method have been resolved already.
+     */
+    boolean isResolved(@NotNull String name, @NotNull String descriptor) {
+        return methodGuards.containsKey(name + descriptor);
+    }
+
+    /**
+     * The number of call sites of this class bootstrapped so far.
+     */
+    int getBootstrapCount() {
+        return bootstrapCount.get();
+    }
+
+    @Nullable
+    private GuardableMember findMember(@NotNull String name, @NotNull MethodType methodType) {
+        try {
+            if ( name.equals("<init>") ) {
+                return GuardableMember.of(type.getDeclaredConstructor(methodType.parameterArray()));
+            }
+            Method method = type.getDeclaredMethod(name, methodType.parameterArray());
+            if ( method.getReturnType() == methodType.returnType() ) {
+                return GuardableMember.of(method);
             }
         }
-        if ( methodGuards.isEmpty() ) {
-            return NULL_LINKER;
+        catch ( NoSuchMethodException e ) {
+            return null;
         }
-        else {
-            return new Linker(Collections.unmodifiableMap(methodGuards));
+        // getDeclaredMethod() picks the most specific return type, but we may be looking for a
+        // method with a covariant override (e.g. a bridge method)
+        for( Method method : type.getDeclaredMethods() ) {
+            if ( method.getName().equals(name)
+                    && method.getReturnType() == methodType.returnType()
+                    && Arrays.equals(method.getParameterTypes(), methodType.parameterArray()) ) {
+                return GuardableMember.of(method);
+            }
         }
+        return null;
     }
 
     @Nullable
@@ -120,8 +163,8 @@ final class Linker {
         //assert type.returnType() == void.class;
         //assert type.parameterCount() == 1;
         //assert parameterIndex >= -1;
-        MethodType targetType = MethodType.fromMethodDescriptorString(targetMethodDescriptor, caller.lookupClass().getClassLoader());
-        MethodGuards guards = callSiteCache.get(new MethodPointer(targetMethodName, targetType));
+        bootstrapCount.incrementAndGet();
+        MethodGuards guards = methodGuards(targetMethodName, targetMethodDescriptor);
         if ( guards == null ) {
             return new ConstantCallSite(Indy.nopHandle(type.parameterType(0)));
             //throw new GuardsInternalError("Guards requested for non-guarded method " + Diagnostics.toString(caller.lookupClass(), name, guardedMethodType));
@@ -131,6 +174,64 @@ final class Linker {
         }
     }
 
+    /**
+     * Bootstrap a call site checking several arguments. The arguments are checked by the call
+     * sites of the single arguments in the given order, so these can still be relinked.
+     */
+    @NotNull
+    CallSite bootstrapArguments(@NotNull MethodHandles.Lookup caller,
+                                @NotNull MethodType type,
+                                @NotNull String targetMethodName,
+                                @NotNull String targetMethodDescriptor,
+                                @NotNull String parameterIndexes,
+                                @NotNull String parameterNames) {
+        bootstrapCount.incrementAndGet();
+        MethodHandle handle = MethodHandles.dropArguments(Indy.nopHandle(null), 0, type.parameterList());
+        MethodGuards guards = methodGuards(targetMethodName, targetMethodDescriptor);
+        if ( guards != null ) {
+            String[] indexes = parameterIndexes.split(",");
+            String[] names = parameterNames.split(",", -1);
+            for( int i = indexes.length - 1; i >= 0; i-- ) {
+                MethodHandle check = guards.getCallSite(Integer.parseInt(indexes[i]), names[i]).dynamicInvoker();
+                handle = MethodHandles.foldArguments(handle, MethodHandles.dropArguments(check, 0, type.parameterList().subList(0, i)));
+            }
+        }
+        return new ConstantCallSite(handle);
+    }
+
+    /**
+     * Link a call site ahead of time, the call to `bootstrap()` will then return the call site
+     * created here.
+     */
+    void prelink(@NotNull String targetMethodName,
+                 @NotNull String targetMethodDescriptor,
+                 int parameterIndex,
+                 @NotNull String parameterName) {
+        MethodGuards guards = methodGuards(targetMethodName, targetMethodDescriptor);
+        if ( guards != null ) {
+            guards.getCallSite(parameterIndex, parameterName);
+        }
+    }
+
+    /**
+     * Compose the method handle checking the given guards in the given order.
+     */
+    @NotNull
+    static MethodHandle composeGuards(@NotNull GuardTarget target, @NotNull List<GuardInstance> guardInstances) {
+        List<GuardInstance> guards = GuardRelations.effectiveGuards(guardInstances);
+        MethodHandle handle = GuardFusion.fuse(target, guards);
+        if ( handle != null ) {
+            return handle;
+        }
+        for( GuardInstance guardInstance : Lists.reverse(guards)) {
+            handle = GuardDefinition.get(guardInstance.getAnnotation().annotationType()).resolveTestMethod(guardInstance, handle);
+        }
+        if ( handle == null ) {
+            handle = Indy.nopHandle(target.getValueType());
+        }
+        return handle;
+    }
+
     private static final class MethodGuards {
 
         private final Options options = GuardsAgent.getInstance().getOptions();
@@ -186,14 +287,17 @@ final class Linker {
                     guardInstances.add(new GuardInstance(target, annotation, null));
                 }
             }
-            MethodHandle handle = null;
-            for( GuardInstance guardInstance : Lists.reverse(guardInstances)) {
-                handle = GuardDefinition.get(guardInstance.getAnnotation().annotationType()).resolveTestMethod(guardInstance, handle);
+            MethodHandle handle = composeGuards(target, guardInstances);
+            if ( options.isGuardControl() && !guardInstances.isEmpty() ) {
+                return GuardControl.getInstance().register(new GuardSite(target, guardInstances, handle));
+            }
+            else if ( options.getCpuBudget() > 0 && !guardInstances.isEmpty() ) {
+                return GuardBudget.getInstance().register(new BudgetSite(target, handle, options));
             }
-            if ( handle == null ) {
-                handle = Indy.nopHandle(target.getValueType());
+            else if ( options.getCanaryInvocations() > 0 && !guardInstances.isEmpty() ) {
+                return new CanarySite(target, handle, options.getCanaryInvocations());
             }
-            if ( options.isXMutableCallSites() ) {
+            else if ( options.isXMutableCallSites() ) {
                 return new MutableCallSite(handle);
             }
             else {
@@ -203,42 +307,6 @@ final class Linker {
 
     }
 
-    private static final class MethodPointer {
-        private final String name;
-        private final MethodType methodType;
-        private MethodPointer(String name, MethodType methodType) {
-            this.name = name;
-            this.methodType = methodType;
-        }
-        private MethodPointer(Method method) {
-            this(method.getName(), MethodType.methodType(method.getReturnType(), method.getParameterTypes()));
-        }
-        private MethodPointer(Constructor constructor) {
-            this("<init>", MethodType.methodType(void.class, constructor.getParameterTypes()));
-        }
-        @Override
-        public boolean equals(Object o) {
-            if ( this == o ) {
-                return true;
-            }
-            if ( o == null || getClass() != o.getClass() ) {
-                return false;
-            }
-            MethodPointer that = (MethodPointer)o;
-            return methodType.equals(that.methodType) && name.equals(that.name);
-        }
-        @Override
-        public int hashCode() {
-            int result = name.hashCode();
-            result = 31 * result + methodType.hashCode();
-            return result;
-        }
-        @Override
-        public String toString() {
-            return name + methodType;
-        }
-    }
-
     private static final class CallSiteHolder {
         private volatile Optional<CallSite> callSite;
     }
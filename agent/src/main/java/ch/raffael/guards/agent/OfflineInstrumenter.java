@@ -0,0 +1,253 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+import ch.raffael.guards.agent.guava.io.ByteStreams;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Instruments classes ahead of time, e.g. at build time. The instrumented classes bootstrap
+ * their guards through {@link Indy} just like classes instrumented by the agent, so they don't
+ * require the `-javaagent` option, they only need the agent library on the classpath.
+ *
+ * Classes that have been instrumented already are recognised and left alone by both the
+ * offline instrumenter and the agent.
+ *
+ * Usage from the command line:
+ *
+ * ```
+ * java -cp guards-agent.jar ch.raffael.guards.agent.OfflineInstrumenter [-options <options>] <source> <target>
+ * ```
+ *
+ * The source may be a JAR file or a directory, the target will be of the same kind. The options
+ * use the same syntax as the agent arguments.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+public final class OfflineInstrumenter {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final Options options;
+
+    private int classCount = 0;
+    private int instrumentedCount = 0;
+
+    public OfflineInstrumenter() {
+        this(new Options());
+    }
+
+    public OfflineInstrumenter(@NotNull Options options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws IOException {
+        OptionsBuilder builder = new OptionsBuilder();
+        int pos = 0;
+        if ( args.length > 0 && args[0].equals("-options") ) {
+            if ( args.length < 2 ) {
+                usage();
+                return;
+            }
+            new AgentArgsOptionsProvider(args[1]).provideOptions(builder);
+            pos = 2;
+        }
+        if ( args.length - pos != 2 ) {
+            usage();
+            return;
+        }
+        OfflineInstrumenter instrumenter = new OfflineInstrumenter(builder.toOptions());
+        instrumenter.instrument(Paths.get(args[pos]), Paths.get(args[pos + 1]));
+    }
+
+    private static void usage() {
+        System.err.println("Usage: " + OfflineInstrumenter.class.getName() + " [-options <options>] <source> <target>");
+        System.exit(1);
+    }
+
+    @NotNull
+    public Options getOptions() {
+        return options;
+    }
+
+    /**
+     * The number of classes processed so far.
+     */
+    public int getClassCount() {
+        return classCount;
+    }
+
+    /**
+     * The number of classes instrumented so far.
+     */
+    public int getInstrumentedCount() {
+        return instrumentedCount;
+    }
+
+    /**
+     * Instrument a single class. The annotation types used by the class are looked up on the
+     * system class path; if they can't be found, they're treated as guards.
+     *
+     * @param className    The internal name of the class.
+     * @param classfile    The class file.
+     *
+     * @return The instrumented class file or `null`, if the class remains unchanged.
+     */
+    @Nullable
+    public byte[] instrument(@NotNull String className, @NotNull byte[] classfile) {
+        return instrument(className, classfile, null);
+    }
+
+    @Nullable
+    private byte[] instrument(@NotNull String className, @NotNull byte[] classfile, @Nullable ClassLoader loader) {
+        classCount++;
+        if ( !options.getClassFilter().isTransformable(className) ) {
+            return null;
+        }
+        if ( !options.isXInstrumentAll() && !ConstantPoolScanner.mayContainGuards(classfile) ) {
+            return null;
+        }
+        byte[] instrumented = Instrumenter.instrument(options, loader, classfile);
+        if ( instrumented != null ) {
+            instrumentedCount++;
+        }
+        return instrumented;
+    }
+
+    /**
+     * Instrument all classes in a JAR file or directory.
+     *
+     * @param source    The source JAR file or directory.
+     * @param target    The target JAR file or directory. A directory will be created if it
+     *                  doesn't exist, existing files will be overwritten.
+     */
+    public void instrument(@NotNull Path source, @NotNull Path target) throws IOException {
+        int classCountBefore = classCount;
+        int instrumentedCountBefore = instrumentedCount;
+        // used to look up the annotation types, no classes will be loaded from here
+        try ( URLClassLoader loader = new URLClassLoader(new URL[] { source.toUri().toURL() }, OfflineInstrumenter.class.getClassLoader()) ) {
+            if ( Files.isDirectory(source) ) {
+                instrumentDirectory(source, target, loader);
+            }
+            else {
+                instrumentJar(source, target, loader);
+            }
+        }
+        LOG.info(String.format("Instrumented %d of %d classes from %s to %s",
+                instrumentedCount - instrumentedCountBefore, classCount - classCountBefore, source, target));
+    }
+
+    private void instrumentDirectory(@NotNull final Path source, @NotNull final Path target, @NotNull final ClassLoader loader) throws IOException {
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(target.resolve(source.relativize(dir).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = source.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                Path targetFile = target.resolve(source.relativize(file).toString());
+                byte[] classfile = Files.readAllBytes(file);
+                if ( name.endsWith(CLASS_SUFFIX) ) {
+                    byte[] instrumented = instrument(toClassName(name), classfile, loader);
+                    if ( instrumented != null ) {
+                        classfile = instrumented;
+                    }
+                }
+                Files.write(targetFile, classfile);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void instrumentJar(@NotNull Path source, @NotNull Path target, @NotNull ClassLoader loader) throws IOException {
+        if ( target.getParent() != null ) {
+            Files.createDirectories(target.getParent());
+        }
+        try ( JarFile jar = new JarFile(source.toFile()) ) {
+            Manifest manifest = jar.getManifest();
+            try ( OutputStream fileOut = Files.newOutputStream(target);
+                  JarOutputStream out = manifest == null ? new JarOutputStream(fileOut) : new JarOutputStream(fileOut, manifest) ) {
+                Enumeration<JarEntry> entries = jar.entries();
+                while ( entries.hasMoreElements() ) {
+                    JarEntry entry = entries.nextElement();
+                    String name = entry.getName();
+                    if ( name.equalsIgnoreCase(JarFile.MANIFEST_NAME) ) {
+                        continue;
+                    }
+                    if ( isSignatureFile(name) ) {
+                        LOG.warning("Removing signature file " + name + " from " + source);
+                        continue;
+                    }
+                    JarEntry targetEntry = new JarEntry(name);
+                    targetEntry.setTime(entry.getTime());
+                    out.putNextEntry(targetEntry);
+                    if ( !entry.isDirectory() ) {
+                        byte[] content;
+                        try ( InputStream in = jar.getInputStream(entry) ) {
+                            content = ByteStreams.toByteArray(in);
+                        }
+                        if ( name.endsWith(CLASS_SUFFIX) ) {
+                            byte[] instrumented = instrument(toClassName(name), content, loader);
+                            if ( instrumented != null ) {
+                                content = instrumented;
+                            }
+                        }
+                        out.write(content);
+                    }
+                    out.closeEntry();
+                }
+            }
+        }
+    }
+
+    private static boolean isSignatureFile(@NotNull String name) {
+        String upper = name.toUpperCase();
+        if ( !upper.startsWith("META-INF/") || upper.indexOf('/', "META-INF/".length()) >= 0 ) {
+            return false;
+        }
+        return upper.endsWith(".SF") || upper.endsWith(".DSA") || upper.endsWith(".RSA") || upper.endsWith(".EC");
+    }
+
+    @NotNull
+    private static String toClassName(@NotNull String fileName) {
+        return fileName.substring(0, fileName.length() - CLASS_SUFFIX.length());
+    }
+
+}
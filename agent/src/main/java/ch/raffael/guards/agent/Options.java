@@ -16,16 +16,24 @@
 
 package ch.raffael.guards.agent;
 
+import java.lang.annotation.Annotation;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import ch.raffael.guards.NotNull;
 import ch.raffael.guards.Nullable;
 import ch.raffael.guards.agent.asm.util.ASMifier;
 import ch.raffael.guards.agent.asm.util.Printer;
 import ch.raffael.guards.agent.asm.util.Textifier;
+import ch.raffael.guards.agent.guava.collect.ImmutableList;
+import ch.raffael.guards.agent.guava.collect.ImmutableMap;
 import ch.raffael.guards.agent.guava.collect.Sets;
+import ch.raffael.guards.agent.guava.hash.PrimitiveSink;
+import ch.raffael.guards.definition.PerformanceImpact;
 
 
 /**
@@ -39,6 +47,39 @@ public final class Options {
     private Path dumpPath = Paths.get("guardsAsmDumps");
     private Set<DumpFormat> dumpFormats = Sets.immutableEnumSet(Options.DumpFormat.CLASS, Options.DumpFormat.ASM);
 
+    private Path cachePath = null;
+    private int cacheMaxAge = 10;
+    private int retransformBatchSize = 500;
+    private List<String> includes = ImmutableList.of();
+    private List<String> excludes = ImmutableList.of();
+    private boolean excludeGenerated = true;
+    private boolean prelink = false;
+    private int backgroundThreads = 1;
+    private int backgroundQueueSize = 1000;
+    private boolean guardControl = false;
+    private PerformanceImpact maxImpact = PerformanceImpact.HIGH;
+    private Map<String, PerformanceImpact> packageMaxImpacts = ImmutableMap.of();
+    private Map<String, Integer> sampleRates = ImmutableMap.of();
+    private SamplingMode samplingMode = SamplingMode.COUNTER;
+    private int canaryInvocations = 0;
+    private double cpuBudget = 0;
+    private int budgetInterval = 1000;
+    private int budgetSampleRate = 100;
+    private boolean eliminateImpliedGuards = false;
+    private boolean inlineGuards = false;
+    private boolean spinGuardStubs = false;
+    private boolean compactCallSites = true;
+    private boolean uncheckedInternalCalls = false;
+    private boolean dormant = false;
+    private Path policyFile = null;
+    private boolean lazyViolations = true;
+    private boolean reportOnly = false;
+    private Path reportFile = null;
+    private int reportRate = 10;
+    private int reportBufferSize = 1024;
+    private final ClassFilter classFilter;
+    private final PackageTrie<PerformanceImpact> maxImpacts = new PackageTrie<>();
+
     private boolean xDevel = false;
 
     private boolean xUpgradeBytecode = true;
@@ -57,6 +98,36 @@ public final class Options {
             dump = builder.isDump();
             dumpPath = builder.getDumpPath();
             dumpFormats = Sets.immutableEnumSet(builder.getDumpFormats());
+            cachePath = builder.getCachePath();
+            cacheMaxAge = builder.getCacheMaxAge();
+            retransformBatchSize = builder.getRetransformBatchSize();
+            includes = ImmutableList.copyOf(builder.getIncludes());
+            excludes = ImmutableList.copyOf(builder.getExcludes());
+            excludeGenerated = builder.isExcludeGenerated();
+            prelink = builder.isPrelink();
+            backgroundThreads = builder.getBackgroundThreads();
+            backgroundQueueSize = builder.getBackgroundQueueSize();
+            guardControl = builder.isGuardControl() || builder.getPolicyFile() != null;
+            maxImpact = builder.getMaxImpact();
+            packageMaxImpacts = ImmutableMap.copyOf(builder.getPackageMaxImpacts());
+            sampleRates = ImmutableMap.copyOf(builder.getSampleRates());
+            samplingMode = builder.getSamplingMode();
+            canaryInvocations = builder.getCanaryInvocations();
+            cpuBudget = builder.getCpuBudget();
+            budgetInterval = builder.getBudgetInterval();
+            budgetSampleRate = builder.getBudgetSampleRate();
+            eliminateImpliedGuards = builder.isEliminateImpliedGuards();
+            inlineGuards = builder.isInlineGuards();
+            spinGuardStubs = builder.isSpinGuardStubs();
+            compactCallSites = builder.isCompactCallSites();
+            uncheckedInternalCalls = builder.isUncheckedInternalCalls();
+            dormant = builder.isDormant();
+            policyFile = builder.getPolicyFile();
+            lazyViolations = builder.isLazyViolations();
+            reportOnly = builder.isReportOnly();
+            reportFile = builder.getReportFile();
+            reportRate = builder.getReportRate();
+            reportBufferSize = builder.getReportBufferSize();
             xDevel = builder.isXDevel();
             xUpgradeBytecode = builder.isXUpgradeBytecode();
             xNopMode = builder.isXNopMode();
@@ -64,6 +135,10 @@ public final class Options {
             xNopMethod = builder.getXNopMethod();
             xMutableCallSites = builder.isXMutableCallSites();
         }
+        classFilter = new ClassFilter(includes, excludes, excludeGenerated);
+        for( Map.Entry<String, PerformanceImpact> entry : packageMaxImpacts.entrySet() ) {
+            maxImpacts.put(PackageTrie.packagePrefix(entry.getKey()), entry.getValue());
+        }
     }
 
     public boolean isDump() {
@@ -80,6 +155,398 @@ public final class Options {
         return dumpFormats;
     }
 
+    /**
+     * The directory for the persistent cache of instrumented classes. If `null` (the default),
+     * no cache will be used.
+     *
+     * **[Performance]** On a warm start, the transformer only looks up the class in the cache and
+     * copies the bytes instead of running the instrumenter.
+     */
+    @Nullable
+    public Path getCachePath() {
+        return cachePath;
+    }
+
+    /**
+     * The number of agent starts an entry may remain unused in the cache before it's evicted.
+     */
+    public int getCacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    /**
+     * The number of classes retransformed at once when the agent is attached to a running VM.
+     *
+     * **[Performance]** Each call to `Instrumentation.retransformClasses()` is a separate
+     * round-trip to the VM, retransforming classes in batches reduces this overhead.
+     */
+    public int getRetransformBatchSize() {
+        return retransformBatchSize;
+    }
+
+    /**
+     * Package patterns of classes to instrument. If not empty, only classes matching one of these
+     * patterns will be instrumented.
+     *
+     * Patterns are package names (`com.example` or `com.example.*`), matching the package and all
+     * sub-packages, or class name prefixes ending with an asterisk (`com.example.Foo*`). If a
+     * class matches both an include and an exclude pattern, the longer pattern wins.
+     *
+     * **[Performance]** Restricting the agent to the packages that actually use guards avoids
+     * paying for the instrumentation of all third-party libraries.
+     */
+    @NotNull
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * Package patterns of classes not to instrument.
+     *
+     * @see #getIncludes()
+     */
+    @NotNull
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * Don't instrument generated classes like proxies, CGLIB or Byte Buddy classes.
+     */
+    public boolean isExcludeGenerated() {
+        return excludeGenerated;
+    }
+
+    /**
+     * Link the guard call sites of instrumented classes in the background as soon as the class
+     * has been loaded.
+     *
+     * **[Performance]** Without pre-linking, the guards of a call site are resolved on its first
+     * invocation, which causes latency spikes on the first requests after a start.
+     */
+    public boolean isPrelink() {
+        return prelink;
+    }
+
+    /**
+     * The maximum number of threads used for background tasks like pre-linking. Idle threads
+     * are terminated.
+     */
+    public int getBackgroundThreads() {
+        return backgroundThreads;
+    }
+
+    /**
+     * The maximum number of pending background tasks. Background tasks are optimisations only,
+     * if the queue is full, new tasks will be dropped.
+     */
+    public int getBackgroundQueueSize() {
+        return backgroundQueueSize;
+    }
+
+    /**
+     * Link guard call sites so they can be enabled and disabled at runtime through the
+     * {@link GuardControl} and register its MXBean. Implied by
+     * {@link #getPolicyFile() policyFile}.
+     *
+     * **[Performance]** Disabled guards are removed from the call site, this allows dropping the
+     * guard overhead without restarting the VM.
+     */
+    public boolean isGuardControl() {
+        return guardControl;
+    }
+
+    /**
+     * The maximum {@link PerformanceImpact} of the guards that will be checked. Guards with a
+     * higher impact are linked to a nop. This may be overridden per package (see
+     * {@link #getPackageMaxImpacts()}).
+     */
+    @NotNull
+    public PerformanceImpact getMaxImpact() {
+        return maxImpact;
+    }
+
+    /**
+     * Overrides of the {@link #getMaxImpact() maximum performance impact} per package (see
+     * {@link PackageTrie#packagePrefix(String)} for the syntax). The longest matching pattern
+     * wins.
+     */
+    @NotNull
+    public Map<String, PerformanceImpact> getPackageMaxImpacts() {
+        return packageMaxImpacts;
+    }
+
+    /**
+     * The maximum performance impact of the guards in the given class.
+     *
+     * @param internalClassName The internal name of the class declaring the guarded method.
+     */
+    @NotNull
+    PerformanceImpact getMaxImpact(@NotNull String internalClassName) {
+        if ( maxImpacts.isEmpty() ) {
+            return maxImpact;
+        }
+        PerformanceImpact impact = maxImpacts.find(internalClassName);
+        return impact == null ? maxImpact : impact;
+    }
+
+    /**
+     * Sample rates for guards that should not be checked on every invocation, by guard type
+     * (the fully qualified name of the annotation) or {@link PerformanceImpact} level (e.g.
+     * `HIGH`). A rate of *n* checks about every *n*th invocation, see
+     * {@link #getSamplingMode()}. A rate for the guard type takes precedence over the rate for
+     * its impact level. Guards without a sample rate are always checked.
+     *
+     * **[Performance]** For expensive guards like scanning large collections, sampling gives
+     * statistical coverage at a fraction of the cost.
+     */
+    @NotNull
+    public Map<String, Integer> getSampleRates() {
+        return sampleRates;
+    }
+
+    @NotNull
+    public SamplingMode getSamplingMode() {
+        return samplingMode;
+    }
+
+    /**
+     * If greater than 0, each guard call site is only checked until it passed this number of
+     * times, it's then relinked to a nop. Violations are reported as usual and don't count as
+     * passes. Doesn't apply to call sites controlled by the {@link GuardControl} or the
+     * {@link GuardBudget}.
+     *
+     * **[Performance]** Most violations show up in the first invocations after a start, after
+     * that, the throughput matches an unguarded build.
+     */
+    public int getCanaryInvocations() {
+        return canaryInvocations;
+    }
+
+    /**
+     * The share of the CPU time (in percent of all available processors) the guards may use,
+     * 0 to disable the budget. If set, the guard call sites measure the time spent in the
+     * guards for a subset of their invocations. Every {@link #getBudgetInterval() budget
+     * interval}, the {@link GuardBudget} demotes the most expensive call sites to sampling
+     * (see {@link #getBudgetSampleRate()}), then to a nop, until the guards are within the
+     * budget again. When the guards use less than half of the budget, demoted call sites are
+     * promoted again.
+     *
+     * Doesn't apply to call sites controlled by the {@link GuardControl}.
+     *
+     * **[Performance]** The invocations that are timed cost two calls to `System.nanoTime()`.
+     */
+    public double getCpuBudget() {
+        return cpuBudget;
+    }
+
+    /**
+     * The interval in milliseconds in which the {@link GuardBudget} checks the CPU usage of the
+     * guards.
+     */
+    public int getBudgetInterval() {
+        return budgetInterval;
+    }
+
+    /**
+     * The sample rate of call sites demoted by the {@link GuardBudget}: Only every nth
+     * invocation will be checked, using the {@link #getSamplingMode() sampling mode}.
+     */
+    public int getBudgetSampleRate() {
+        return budgetSampleRate;
+    }
+
+    /**
+     * Drop guards that are implied by other guards on the same value according to their
+     * {@link ch.raffael.guards.definition.Relations @Relations}, e.g. `@Unsigned` if there's
+     * also a `@Positive`. Only guards that are checked on every invocation imply others, guards
+     * that are sampled or above the {@link #getMaxImpact() maximum impact} don't. The rules
+     * of `@Relations` are only applied to values of an integral type.
+     *
+     * **[Performance]** Composite guards implying overlapping guards don't add redundant
+     * checks.
+     */
+    public boolean isEliminateImpliedGuards() {
+        return eliminateImpliedGuards;
+    }
+
+    /**
+     * Check simple built-in guards directly in the bytecode instead of using `invokedynamic`:
+     * `@NotNull` on references and `@Min`, `@Max`, `@Unsigned` and `@Positive` on `byte`,
+     * `short`, `int` and `long`. This only applies to values that have no other guards, the
+     * instrumenter emits a compare-and-branch and an out-of-line `invokedynamic` that will be
+     * linked on the first violation only, reporting it just like a regular call site.
+     *
+     * Ignored if call sites need to be relinked at runtime, i.e. if `guardControl`,
+     * `cpuBudget` or `canaryInvocations` is set, and for guards that are sampled.
+     *
+     * **[Performance]** Avoids bootstrapping the call sites at startup and performs better in
+     * the interpreter and C1 compiled code.
+     */
+    public boolean isInlineGuards() {
+        return inlineGuards;
+    }
+
+    /**
+     * Generate a small class for each guard with the values of its annotation embedded as
+     * constants: The bytecode of the handler's test method is copied to a static method,
+     * reading the final fields of the handler is replaced by loading their values. Equal guards
+     * share their stub. Falls back to binding the handler instance to its test method if the
+     * test method uses the handler in any other way, or if the JVM doesn't support anonymous
+     * classes.
+     *
+     * Off by default: The stubs are defined using `sun.misc.Unsafe.defineAnonymousClass()`
+     * with a patched constant pool, which is not a supported API.
+     *
+     * **[Performance]** The JIT can't trust final instance fields, so it reloads the values of
+     * a bound handler on every check. The stubs compile to the same code as hand-written
+     * checks.
+     */
+    public boolean isSpinGuardStubs() {
+        return spinGuardStubs;
+    }
+
+    /**
+     * Use one `invokedynamic` call site checking all guarded arguments of a method instead of
+     * one per argument, and let all returns of a method with more than one return jump to a
+     * shared exit checking the return value. Return values are still checked at each return if
+     * the return is within a `try` block, a violation must be thrown within the same exception
+     * handlers.
+     *
+     * **[Performance]** Less call sites to bootstrap and less bytecode, which keeps more
+     * methods below HotSpot's inlining limits (`MaxInlineSize`, `FreqInlineSize`).
+     */
+    public boolean isCompactCallSites() {
+        return compactCallSites;
+    }
+
+    /**
+     * Split guarded methods into a checked entry and an unchecked body: The body is moved to a
+     * private synthetic twin (`name$$unchecked`), the original method checks its arguments and
+     * delegates to the twin. Calls from within the same class are rewritten to call the twin
+     * directly, so arguments passed around inside a class are checked only once, when they enter
+     * it. Return values are still checked by the twin.
+     *
+     * Only methods that can't be overridden are split (static, private or final methods and
+     * methods of final classes), constructors are never split. Only calls from methods that
+     * check their own parameters are rewritten, calls from unguarded methods and from bridges
+     * still go through the checked entry.
+     *
+     * **[Performance]** Recursion and chains of helper methods don't check the same arguments
+     * over and over again.
+     */
+    public boolean isUncheckedInternalCalls() {
+        return uncheckedInternalCalls;
+    }
+
+    /**
+     * Install the agent without instrumenting anything: The transformer only records the classes
+     * that may contain guards and leaves their bytecode unchanged until guards are activated for
+     * their package using {@link GuardActivation} (or its MBean
+     * `ch.raffael.guards:type=GuardActivation`). Activating a package retransforms its loaded
+     * classes, deactivating it retransforms them back to their original bytecode.
+     *
+     * Guarded methods are never split into twins in dormant mode (see
+     * {@link #isUncheckedInternalCalls()}), as retransformation can't add or remove methods.
+     *
+     * **[Performance]** Unlike `XnopMode`, dormant classes contain no call sites at all, so
+     * there's neither transformation nor bootstrap cost nor any extra bytecode for them.
+     */
+    public boolean isDormant() {
+        return dormant;
+    }
+
+    /**
+     * A file with the rules for the {@link GuardControl}, applied on startup and again whenever
+     * the file changes (see {@link PolicyFile} for the format). Setting a policy file implies
+     * `guardControl`.
+     *
+     * **[Performance]** Only the call sites affected by a change are relinked.
+     */
+    @Nullable
+    public Path getPolicyFile() {
+        return policyFile;
+    }
+
+    /**
+     * Defer the expensive parts of a contract violation until they're needed: The message of
+     * the `ContractViolationError` is built when it's requested for the first time, the agent's
+     * frames are removed from the stack trace when it's requested or printed for the first time.
+     * As the message is built later, it shows the value as it is at that time.
+     *
+     * **[Performance]** Code that catches violations, e.g. when using guards for input
+     * validation, pays neither for building the message nor for materialising the stack trace.
+     */
+    public boolean isLazyViolations() {
+        return lazyViolations;
+    }
+
+    /**
+     * Report contract violations instead of throwing a `ContractViolationError` and continue
+     * checking the remaining guards. Each violation is counted for its target, the first
+     * violation per guard and value type is queued for reporting, later ones are only counted.
+     * A background thread writes the queued violations to the log or to the
+     * {@link #getReportFile() report file}.
+     *
+     * **[Performance]** The queue is a lock-free ring buffer of
+     * {@link #getReportBufferSize() reportBufferSize} events, violations that don't fit are
+     * dropped. Repeated violations neither allocate nor block, so a misbehaving caller can't
+     * flood the log.
+     */
+    public boolean isReportOnly() {
+        return reportOnly;
+    }
+
+    /**
+     * A file to append the reported violations to as JSON lines, one object per violation. If
+     * not set, violations are reported to the log.
+     */
+    @Nullable
+    public Path getReportFile() {
+        return reportFile;
+    }
+
+    /**
+     * The maximum number of violations reported per second, further violations are reported
+     * in the following seconds.
+     */
+    public int getReportRate() {
+        return reportRate;
+    }
+
+    /**
+     * The capacity of the ring buffer for reported violations, rounded up to a power of two.
+     */
+    public int getReportBufferSize() {
+        return reportBufferSize;
+    }
+
+    /**
+     * The sample rate for the given guard, 1 if it should be checked on every invocation.
+     */
+    int getSampleRate(@NotNull Class<? extends Annotation> guardType, @NotNull PerformanceImpact impact) {
+        return getSampleRate(guardType.getName(), impact);
+    }
+
+    /**
+     * The sample rate for the guard with the given fully qualified name.
+     */
+    int getSampleRate(@NotNull String guardTypeName, @NotNull PerformanceImpact impact) {
+        if ( sampleRates.isEmpty() ) {
+            return 1;
+        }
+        Integer rate = sampleRates.get(guardTypeName);
+        if ( rate == null ) {
+            rate = sampleRates.get(impact.name());
+        }
+        return rate == null ? 1 : Math.max(1, rate);
+    }
+
+    @NotNull
+    ClassFilter getClassFilter() {
+        return classFilter;
+    }
+
     public boolean isXDevel() {
         return xDevel;
     }
@@ -113,6 +580,23 @@ public final class Options {
         return xMutableCallSites;
     }
 
+    /**
+     * Feeds all options that affect the generated bytecode into the given sink. This is used by
+     * the {@link TransformCache} to detect stale entries.
+     */
+    void putInstrumentationKey(@NotNull PrimitiveSink sink) {
+        sink.putBoolean(xInstrumentAll);
+        sink.putBoolean(InlineGuards.isEnabled(this));
+        if ( InlineGuards.isEnabled(this) ) {
+            // sampled guards aren't inlined
+            for( Map.Entry<String, Integer> entry : new TreeMap<>(sampleRates).entrySet() ) {
+                sink.putUnencodedChars(entry.getKey()).putInt(entry.getValue());
+            }
+        }
+        sink.putBoolean(compactCallSites);
+        sink.putBoolean(uncheckedInternalCalls && !dormant);
+    }
+
     public static enum DumpFormat {
         CLASS("class") {
             @Override
@@ -165,4 +649,17 @@ public final class Options {
         DEDICATED_METHOD
     }
 
+    public static enum SamplingMode {
+        /**
+         * Check exactly every *n*th invocation. The invocations are counted per call site using
+         * a striped counter, so concurrent invocations don't contend for the same counter.
+         */
+        COUNTER,
+        /**
+         * Check invocations with a probability of 1/*n*, using a thread-local random number
+         * generator.
+         */
+        RANDOM
+    }
+
 }
@@ -17,12 +17,17 @@
 package ch.raffael.guards.agent;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import ch.raffael.guards.NotNull;
 import ch.raffael.guards.Nullable;
 import ch.raffael.guards.agent.guava.collect.Iterables;
+import ch.raffael.guards.definition.PerformanceImpact;
 
 
 /**
@@ -35,6 +40,37 @@ public class OptionsBuilder {
     private Path dumpPath = null;
     private final Set<Options.DumpFormat> dumpFormats = EnumSet.noneOf(Options.DumpFormat.class);
 
+    private Path cachePath = null;
+    private int cacheMaxAge;
+    private int retransformBatchSize;
+    private final List<String> includes = new ArrayList<>();
+    private final List<String> excludes = new ArrayList<>();
+    private boolean excludeGenerated;
+    private boolean prelink;
+    private int backgroundThreads;
+    private int backgroundQueueSize;
+    private boolean guardControl;
+    private PerformanceImpact maxImpact;
+    private final Map<String, PerformanceImpact> packageMaxImpacts = new LinkedHashMap<>();
+    private final Map<String, Integer> sampleRates = new LinkedHashMap<>();
+    private Options.SamplingMode samplingMode;
+    private int canaryInvocations;
+    private double cpuBudget;
+    private int budgetInterval;
+    private int budgetSampleRate;
+    private boolean eliminateImpliedGuards;
+    private boolean inlineGuards;
+    private boolean spinGuardStubs;
+    private boolean compactCallSites;
+    private boolean uncheckedInternalCalls;
+    private boolean dormant;
+    private Path policyFile;
+    private boolean lazyViolations;
+    private boolean reportOnly;
+    private Path reportFile;
+    private int reportRate;
+    private int reportBufferSize;
+
     private boolean xDevel = false;
 
     private boolean xUpgradeBytecode;
@@ -56,6 +92,36 @@ public class OptionsBuilder {
         setDump(options.isDump());
         setDumpPath(options.getDumpPath());
         dumpFormats.addAll(options.getDumpFormats());
+        setCachePath(options.getCachePath());
+        setCacheMaxAge(options.getCacheMaxAge());
+        setRetransformBatchSize(options.getRetransformBatchSize());
+        includes.addAll(options.getIncludes());
+        excludes.addAll(options.getExcludes());
+        setExcludeGenerated(options.isExcludeGenerated());
+        setPrelink(options.isPrelink());
+        setBackgroundThreads(options.getBackgroundThreads());
+        setBackgroundQueueSize(options.getBackgroundQueueSize());
+        setGuardControl(options.isGuardControl());
+        setMaxImpact(options.getMaxImpact());
+        packageMaxImpacts.putAll(options.getPackageMaxImpacts());
+        sampleRates.putAll(options.getSampleRates());
+        setSamplingMode(options.getSamplingMode());
+        setCanaryInvocations(options.getCanaryInvocations());
+        setCpuBudget(options.getCpuBudget());
+        setBudgetInterval(options.getBudgetInterval());
+        setBudgetSampleRate(options.getBudgetSampleRate());
+        setEliminateImpliedGuards(options.isEliminateImpliedGuards());
+        setInlineGuards(options.isInlineGuards());
+        setSpinGuardStubs(options.isSpinGuardStubs());
+        setCompactCallSites(options.isCompactCallSites());
+        setUncheckedInternalCalls(options.isUncheckedInternalCalls());
+        setDormant(options.isDormant());
+        setPolicyFile(options.getPolicyFile());
+        setLazyViolations(options.isLazyViolations());
+        setReportOnly(options.isReportOnly());
+        setReportFile(options.getReportFile());
+        setReportRate(options.getReportRate());
+        setReportBufferSize(options.getReportBufferSize());
         setXUpgradeBytecode(options.isXUpgradeBytecode());
         setXNopMode(options.isXNopMode());
         setXInstrumentAll(options.isXInstrumentAll());
@@ -111,6 +177,456 @@ public class OptionsBuilder {
         return this;
     }
 
+    @Nullable
+    public Path getCachePath() {
+        return cachePath;
+    }
+
+    public void setCachePath(@Nullable Path cachePath) {
+        this.cachePath = cachePath;
+    }
+
+    @NotNull
+    public OptionsBuilder withCachePath(@Nullable Path cachePath) {
+        setCachePath(cachePath);
+        return this;
+    }
+
+    public int getCacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    public void setCacheMaxAge(int cacheMaxAge) {
+        this.cacheMaxAge = cacheMaxAge;
+    }
+
+    @NotNull
+    public OptionsBuilder withCacheMaxAge(int cacheMaxAge) {
+        setCacheMaxAge(cacheMaxAge);
+        return this;
+    }
+
+    public int getRetransformBatchSize() {
+        return retransformBatchSize;
+    }
+
+    public void setRetransformBatchSize(int retransformBatchSize) {
+        this.retransformBatchSize = retransformBatchSize;
+    }
+
+    @NotNull
+    public OptionsBuilder withRetransformBatchSize(int retransformBatchSize) {
+        setRetransformBatchSize(retransformBatchSize);
+        return this;
+    }
+
+    @NotNull
+    public List<String> getIncludes() {
+        return includes;
+    }
+
+    @NotNull
+    public OptionsBuilder withInclude(@NotNull String include) {
+        getIncludes().add(include);
+        return this;
+    }
+
+    @NotNull
+    public OptionsBuilder withIncludes(@NotNull Iterable<String> includes) {
+        this.includes.clear();
+        Iterables.addAll(this.includes, includes);
+        return this;
+    }
+
+    @NotNull
+    public List<String> getExcludes() {
+        return excludes;
+    }
+
+    @NotNull
+    public OptionsBuilder withExclude(@NotNull String exclude) {
+        getExcludes().add(exclude);
+        return this;
+    }
+
+    @NotNull
+    public OptionsBuilder withExcludes(@NotNull Iterable<String> excludes) {
+        this.excludes.clear();
+        Iterables.addAll(this.excludes, excludes);
+        return this;
+    }
+
+    public boolean isExcludeGenerated() {
+        return excludeGenerated;
+    }
+
+    public void setExcludeGenerated(boolean excludeGenerated) {
+        this.excludeGenerated = excludeGenerated;
+    }
+
+    @NotNull
+    public OptionsBuilder withExcludeGenerated(boolean excludeGenerated) {
+        setExcludeGenerated(excludeGenerated);
+        return this;
+    }
+
+    public boolean isPrelink() {
+        return prelink;
+    }
+
+    public void setPrelink(boolean prelink) {
+        this.prelink = prelink;
+    }
+
+    @NotNull
+    public OptionsBuilder withPrelink(boolean prelink) {
+        setPrelink(prelink);
+        return this;
+    }
+
+    public int getBackgroundThreads() {
+        return backgroundThreads;
+    }
+
+    public void setBackgroundThreads(int backgroundThreads) {
+        this.backgroundThreads = backgroundThreads;
+    }
+
+    @NotNull
+    public OptionsBuilder withBackgroundThreads(int backgroundThreads) {
+        setBackgroundThreads(backgroundThreads);
+        return this;
+    }
+
+    public int getBackgroundQueueSize() {
+        return backgroundQueueSize;
+    }
+
+    public void setBackgroundQueueSize(int backgroundQueueSize) {
+        this.backgroundQueueSize = backgroundQueueSize;
+    }
+
+    @NotNull
+    public OptionsBuilder withBackgroundQueueSize(int backgroundQueueSize) {
+        setBackgroundQueueSize(backgroundQueueSize);
+        return this;
+    }
+
+    public boolean isGuardControl() {
+        return guardControl;
+    }
+
+    public void setGuardControl(boolean guardControl) {
+        this.guardControl = guardControl;
+    }
+
+    @NotNull
+    public OptionsBuilder withGuardControl(boolean guardControl) {
+        setGuardControl(guardControl);
+        return this;
+    }
+
+    @NotNull
+    public PerformanceImpact getMaxImpact() {
+        return maxImpact;
+    }
+
+    public void setMaxImpact(@NotNull PerformanceImpact maxImpact) {
+        this.maxImpact = maxImpact;
+    }
+
+    @NotNull
+    public OptionsBuilder withMaxImpact(@NotNull PerformanceImpact maxImpact) {
+        setMaxImpact(maxImpact);
+        return this;
+    }
+
+    @NotNull
+    public Map<String, PerformanceImpact> getPackageMaxImpacts() {
+        return packageMaxImpacts;
+    }
+
+    @NotNull
+    public OptionsBuilder withPackageMaxImpact(@NotNull String pattern, @NotNull PerformanceImpact maxImpact) {
+        getPackageMaxImpacts().put(pattern, maxImpact);
+        return this;
+    }
+
+    @NotNull
+    public OptionsBuilder withPackageMaxImpacts(@NotNull Map<String, PerformanceImpact> packageMaxImpacts) {
+        this.packageMaxImpacts.clear();
+        this.packageMaxImpacts.putAll(packageMaxImpacts);
+        return this;
+    }
+
+    @NotNull
+    public Map<String, Integer> getSampleRates() {
+        return sampleRates;
+    }
+
+    /**
+     * @param guardOrImpact The fully qualified name of a guard type or a performance impact
+     *                      level.
+     */
+    @NotNull
+    public OptionsBuilder withSampleRate(@NotNull String guardOrImpact, int rate) {
+        getSampleRates().put(guardOrImpact, rate);
+        return this;
+    }
+
+    @NotNull
+    public OptionsBuilder withSampleRate(@NotNull PerformanceImpact impact, int rate) {
+        return withSampleRate(impact.name(), rate);
+    }
+
+    @NotNull
+    public OptionsBuilder withSampleRates(@NotNull Map<String, Integer> sampleRates) {
+        this.sampleRates.clear();
+        this.sampleRates.putAll(sampleRates);
+        return this;
+    }
+
+    @NotNull
+    public Options.SamplingMode getSamplingMode() {
+        return samplingMode;
+    }
+
+    public void setSamplingMode(@NotNull Options.SamplingMode samplingMode) {
+        this.samplingMode = samplingMode;
+    }
+
+    @NotNull
+    public OptionsBuilder withSamplingMode(@NotNull Options.SamplingMode samplingMode) {
+        setSamplingMode(samplingMode);
+        return this;
+    }
+
+    public int getCanaryInvocations() {
+        return canaryInvocations;
+    }
+
+    public void setCanaryInvocations(int canaryInvocations) {
+        this.canaryInvocations = canaryInvocations;
+    }
+
+    @NotNull
+    public OptionsBuilder withCanaryInvocations(int canaryInvocations) {
+        setCanaryInvocations(canaryInvocations);
+        return this;
+    }
+
+    public double getCpuBudget() {
+        return cpuBudget;
+    }
+
+    public void setCpuBudget(double cpuBudget) {
+        this.cpuBudget = cpuBudget;
+    }
+
+    @NotNull
+    public OptionsBuilder withCpuBudget(double cpuBudget) {
+        setCpuBudget(cpuBudget);
+        return this;
+    }
+
+    public int getBudgetInterval() {
+        return budgetInterval;
+    }
+
+    public void setBudgetInterval(int budgetInterval) {
+        this.budgetInterval = budgetInterval;
+    }
+
+    @NotNull
+    public OptionsBuilder withBudgetInterval(int budgetInterval) {
+        setBudgetInterval(budgetInterval);
+        return this;
+    }
+
+    public int getBudgetSampleRate() {
+        return budgetSampleRate;
+    }
+
+    public void setBudgetSampleRate(int budgetSampleRate) {
+        this.budgetSampleRate = budgetSampleRate;
+    }
+
+    @NotNull
+    public OptionsBuilder withBudgetSampleRate(int budgetSampleRate) {
+        setBudgetSampleRate(budgetSampleRate);
+        return this;
+    }
+
+    public boolean isEliminateImpliedGuards() {
+        return eliminateImpliedGuards;
+    }
+
+    public void setEliminateImpliedGuards(boolean eliminateImpliedGuards) {
+        this.eliminateImpliedGuards = eliminateImpliedGuards;
+    }
+
+    @NotNull
+    public OptionsBuilder withEliminateImpliedGuards(boolean eliminateImpliedGuards) {
+        setEliminateImpliedGuards(eliminateImpliedGuards);
+        return this;
+    }
+
+    public boolean isInlineGuards() {
+        return inlineGuards;
+    }
+
+    public void setInlineGuards(boolean inlineGuards) {
+        this.inlineGuards = inlineGuards;
+    }
+
+    @NotNull
+    public OptionsBuilder withInlineGuards(boolean inlineGuards) {
+        setInlineGuards(inlineGuards);
+        return this;
+    }
+
+    public boolean isSpinGuardStubs() {
+        return spinGuardStubs;
+    }
+
+    public void setSpinGuardStubs(boolean spinGuardStubs) {
+        this.spinGuardStubs = spinGuardStubs;
+    }
+
+    @NotNull
+    public OptionsBuilder withSpinGuardStubs(boolean spinGuardStubs) {
+        setSpinGuardStubs(spinGuardStubs);
+        return this;
+    }
+
+    public boolean isCompactCallSites() {
+        return compactCallSites;
+    }
+
+    public void setCompactCallSites(boolean compactCallSites) {
+        this.compactCallSites = compactCallSites;
+    }
+
+    @NotNull
+    public OptionsBuilder withCompactCallSites(boolean compactCallSites) {
+        setCompactCallSites(compactCallSites);
+        return this;
+    }
+
+    public boolean isUncheckedInternalCalls() {
+        return uncheckedInternalCalls;
+    }
+
+    public void setUncheckedInternalCalls(boolean uncheckedInternalCalls) {
+        this.uncheckedInternalCalls = uncheckedInternalCalls;
+    }
+
+    @NotNull
+    public OptionsBuilder withUncheckedInternalCalls(boolean uncheckedInternalCalls) {
+        setUncheckedInternalCalls(uncheckedInternalCalls);
+        return this;
+    }
+
+    public boolean isDormant() {
+        return dormant;
+    }
+
+    public void setDormant(boolean dormant) {
+        this.dormant = dormant;
+    }
+
+    @NotNull
+    public OptionsBuilder withDormant(boolean dormant) {
+        setDormant(dormant);
+        return this;
+    }
+
+    @Nullable
+    public Path getPolicyFile() {
+        return policyFile;
+    }
+
+    public void setPolicyFile(@Nullable Path policyFile) {
+        this.policyFile = policyFile;
+    }
+
+    @NotNull
+    public OptionsBuilder withPolicyFile(@Nullable Path policyFile) {
+        setPolicyFile(policyFile);
+        return this;
+    }
+
+    public boolean isLazyViolations() {
+        return lazyViolations;
+    }
+
+    public void setLazyViolations(boolean lazyViolations) {
+        this.lazyViolations = lazyViolations;
+    }
+
+    @NotNull
+    public OptionsBuilder withLazyViolations(boolean lazyViolations) {
+        setLazyViolations(lazyViolations);
+        return this;
+    }
+
+    public boolean isReportOnly() {
+        return reportOnly;
+    }
+
+    public void setReportOnly(boolean reportOnly) {
+        this.reportOnly = reportOnly;
+    }
+
+    @NotNull
+    public OptionsBuilder withReportOnly(boolean reportOnly) {
+        setReportOnly(reportOnly);
+        return this;
+    }
+
+    @Nullable
+    public Path getReportFile() {
+        return reportFile;
+    }
+
+    public void setReportFile(@Nullable Path reportFile) {
+        this.reportFile = reportFile;
+    }
+
+    @NotNull
+    public OptionsBuilder withReportFile(@Nullable Path reportFile) {
+        setReportFile(reportFile);
+        return this;
+    }
+
+    public int getReportRate() {
+        return reportRate;
+    }
+
+    public void setReportRate(int reportRate) {
+        this.reportRate = reportRate;
+    }
+
+    @NotNull
+    public OptionsBuilder withReportRate(int reportRate) {
+        setReportRate(reportRate);
+        return this;
+    }
+
+    public int getReportBufferSize() {
+        return reportBufferSize;
+    }
+
+    public void setReportBufferSize(int reportBufferSize) {
+        this.reportBufferSize = reportBufferSize;
+    }
+
+    @NotNull
+    public OptionsBuilder withReportBufferSize(int reportBufferSize) {
+        setReportBufferSize(reportBufferSize);
+        return this;
+    }
+
     public boolean isXDevel() {
         return xDevel;
     }
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.util.Arrays;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+
+
+/**
+ * A character trie mapping name prefixes to values. Lookups return the value of the longest
+ * prefix of the given name and take O(length of the name), regardless of the number of
+ * prefixes.
+ *
+ * Prefixes are matched as they are, i.e. to match a package and all its sub-packages, use the
+ * internal package name including the trailing slash (see {@link #packagePrefix(String)}).
+ *
+ * The trie is not thread-safe while being populated; once populated, it may be shared freely.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class PackageTrie<V> {
+
+    private final Node<V> root = new Node<>();
+    private int size = 0;
+
+    /**
+     * Map the given prefix to the given value.
+     *
+     * @return The previous value for exactly this prefix.
+     */
+    @Nullable
+    V put(@NotNull String prefix, @NotNull V value) {
+        Node<V> node = root;
+        for( int i = 0; i < prefix.length(); i++ ) {
+            node = node.childFor(prefix.charAt(i));
+        }
+        V previous = node.value;
+        node.value = value;
+        if ( previous == null ) {
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * Find the value of the longest prefix of the given name.
+     *
+     * @return The value or `null`, if no prefix matches.
+     */
+    @Nullable
+    V find(@NotNull String name) {
+        Node<V> node = root;
+        V result = node.value;
+        for( int i = 0; i < name.length(); i++ ) {
+            node = node.child(name.charAt(i));
+            if ( node == null ) {
+                break;
+            }
+            if ( node.value != null ) {
+                result = node.value;
+            }
+        }
+        return result;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Converts a package pattern to a prefix in internal form: `com.example` and `com.example.*`
+     * become `com/example/`, matching the package and all sub-packages, `com.example.Foo*`
+     * becomes `com/example/Foo`, matching all classes with names starting with the given
+     * prefix.
+     */
+    @NotNull
+    static String packagePrefix(@NotNull String pattern) {
+        pattern = pattern.trim().replace('.', '/');
+        if ( pattern.endsWith("*") ) {
+            return pattern.substring(0, pattern.length() - 1);
+        }
+        else if ( pattern.isEmpty() || pattern.endsWith("/") ) {
+            return pattern;
+        }
+        else {
+            return pattern + "/";
+        }
+    }
+
+    private static final class Node<V> {
+
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node<?>[] NO_CHILDREN = new Node<?>[0];
+
+        // the fan-out is usually very small, so a linear search on arrays is faster than a map
+        private char[] keys = NO_KEYS;
+        @SuppressWarnings("unchecked")
+        private Node<V>[] children = (Node<V>[])NO_CHILDREN;
+        private V value;
+
+        @Nullable
+        Node<V> child(char c) {
+            char[] keys = this.keys;
+            for( int i = 0; i < keys.length; i++ ) {
+                if ( keys[i] == c ) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        @NotNull
+        Node<V> childFor(char c) {
+            Node<V> child = child(c);
+            if ( child == null ) {
+                child = new Node<>();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                keys[keys.length - 1] = c;
+                children = Arrays.copyOf(children, children.length + 1);
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.definition.PerformanceImpact;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+
+/**
+ * A policy file for the {@link GuardControl}, watched for changes by a daemon thread (see
+ * {@link Options#getPolicyFile()}).
+ *
+ * The file is a properties file (UTF-8) with the following keys:
+ *
+ *  *  `enabled`: Enable or disable all guards.
+ *  *  `package.<pattern>`: Enable or disable the guards in a package, see
+ *     {@link PackageTrie#packagePrefix(String)} for the syntax of the pattern.
+ *  *  `guard.<type>`: Enable or disable a guard type (the fully qualified name of the
+ *     annotation).
+ *  *  `impact.<level>`: Enable or disable a {@link PerformanceImpact} level.
+ *  *  `sampleRate.<type or level>`: Override the sample rate of a guard type or impact level,
+ *     see {@link Options#getSampleRates()}.
+ *
+ * Example:
+ *
+ * ```
+ * package.com.example = true
+ * package.com.example.generated = false
+ * guard.ch.raffael.guards.NoNulls = false
+ * sampleRate.HIGH = 100
+ * ```
+ *
+ * The file always describes the whole policy, changes done through the MXBean are discarded
+ * when the file is reloaded. If the file cannot be read or parsed, the current policy is kept.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class PolicyFile implements Runnable {
+
+    /**
+     * Changes are often written in several steps, wait this long for more events before
+     * reloading.
+     */
+    private static final long SETTLE_MILLIS = 100;
+
+    private final Path file;
+    private final GuardControl control;
+    private WatchService watcher;
+
+    PolicyFile(@NotNull Path file, @NotNull GuardControl control) {
+        this.file = file.toAbsolutePath();
+        this.control = control;
+    }
+
+    /**
+     * Apply the policy file and start watching it in a daemon thread. Watching starts before
+     * the file is applied for the first time, so no change gets lost.
+     */
+    void start() {
+        WatchService watcher;
+        try {
+            watcher = file.getFileSystem().newWatchService();
+            file.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        }
+        catch ( IOException | RuntimeException e ) {
+            LOG.log(Level.WARNING, "Cannot watch " + file + ", changes won't be applied", e);
+            watcher = null;
+        }
+        apply();
+        if ( watcher != null ) {
+            this.watcher = watcher;
+            Thread thread = new Thread(this, PolicyFile.class.getName() + " " + file);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Read the policy file and apply it.
+     *
+     * @return `true`, if the policy has been applied.
+     */
+    boolean apply() {
+        try {
+            control.setPolicy(read(file));
+            LOG.info("Applied guard policy from " + file);
+            return true;
+        }
+        catch ( IOException | IllegalArgumentException e ) {
+            LOG.log(Level.WARNING, "Cannot apply guard policy from " + file + ", keeping the current policy", e);
+            return false;
+        }
+    }
+
+    @Override
+    public void run() {
+        try ( WatchService watcher = this.watcher ) {
+            while ( true ) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                while ( key != null ) {
+                    for( WatchEvent<?> event : key.pollEvents() ) {
+                        // the context is null on overflow, just reload in that case
+                        changed |= event.context() == null || file.getFileName().equals(event.context());
+                    }
+                    key.reset();
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if ( changed ) {
+                    apply();
+                }
+            }
+        }
+        catch ( InterruptedException | ClosedWatchServiceException e ) {
+            LOG.fine("Stopped watching " + file);
+        }
+        catch ( IOException | RuntimeException e ) {
+            LOG.log(Level.SEVERE, "Error watching " + file + ", changes won't be applied anymore", e);
+        }
+    }
+
+    @NotNull
+    static GuardPolicy read(@NotNull Path file) throws IOException {
+        Properties properties = new Properties();
+        try ( Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8) ) {
+            properties.load(reader);
+        }
+        return parse(properties);
+    }
+
+    @NotNull
+    static GuardPolicy parse(@NotNull Properties properties) {
+        GuardPolicy policy = GuardPolicy.DEFAULT;
+        for( String key : properties.stringPropertyNames() ) {
+            String value = properties.getProperty(key).trim();
+            if ( key.equals("enabled") ) {
+                policy = policy.withEnabled(toBoolean(key, value));
+            }
+            else if ( key.startsWith("package.") ) {
+                policy = policy.withPackage(argument(key), toBoolean(key, value));
+            }
+            else if ( key.startsWith("guard.") ) {
+                policy = policy.withGuard(argument(key), toBoolean(key, value));
+            }
+            else if ( key.startsWith("impact.") ) {
+                policy = policy.withImpact(PerformanceImpact.valueOf(argument(key).toUpperCase()), toBoolean(key, value));
+            }
+            else if ( key.startsWith("sampleRate.") ) {
+                try {
+                    policy = policy.withSampleRate(argument(key), Integer.parseInt(value));
+                }
+                catch ( NumberFormatException e ) {
+                    throw new IllegalArgumentException("Invalid sample rate for " + key + ": " + value, e);
+                }
+            }
+            else {
+                throw new IllegalArgumentException("Unknown policy key: " + key);
+            }
+        }
+        return policy;
+    }
+
+    @NotNull
+    private static String argument(@NotNull String key) {
+        String argument = key.substring(key.indexOf('.') + 1).trim();
+        if ( argument.isEmpty() ) {
+            throw new IllegalArgumentException("Missing argument in policy key: " + key);
+        }
+        return argument;
+    }
+
+    private static boolean toBoolean(@NotNull String key, @NotNull String value) {
+        try {
+            return AgentArgsOptionsProvider.toBoolean(value);
+        }
+        catch ( IllegalArgumentException e ) {
+            throw new IllegalArgumentException(key + ": " + e.getMessage(), e);
+        }
+    }
+
+}
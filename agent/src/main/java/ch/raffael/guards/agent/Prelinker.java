@@ -0,0 +1,165 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+import ch.raffael.guards.agent.asm.ClassReader;
+import ch.raffael.guards.agent.asm.ClassVisitor;
+import ch.raffael.guards.agent.asm.Handle;
+import ch.raffael.guards.agent.asm.MethodVisitor;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+import static ch.raffael.guards.agent.asm.Opcodes.ASM5;
+
+
+/**
+ * Background task that links the guard call sites of a freshly instrumented class, so their
+ * first invocations find a ready-made call site.
+ *
+ * The call sites are read from the instrumented bytecode, so this works for classes from the
+ * transform cache as well. The class is looked up using `ClassLoader.findLoadedClass()`, as
+ * the task is submitted from the transformer, the class may not be defined yet, in which case
+ * the task waits a bit. It never triggers loading a class, the task is dropped if the class
+ * doesn't show up.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class Prelinker implements Runnable {
+
+    private static final int MAX_ATTEMPTS = 10;
+    private static final long RETRY_DELAY_MILLIS = 10;
+
+    private static final Method FIND_LOADED_CLASS;
+    static {
+        Method findLoadedClass = null;
+        try {
+            findLoadedClass = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+            findLoadedClass.setAccessible(true);
+        }
+        catch ( Exception e ) {
+            LOG.log(Level.WARNING, "Cannot access ClassLoader.findLoadedClass(), pre-linking disabled", e);
+            findLoadedClass = null;
+        }
+        FIND_LOADED_CLASS = findLoadedClass;
+    }
+
+    private final WeakReference<ClassLoader> loader;
+    private final String className;
+    private final byte[] bytecode;
+
+    Prelinker(@NotNull ClassLoader loader, @NotNull String className, @NotNull byte[] bytecode) {
+        this.loader = new WeakReference<>(loader);
+        this.className = className;
+        this.bytecode = bytecode;
+    }
+
+    static boolean isAvailable() {
+        return FIND_LOADED_CLASS != null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            Class<?> type = awaitClass();
+            if ( type == null ) {
+                LOG.fine("Not pre-linking " + className + ": Class not loaded");
+                return;
+            }
+            Linker linker = Indy.linker(type);
+            for( Site site : readSites() ) {
+                linker.prelink(site.methodName, site.methodDescriptor, site.parameterIndex, site.parameterName);
+            }
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+        catch ( Exception | LinkageError e ) {
+            // the call sites will be linked (and the errors reported) on their first invocation
+            LOG.log(Level.FINE, "Error pre-linking " + className, e);
+        }
+    }
+
+    @Nullable
+    private Class<?> awaitClass() throws Exception {
+        String name = className.replace('/', '.');
+        for( int attempt = 0; attempt < MAX_ATTEMPTS; attempt++ ) {
+            if ( attempt > 0 ) {
+                Thread.sleep(RETRY_DELAY_MILLIS);
+            }
+            ClassLoader loader = this.loader.get();
+            if ( loader == null ) {
+                return null;
+            }
+            Class<?> type = (Class<?>)FIND_LOADED_CLASS.invoke(loader, name);
+            if ( type != null ) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    @NotNull
+    private List<Site> readSites() {
+        final List<Site> sites = new ArrayList<>();
+        new ClassReader(bytecode).accept(new ClassVisitor(ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return new MethodVisitor(ASM5) {
+                    @Override
+                    public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+                        // the call sites reporting violations of inlined guards are linked
+                        // on the first violation only
+                        if ( bsm.equals(Indy.BOOTSTRAP_ASM_HANDLE) && !name.endsWith(InlineGuards.VIOLATION_SUFFIX) ) {
+                            sites.add(new Site((String)bsmArgs[0], (String)bsmArgs[1], (Integer)bsmArgs[2], (String)bsmArgs[3]));
+                        }
+                        else if ( bsm.equals(Indy.BOOTSTRAP_ARGUMENTS_ASM_HANDLE) ) {
+                            // the call site of several arguments is composed of the call sites
+                            // of the single arguments
+                            String[] indexes = ((String)bsmArgs[2]).split(",");
+                            String[] names = ((String)bsmArgs[3]).split(",", -1);
+                            for( int i = 0; i < indexes.length; i++ ) {
+                                sites.add(new Site((String)bsmArgs[0], (String)bsmArgs[1], Integer.parseInt(indexes[i]), names[i]));
+                            }
+                        }
+                    }
+                };
+            }
+        }, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return sites;
+    }
+
+    private static final class Site {
+        private final String methodName;
+        private final String methodDescriptor;
+        private final int parameterIndex;
+        private final String parameterName;
+        private Site(String methodName, String methodDescriptor, int parameterIndex, String parameterName) {
+            this.methodName = methodName;
+            this.methodDescriptor = methodDescriptor;
+            this.parameterIndex = parameterIndex;
+            this.parameterName = parameterName;
+        }
+    }
+
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.lang.annotation.Annotation;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.agent.guava.base.Stopwatch;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Retransforms the classes that had already been loaded when the agent was attached to a
+ * running VM, or whose package has been (de)activated in dormant mode (see
+ * {@link GuardActivation}).
+ *
+ * Only classes that actually declare guarded methods are retransformed. These are determined
+ * using reflection before retransforming anything, then they're retransformed in batches of
+ * {@link Options#getRetransformBatchSize() retransformBatchSize} classes. If a batch fails, the
+ * classes of that batch are retransformed one by one.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class Retransformer {
+
+    private static final int PROGRESS_STEPS = 10;
+
+    private final Instrumentation instrumentation;
+    private final GuardsAgent.Transformer transformer;
+    private final Options options;
+
+    private final Map<Class<? extends Annotation>, Boolean> guardTypes = new HashMap<>();
+
+    private int loadedCount = 0;
+    private int candidateCount = 0;
+    private int retransformedCount = 0;
+    private int failedCount = 0;
+    private int batchCount = 0;
+
+    Retransformer(@NotNull Instrumentation instrumentation, @NotNull GuardsAgent.Transformer transformer, @NotNull Options options) {
+        this.instrumentation = instrumentation;
+        this.transformer = transformer;
+        this.options = options;
+    }
+
+    void retransformAll() {
+        retransformAll(instrumentation.getAllLoadedClasses());
+    }
+
+    /**
+     * Retransform those of the given classes that declare guarded members.
+     */
+    void retransformAll(@NotNull Class<?>[] classes) {
+        Stopwatch filterTime = Stopwatch.createStarted();
+        List<Class<?>> candidates = selectCandidates(classes);
+        filterTime.stop();
+        LOG.info(String.format("Retransforming %d of %d loaded classes (selected in %dms)",
+                candidates.size(), loadedCount, filterTime.elapsed(TimeUnit.MILLISECONDS)));
+        Stopwatch retransformTime = Stopwatch.createStarted();
+        retransform(candidates);
+        retransformTime.stop();
+        LOG.info(String.format("Retransformation done: %d classes retransformed, %d failed, %d batches in %dms",
+                retransformedCount, failedCount, batchCount, retransformTime.elapsed(TimeUnit.MILLISECONDS)));
+    }
+
+    @NotNull
+    List<Class<?>> selectCandidates(@NotNull Class<?>[] classes) {
+        List<Class<?>> candidates = new ArrayList<>();
+        for( Class<?> c : classes ) {
+            loadedCount++;
+            if ( !instrumentation.isModifiableClass(c) || !transformer.isTransformable(c) ) {
+                continue;
+            }
+            if ( options.isXInstrumentAll() || hasGuards(c) ) {
+                candidates.add(c);
+            }
+        }
+        candidateCount = candidates.size();
+        return candidates;
+    }
+
+    void retransform(@NotNull List<Class<?>> classes) {
+        int batchSize = Math.max(options.getRetransformBatchSize(), 1);
+        int nextProgress = 1;
+        for( int start = 0; start < classes.size(); start += batchSize ) {
+            List<Class<?>> batch = classes.subList(start, Math.min(start + batchSize, classes.size()));
+            batchCount++;
+            try {
+                instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+                retransformedCount += batch.size();
+            }
+            catch ( UnmodifiableClassException | RuntimeException | LinkageError e ) {
+                // if retransformation fails, none of the classes has been retransformed
+                LOG.log(Level.FINE, "Batch retransformation failed, retrying one by one", e);
+                retransformSingly(batch);
+            }
+            int done = start + batch.size();
+            while ( nextProgress < PROGRESS_STEPS && done * PROGRESS_STEPS >= classes.size() * nextProgress ) {
+                LOG.info(String.format("Retransformation: %d%% (%d of %d classes)",
+                        nextProgress * 100 / PROGRESS_STEPS, done, classes.size()));
+                nextProgress++;
+            }
+        }
+    }
+
+    private void retransformSingly(@NotNull List<Class<?>> batch) {
+        for( Class<?> c : batch ) {
+            try {
+                instrumentation.retransformClasses(c);
+                retransformedCount++;
+            }
+            catch ( UnmodifiableClassException | RuntimeException | LinkageError e ) {
+                failedCount++;
+                LOG.log(Level.WARNING, "Cannot retransform " + c, e);
+            }
+        }
+    }
+
+    private boolean hasGuards(@NotNull Class<?> c) {
+        try {
+            for( Method method : c.getDeclaredMethods() ) {
+                if ( hasGuards(method.getAnnotations(), method.getParameterAnnotations()) ) {
+                    return true;
+                }
+            }
+            for( Constructor<?> constructor : c.getDeclaredConstructors() ) {
+                if ( hasGuards(constructor.getAnnotations(), constructor.getParameterAnnotations()) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        catch ( RuntimeException | LinkageError e ) {
+            // let the transformer decide
+            LOG.log(Level.FINE, "Cannot inspect " + c + ", retransforming it anyway", e);
+            return true;
+        }
+    }
+
+    private boolean hasGuards(@NotNull Annotation[] annotations, @NotNull Annotation[][] parameterAnnotations) {
+        if ( containsGuard(annotations) ) {
+            return true;
+        }
+        for( Annotation[] parameter : parameterAnnotations ) {
+            if ( containsGuard(parameter) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsGuard(@NotNull Annotation[] annotations) {
+        for( Annotation annotation : annotations ) {
+            if ( isGuard(annotation.annotationType()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isGuard(@NotNull Class<? extends Annotation> type) {
+        Boolean guard = guardTypes.get(type);
+        if ( guard == null ) {
+            try {
+                guard = new GuardAnnotationInspector(type).isGuard();
+            }
+            catch ( GuardAnnotationInspector.Circularity circularity ) {
+                // the linker will report this
+                guard = true;
+            }
+            guardTypes.put(type, guard);
+        }
+        return guard;
+    }
+
+    int getLoadedCount() {
+        return loadedCount;
+    }
+
+    int getCandidateCount() {
+        return candidateCount;
+    }
+
+    int getRetransformedCount() {
+        return retransformedCount;
+    }
+
+    int getFailedCount() {
+        return failedCount;
+    }
+
+    int getBatchCount() {
+        return batchCount;
+    }
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.raffael.guards.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import ch.raffael.guards.NotNull;
+
+import static java.lang.invoke.MethodType.methodType;
+
+
+/**
+ * Decides which invocations of a sampled guard will actually be checked (see
+ * {@link Options#getSampleRates()}).
+ *
+ * The counting sampler uses one counter per stripe, threads are assigned to stripes by their
+ * ID. The counters are padded to separate cache lines and updated without synchronisation:
+ * A lost update only delays the next check by one invocation, contention on a shared counter
+ * would cost much more. Each stripe checks its first invocation, so a caller that always
+ * violates a guard is caught right away.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class Sampler {
+
+    private static final int STRIPES = 8;
+    // 16 ints = 64 bytes, the usual cache line size
+    private static final int PADDING = 16;
+
+    private static final MethodHandle SAMPLE_COUNTER;
+    private static final MethodHandle SAMPLE_RANDOM;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            SAMPLE_COUNTER = lookup.findVirtual(Sampler.class, "sample", methodType(boolean.class));
+            SAMPLE_RANDOM = lookup.findStatic(Sampler.class, "sampleRandom", methodType(boolean.class, int.class));
+        }
+        catch ( NoSuchMethodException | IllegalAccessException e ) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int rate;
+    private final int[] counters = new int[STRIPES * PADDING];
+
+    private Sampler(int rate) {
+        this.rate = rate;
+        Arrays.fill(counters, rate - 1);
+    }
+
+    /**
+     * Create a method handle `()boolean` returning `true` for the invocations to be checked.
+     */
+    @NotNull
+    static MethodHandle sampleHandle(int rate, @NotNull Options.SamplingMode mode) {
+        switch ( mode ) {
+            case RANDOM:
+                return MethodHandles.insertArguments(SAMPLE_RANDOM, 0, rate);
+            case COUNTER:
+            default:
+                return SAMPLE_COUNTER.bindTo(new Sampler(rate));
+        }
+    }
+
+    private boolean sample() {
+        int index = ((int)Thread.currentThread().getId() & (STRIPES - 1)) * PADDING;
+        int count = counters[index] + 1;
+        if ( count >= rate ) {
+            counters[index] = 0;
+            return true;
+        }
+        else {
+            counters[index] = count;
+            return false;
+        }
+    }
+
+    private static boolean sampleRandom(int rate) {
+        return ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+}
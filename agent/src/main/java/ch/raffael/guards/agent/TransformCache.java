@@ -0,0 +1,549 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.zip.CRC32;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+import ch.raffael.guards.agent.guava.hash.HashCode;
+import ch.raffael.guards.agent.guava.hash.Hasher;
+import ch.raffael.guards.agent.guava.hash.Hashing;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Persistent on-disk cache of instrumented class bytes.
+ *
+ * The cache consists of two files in the cache directory: A memory-mapped index (an open
+ * addressing hash table) and a data file containing the instrumented bytecode. Entries are keyed
+ * by a hash of the class name, the original class bytes and the guard annotations used in the
+ * class (see {@link Instrumenter#guardAnnotations(ClassLoader, byte[])}): If an annotation type
+ * becomes a guard or stops being one, e.g. after a library upgrade, the classes using it are
+ * instrumented again, even if they're unchanged themselves. The agent version and all options
+ * that affect the generated bytecode are stored as fingerprint in the index header, if they
+ * don't match, the whole cache is discarded.
+ *
+ * Each start of the agent increments the cache's generation. Entries that haven't been used for
+ * {@link Options#getCacheMaxAge() cacheMaxAge} generations are evicted when opening the cache,
+ * the data file is compacted at the same time.
+ *
+ * Lookups and stores only hold the cache's lock while accessing the index, the data file is
+ * read and written outside of it.
+ *
+ * Only one JVM may use a cache directory at any given time. If the index is locked by another
+ * JVM, the cache will be disabled.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class TransformCache implements AutoCloseable {
+
+    /**
+     * Returned by {@link #lookup(String, byte[], Set)} if the class is known to be left unchanged by
+     * the transformer.
+     */
+    static final byte[] UNCHANGED = new byte[0];
+
+    static final String INDEX_FILE = "guards-cache.idx";
+    static final String DATA_FILE = "guards-cache.dat";
+
+    private static final int MAGIC = 0x47524443; // "GRDC"
+    private static final int FORMAT = 2;
+
+    private static final int CAPACITY = 1 << 16;
+    private static final int MAX_ENTRIES = CAPACITY / 4 * 3;
+
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_FORMAT = 4;
+    private static final int H_FINGERPRINT_HI = 8;
+    private static final int H_FINGERPRINT_LO = 16;
+    private static final int H_GENERATION = 24;
+    private static final int H_COUNT = 28;
+    private static final int H_DATA_SIZE = 32;
+    private static final int H_CAPACITY = 40;
+
+    private static final int SLOT_SIZE = 40;
+    private static final int S_KEY_HI = 0;
+    private static final int S_KEY_LO = 8;
+    private static final int S_OFFSET = 16;
+    private static final int S_LENGTH = 24;
+    private static final int S_CHECKSUM = 28;
+    private static final int S_GENERATION = 32;
+
+    private static final long INDEX_SIZE = HEADER_SIZE + (long)CAPACITY * SLOT_SIZE;
+
+    private final Options options;
+    private final Path directory;
+    private final FileChannel indexChannel;
+    private final FileLock lock;
+    private final MappedByteBuffer index;
+    private FileChannel dataChannel;
+
+    private int generation;
+    private int count;
+    private long dataSize;
+    private boolean closed = false;
+    private boolean fullReported = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private int evicted = 0;
+
+    private TransformCache(Options options, Path directory, FileChannel indexChannel, FileLock lock, MappedByteBuffer index, FileChannel dataChannel) {
+        this.options = options;
+        this.directory = directory;
+        this.indexChannel = indexChannel;
+        this.lock = lock;
+        this.index = index;
+        this.dataChannel = dataChannel;
+    }
+
+    /**
+     * Open the cache in the directory specified in the options.
+     *
+     * @return The cache or `null`, if the cache cannot be used.
+     */
+    @Nullable
+    static TransformCache open(@NotNull Options options, @NotNull String agentVersion) {
+        Path directory = options.getCachePath();
+        if ( directory == null ) {
+            return null;
+        }
+        FileChannel indexChannel = null;
+        try {
+            Files.createDirectories(directory);
+            indexChannel = FileChannel.open(directory.resolve(INDEX_FILE),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            FileLock lock;
+            try {
+                lock = indexChannel.tryLock();
+            }
+            catch ( OverlappingFileLockException e ) {
+                lock = null;
+            }
+            if ( lock == null ) {
+                LOG.warning("Transform cache " + directory + " is in use, running without cache");
+                indexChannel.close();
+                return null;
+            }
+            boolean reset = indexChannel.size() != INDEX_SIZE;
+            if ( reset ) {
+                indexChannel.truncate(0);
+            }
+            MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_SIZE);
+            index.order(ByteOrder.BIG_ENDIAN);
+            FileChannel dataChannel = FileChannel.open(directory.resolve(DATA_FILE),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+            TransformCache cache = new TransformCache(options, directory, indexChannel, lock, index, dataChannel);
+            cache.init(fingerprint(options, agentVersion), reset);
+            return cache;
+        }
+        catch ( IOException | RuntimeException e ) {
+            LOG.log(Level.WARNING, "Cannot open transform cache " + directory + ", running without cache", e);
+            if ( indexChannel != null ) {
+                try {
+                    indexChannel.close();
+                }
+                catch ( IOException e2 ) {
+                    e.addSuppressed(e2);
+                }
+            }
+            return null;
+        }
+    }
+
+    private static HashCode fingerprint(Options options, String agentVersion) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        hasher.putInt(FORMAT);
+        hasher.putUnencodedChars(agentVersion);
+        options.putInstrumentationKey(hasher);
+        return hasher.hash();
+    }
+
+    private void init(HashCode fingerprint, boolean reset) throws IOException {
+        ByteBuffer fp = ByteBuffer.wrap(fingerprint.asBytes());
+        long fingerprintHi = fp.getLong(0);
+        long fingerprintLo = fp.getLong(8);
+        if ( !reset ) {
+            reset = index.getInt(H_MAGIC) != MAGIC
+                    || index.getInt(H_FORMAT) != FORMAT
+                    || index.getInt(H_CAPACITY) != CAPACITY
+                    || index.getLong(H_FINGERPRINT_HI) != fingerprintHi
+                    || index.getLong(H_FINGERPRINT_LO) != fingerprintLo
+                    || index.getLong(H_DATA_SIZE) > dataChannel.size();
+        }
+        if ( reset ) {
+            LOG.fine("Initializing transform cache " + directory);
+            clearIndex();
+            dataChannel.truncate(0);
+            index.putInt(H_MAGIC, MAGIC);
+            index.putInt(H_FORMAT, FORMAT);
+            index.putInt(H_CAPACITY, CAPACITY);
+            index.putLong(H_FINGERPRINT_HI, fingerprintHi);
+            index.putLong(H_FINGERPRINT_LO, fingerprintLo);
+            generation = 1;
+            count = 0;
+            dataSize = 0;
+        }
+        else {
+            generation = index.getInt(H_GENERATION) + 1;
+            count = index.getInt(H_COUNT);
+            dataSize = index.getLong(H_DATA_SIZE);
+            evictStale();
+        }
+        writeHeader();
+        LOG.fine("Transform cache " + directory + ": generation " + generation + ", " + count + " entries, " + evicted + " evicted");
+    }
+
+    private void clearIndex() {
+        for( int i = 0; i < CAPACITY; i++ ) {
+            index.putInt(slot(i) + S_GENERATION, 0);
+        }
+    }
+
+    /**
+     * Evict all entries that haven't been used for too long and compact the data file, if there's
+     * too much garbage in it.
+     */
+    private void evictStale() throws IOException {
+        int minGeneration = generation - Math.max(options.getCacheMaxAge(), 1);
+        long[] keysHi = new long[count];
+        long[] keysLo = new long[count];
+        long[] offsets = new long[count];
+        int[] lengths = new int[count];
+        int[] checksums = new int[count];
+        int[] generations = new int[count];
+        int live = 0;
+        long liveSize = 0;
+        for( int i = 0; i < CAPACITY && live < count; i++ ) {
+            int slot = slot(i);
+            int slotGeneration = index.getInt(slot + S_GENERATION);
+            if ( slotGeneration == 0 ) {
+                continue;
+            }
+            if ( slotGeneration < minGeneration ) {
+                evicted++;
+                continue;
+            }
+            keysHi[live] = index.getLong(slot + S_KEY_HI);
+            keysLo[live] = index.getLong(slot + S_KEY_LO);
+            offsets[live] = index.getLong(slot + S_OFFSET);
+            lengths[live] = index.getInt(slot + S_LENGTH);
+            checksums[live] = index.getInt(slot + S_CHECKSUM);
+            generations[live] = slotGeneration;
+            liveSize += lengths[live];
+            live++;
+        }
+        if ( evicted == 0 && liveSize * 2 >= dataSize ) {
+            return;
+        }
+        // rebuild the index (we can't just remove entries from an open addressing hash table)
+        // and copy the live entries to a new data file
+        Path dataFile = directory.resolve(DATA_FILE);
+        Path compactFile = directory.resolve(DATA_FILE + ".tmp");
+        clearIndex();
+        count = 0;
+        dataSize = 0;
+        try ( FileChannel compact = FileChannel.open(compactFile,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING) ) {
+            for( int i = 0; i < live; i++ ) {
+                if ( lengths[i] > 0 ) {
+                    ByteBuffer buf = ByteBuffer.allocate(lengths[i]);
+                    readFully(dataChannel, buf, offsets[i]);
+                    buf.flip();
+                    writeFully(compact, buf, dataSize);
+                }
+                putSlot(keysHi[i], keysLo[i], dataSize, lengths[i], checksums[i], generations[i]);
+                dataSize += lengths[i];
+            }
+        }
+        dataChannel.close();
+        Files.move(compactFile, dataFile, StandardCopyOption.REPLACE_EXISTING);
+        dataChannel = FileChannel.open(dataFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    @NotNull
+    Options getOptions() {
+        return options;
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    long getStores() {
+        return stores.get();
+    }
+
+    /**
+     * Look up the instrumented bytecode for the given class.
+     *
+     * @param guardAnnotations The guard annotations used in the class, see
+     *                         {@link Instrumenter#guardAnnotations(ClassLoader, byte[])}.
+     *
+     * @return The instrumented bytecode, {@link #UNCHANGED}, if the class is known to remain
+     *         unchanged, or `null` if there's no such entry in the cache.
+     */
+    @Nullable
+    byte[] lookup(@NotNull String className, @NotNull byte[] classfileBuffer, @NotNull Set<String> guardAnnotations) {
+        ByteBuffer key = key(className, classfileBuffer, guardAnnotations);
+        int slot;
+        int length;
+        long offset;
+        int checksum;
+        FileChannel data;
+        synchronized ( this ) {
+            if ( closed ) {
+                return null;
+            }
+            slot = findSlot(key.getLong(0), key.getLong(8));
+            if ( slot < 0 || index.getInt(slot + S_GENERATION) == 0 ) {
+                misses.incrementAndGet();
+                return null;
+            }
+            length = index.getInt(slot + S_LENGTH);
+            offset = index.getLong(slot + S_OFFSET);
+            checksum = index.getInt(slot + S_CHECKSUM);
+            data = dataChannel;
+        }
+        byte[] bytecode;
+        if ( length == 0 ) {
+            bytecode = UNCHANGED;
+        }
+        else {
+            // the data file is append-only while the cache is open, positional reads don't need the lock
+            bytecode = new byte[length];
+            try {
+                readFully(data, ByteBuffer.wrap(bytecode), offset);
+            }
+            catch ( IOException e ) {
+                failed(e);
+                return null;
+            }
+            if ( checksum(bytecode) != checksum ) {
+                LOG.warning("Checksum mismatch in transform cache for " + className);
+                misses.incrementAndGet();
+                return null;
+            }
+        }
+        synchronized ( this ) {
+            if ( !closed ) {
+                index.putInt(slot + S_GENERATION, generation);
+            }
+        }
+        hits.incrementAndGet();
+        return bytecode;
+    }
+
+    /**
+     * Store the result of the transformation of a class.
+     *
+     * @param guardAnnotations     The guard annotations used in the class, see
+     *                             {@link Instrumenter#guardAnnotations(ClassLoader, byte[])}.
+     * @param instrumentedBytecode The instrumented bytecode or `null`, if the class remains
+     *                             unchanged.
+     */
+    void store(@NotNull String className, @NotNull byte[] classfileBuffer, @NotNull Set<String> guardAnnotations, @Nullable byte[] instrumentedBytecode) {
+        ByteBuffer key = key(className, classfileBuffer, guardAnnotations);
+        long keyHi = key.getLong(0);
+        long keyLo = key.getLong(8);
+        int length = 0;
+        int checksum = 0;
+        if ( instrumentedBytecode != null && instrumentedBytecode.length > 0 ) {
+            length = instrumentedBytecode.length;
+            checksum = checksum(instrumentedBytecode);
+        }
+        long offset;
+        FileChannel data;
+        synchronized ( this ) {
+            if ( closed ) {
+                return;
+            }
+            if ( count >= MAX_ENTRIES ) {
+                if ( !fullReported ) {
+                    LOG.warning("Transform cache " + directory + " is full");
+                    fullReported = true;
+                }
+                return;
+            }
+            // reserve the space in the data file, the entry is added to the index once it's written
+            offset = dataSize;
+            dataSize += length;
+            data = dataChannel;
+        }
+        if ( length > 0 ) {
+            try {
+                writeFully(data, ByteBuffer.wrap(instrumentedBytecode), offset);
+            }
+            catch ( IOException e ) {
+                failed(e);
+                return;
+            }
+        }
+        synchronized ( this ) {
+            if ( !closed && putSlot(keyHi, keyLo, offset, length, checksum, generation) ) {
+                stores.incrementAndGet();
+                writeHeader();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if ( closed ) {
+            return;
+        }
+        closed = true;
+        LOG.info(toString());
+        try {
+            writeHeader();
+            index.force();
+            lock.release();
+        }
+        catch ( IOException | RuntimeException e ) {
+            LOG.log(Level.WARNING, "Error closing transform cache " + directory, e);
+        }
+        finally {
+            try {
+                dataChannel.close();
+                indexChannel.close();
+            }
+            catch ( IOException e ) {
+                LOG.log(Level.WARNING, "Error closing transform cache " + directory, e);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Transform cache %s: %d hits, %d misses, %d stored, %d evicted on open",
+                directory, hits.get(), misses.get(), stores.get(), evicted);
+    }
+
+    private void failed(IOException e) {
+        synchronized ( this ) {
+            if ( closed ) {
+                // e.g. the channel was closed while reading
+                return;
+            }
+        }
+        LOG.log(Level.WARNING, "I/O error in transform cache " + directory + ", disabling cache", e);
+        close();
+    }
+
+    private void writeHeader() {
+        index.putInt(H_GENERATION, generation);
+        index.putInt(H_COUNT, count);
+        index.putLong(H_DATA_SIZE, dataSize);
+    }
+
+    private boolean putSlot(long keyHi, long keyLo, long offset, int length, int checksum, int slotGeneration) {
+        int slot = findSlot(keyHi, keyLo);
+        if ( slot < 0 ) {
+            return false;
+        }
+        if ( index.getInt(slot + S_GENERATION) == 0 ) {
+            count++;
+        }
+        index.putLong(slot + S_KEY_HI, keyHi);
+        index.putLong(slot + S_KEY_LO, keyLo);
+        index.putLong(slot + S_OFFSET, offset);
+        index.putInt(slot + S_LENGTH, length);
+        index.putInt(slot + S_CHECKSUM, checksum);
+        index.putInt(slot + S_GENERATION, slotGeneration);
+        return true;
+    }
+
+    /**
+     * Find the slot for the given key using linear probing.
+     *
+     * @return The position of the slot in the index, either containing the key or empty; `-1` if
+     *         the table is full.
+     */
+    private int findSlot(long keyHi, long keyLo) {
+        int i = (int)keyLo & (CAPACITY - 1);
+        for( int probe = 0; probe < CAPACITY; probe++ ) {
+            int slot = slot(i);
+            if ( index.getInt(slot + S_GENERATION) == 0 ) {
+                return slot;
+            }
+            if ( index.getLong(slot + S_KEY_HI) == keyHi && index.getLong(slot + S_KEY_LO) == keyLo ) {
+                return slot;
+            }
+            i = (i + 1) & (CAPACITY - 1);
+        }
+        return -1;
+    }
+
+    private static int slot(int i) {
+        return HEADER_SIZE + i * SLOT_SIZE;
+    }
+
+    private static ByteBuffer key(String className, byte[] classfileBuffer, Set<String> guardAnnotations) {
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putUnencodedChars(className)
+                .putBytes(classfileBuffer);
+        for( String guardAnnotation : guardAnnotations ) {
+            hasher.putUnencodedChars(guardAnnotation);
+        }
+        return ByteBuffer.wrap(hasher.hash().asBytes());
+    }
+
+    private static int checksum(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int)crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while ( buf.hasRemaining() ) {
+            int count = channel.read(buf, position);
+            if ( count < 0 ) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += count;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while ( buf.hasRemaining() ) {
+            position += channel.write(buf, position);
+        }
+    }
+
+}
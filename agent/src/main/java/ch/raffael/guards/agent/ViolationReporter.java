@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+
+import ch.raffael.guards.NotNull;
+import ch.raffael.guards.Nullable;
+
+import static ch.raffael.guards.agent.Logging.LOG;
+
+
+/**
+ * Reports contract violations without throwing them (see {@link Options#isReportOnly()}).
+ *
+ * Every violation is counted for its {@link GuardTarget}. Only the first violation of a guard
+ * instance per value type is queued for reporting, so a call site that keeps violating its
+ * contract neither allocates nor contends for anything after that.
+ *
+ * The queue is a bounded lock-free ring buffer with many producers and a single consumer:
+ * A producer claims a slot by advancing the head with a CAS and then publishes its event to
+ * the slot, events that don't fit are dropped. A daemon thread drains the published events
+ * every second and writes at most {@link Options#getReportRate() reportRate} of them to the
+ * log or to the {@link Options#getReportFile() report file}, the remaining ones stay in the
+ * buffer for the next drain.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+final class ViolationReporter {
+
+    private static final long DRAIN_INTERVAL = 1000;
+
+    private static volatile ViolationReporter instance = null;
+
+    private final Object lock = new Object();
+    private final AtomicReferenceArray<Event> buffer;
+    private final int mask;
+    // the next slot to claim
+    private final AtomicLong head = new AtomicLong();
+    // the next slot to drain, only written by the consumer
+    private volatile long tail = 0;
+    private final int reportRate;
+    @Nullable
+    private final Path reportFile;
+    private final AtomicLong droppedCount = new AtomicLong();
+    // guarded by lock
+    private ScheduledThreadPoolExecutor scheduler = null;
+    private long reportedCount = 0;
+    private long lastDroppedCount = 0;
+
+    ViolationReporter(@NotNull Options options) {
+        int capacity = Integer.highestOneBit(Math.max(1, options.getReportBufferSize()));
+        if ( capacity < options.getReportBufferSize() ) {
+            capacity <<= 1;
+        }
+        buffer = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        reportRate = Math.max(1, options.getReportRate());
+        reportFile = options.getReportFile();
+    }
+
+    /**
+     * The reporter for the agent's options, started when used for the first time.
+     */
+    @NotNull
+    static ViolationReporter getInstance() {
+        ViolationReporter reporter = instance;
+        if ( reporter == null ) {
+            synchronized ( ViolationReporter.class ) {
+                reporter = instance;
+                if ( reporter == null ) {
+                    reporter = new ViolationReporter(GuardsAgent.getInstance().getOptions());
+                    reporter.start();
+                    instance = reporter;
+                }
+            }
+        }
+        return reporter;
+    }
+
+    /**
+     * Write the pending violations of the reporter, if there is one, up to `reportRate`.
+     */
+    static void flush() {
+        ViolationReporter reporter = instance;
+        if ( reporter != null ) {
+            reporter.drain();
+            int pending = reporter.getPendingCount();
+            if ( pending > 0 ) {
+                LOG.warning("Contract violations not reported: " + pending + " pending");
+            }
+        }
+    }
+
+    /**
+     * Drain the buffer periodically in a daemon thread.
+     */
+    void start() {
+        synchronized ( lock ) {
+            if ( scheduler != null ) {
+                return;
+            }
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, ViolationReporter.class.getName());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        drain();
+                    }
+                    catch ( Throwable e ) {
+                        // don't let the scheduler cancel the task
+                        LOG.log(Level.SEVERE, "Error reporting contract violations", e);
+                    }
+                }
+            }, DRAIN_INTERVAL, DRAIN_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+        LOG.info("Reporting contract violations to " + (reportFile == null ? "the log" : reportFile)
+                + ", at most " + reportRate + " per second");
+    }
+
+    /**
+     * Count the violation and queue it for reporting, if it's the first of its guard instance
+     * with this value type.
+     */
+    void report(@NotNull GuardInstance instance, @Nullable Object value) {
+        GuardTarget target = instance.getTarget();
+        long count = target.countViolation();
+        Class<?> valueType;
+        if ( value == null ) {
+            valueType = Void.class;
+        }
+        else if ( target.getValueType().isPrimitive() ) {
+            valueType = target.getValueType();
+        }
+        else {
+            valueType = value.getClass();
+        }
+        if ( instance.markReported(valueType) ) {
+            if ( !offer(new Event(instance, value, valueType, count, System.currentTimeMillis())) ) {
+                droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean offer(@NotNull Event event) {
+        while ( true ) {
+            long claim = head.get();
+            if ( claim - tail > mask ) {
+                return false;
+            }
+            if ( head.compareAndSet(claim, claim + 1) ) {
+                // the consumer stops at this slot until it's published
+                buffer.lazySet((int)claim & mask, event);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Write the published events, at most `reportRate` of them. The tail only advances past
+     * the events written, so the others are written by the next drains.
+     */
+    void drain() {
+        synchronized ( lock ) {
+            List<Event> events = new ArrayList<>();
+            long next = tail;
+            while ( events.size() < reportRate ) {
+                int index = (int)next & mask;
+                Event event = buffer.get(index);
+                if ( event == null ) {
+                    break;
+                }
+                buffer.set(index, null);
+                next++;
+                events.add(event);
+            }
+            tail = next;
+            reportedCount += events.size();
+            long dropped = droppedCount.get();
+            String summary = null;
+            if ( dropped != lastDroppedCount ) {
+                summary = "Contract violations not reported: " + (dropped - lastDroppedCount) + " dropped";
+                lastDroppedCount = dropped;
+            }
+            if ( reportFile == null ) {
+                for( Event event : events ) {
+                    LOG.warning(event.instance.violationMessage(event.value) + "\n  Count : " + event.count);
+                }
+            }
+            else if ( !events.isEmpty() ) {
+                try ( Writer writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE) ) {
+                    for( Event event : events ) {
+                        writer.write(toJson(event));
+                        writer.write('\n');
+                    }
+                }
+                catch ( IOException e ) {
+                    LOG.log(Level.SEVERE, "Error writing contract violations to " + reportFile, e);
+                }
+            }
+            if ( summary != null ) {
+                LOG.warning(summary);
+            }
+        }
+    }
+
+    @NotNull
+    static String toJson(@NotNull Event event) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"time\":").append(event.time);
+        buf.append(",\"target\":");
+        appendJsonString(buf, event.instance.getTarget().appendFullString(new StringBuilder()));
+        buf.append(",\"guard\":");
+        appendJsonString(buf, String.valueOf(event.instance.getAnnotation()));
+        buf.append(",\"valueType\":");
+        appendJsonString(buf, event.valueType.getName());
+        buf.append(",\"count\":").append(event.count);
+        buf.append(",\"message\":");
+        appendJsonString(buf, event.instance.violationMessage(event.value));
+        buf.append('}');
+        return buf.toString();
+    }
+
+    private static void appendJsonString(@NotNull StringBuilder buf, @NotNull CharSequence string) {
+        buf.append('"');
+        for( int i = 0; i < string.length(); i++ ) {
+            char c = string.charAt(i);
+            switch ( c ) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    if ( c < 0x20 ) {
+                        buf.append(String.format("\\u%04x", (int)c));
+                    }
+                    else {
+                        buf.append(c);
+                    }
+            }
+        }
+        buf.append('"');
+    }
+
+    int getCapacity() {
+        return mask + 1;
+    }
+
+    /**
+     * The number of events waiting to be drained.
+     */
+    int getPendingCount() {
+        return (int)(head.get() - tail);
+    }
+
+    long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    long getReportedCount() {
+        synchronized ( lock ) {
+            return reportedCount;
+        }
+    }
+
+    static final class Event {
+
+        private final GuardInstance instance;
+        private final Object value;
+        private final Class<?> valueType;
+        private final long count;
+        private final long time;
+
+        private Event(@NotNull GuardInstance instance, @Nullable Object value, @NotNull Class<?> valueType, long count, long time) {
+            this.instance = instance;
+            this.value = value;
+            this.valueType = valueType;
+            this.count = count;
+            this.time = time;
+        }
+
+    }
+
+}
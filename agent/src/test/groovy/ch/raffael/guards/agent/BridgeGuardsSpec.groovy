@@ -0,0 +1,330 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package ch.raffael.guards.agent
+
+import java.lang.reflect.InvocationTargetException
+import java.util.concurrent.Callable
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.Max
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.agent.asm.AnnotationVisitor
+import ch.raffael.guards.agent.asm.ClassReader
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import ch.raffael.guards.agent.asm.Type
+import ch.raffael.guards.agent.asm.tree.ClassNode
+import ch.raffael.guards.agent.asm.tree.InvokeDynamicInsnNode
+import ch.raffael.guards.agent.asm.tree.MethodInsnNode
+import spock.lang.Specification
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class BridgeGuardsSpec extends Specification {
+
+    static final String COMPARABLE = 'com/example/Name'
+    static final String CALLABLE = 'com/example/Supplier'
+    static final String UNGUARDED = 'com/example/LooseName'
+    static final String DIFFERENT = 'com/example/UnrelatedGuards'
+    static final String OVERRIDABLE = 'com/example/OpenName'
+    static final String OVERRIDE = 'com/example/OpenNameOverride'
+    static final String BOUNDED = 'com/example/Bounded'
+
+    static final Options UNCHECKED = new OptionsBuilder().withUncheckedInternalCalls(true).toOptions()
+
+    def "Bridges that forward to a method with the same guards aren't instrumented"() {
+      expect:
+        indys(instrument(className), bridge) == 0
+        indys(instrument(className), target) > 0
+
+      where:
+        className  | target                           | bridge
+        COMPARABLE | 'compareTo(Ljava/lang/String;)I' | 'compareTo(Ljava/lang/Object;)I'
+        CALLABLE   | 'call()Ljava/lang/String;'       | 'call()Ljava/lang/Object;'
+    }
+
+    def "Bridges keep their guards if the target doesn't check them"() {
+      expect:
+        indys(instrument(UNGUARDED), 'compareTo(Ljava/lang/Object;)I') > 0
+        indys(instrument(DIFFERENT), 'compareTo(Ljava/lang/Object;)I') > 0
+    }
+
+    def "Bridges keep their guards if the target can be overridden"() {
+      expect:
+        indys(instrument(OVERRIDABLE), 'compareTo(Ljava/lang/Object;)I') > 0
+    }
+
+    def "An override without guards doesn't lose the guards checked by the bridge"() {
+      given:
+        def base = load(OVERRIDABLE)
+        def override = DefiningClassLoader.load(OVERRIDE, override(), base.classLoader)
+
+      when:
+        compareTo(override.newInstance(), null)
+
+      then:
+        thrown(ContractViolationError)
+    }
+
+    def "Guards are compared with their values"() {
+      expect:
+        indys(instrument(BOUNDED, bounded(10, 10)), 'compareTo(Ljava/lang/Object;)I') == 0
+        indys(instrument(BOUNDED, bounded(100, 10)), 'compareTo(Ljava/lang/Object;)I') > 0
+        indys(instrument(BOUNDED, bounded(10, 100)), 'compareTo(Ljava/lang/Object;)I') > 0
+    }
+
+    def "Skipped bridges still call the checked entry with unchecked internal calls"() {
+      given:
+        def bytecode = Instrumenter.instrument(UNCHECKED, BridgeGuardsSpec.classLoader, generate(COMPARABLE))
+        def instance = DefiningClassLoader.load(COMPARABLE, bytecode).newInstance()
+
+      expect:
+        indys(bytecode, 'compareTo(Ljava/lang/Object;)I') == 0
+        calls(bytecode, 'compareTo(Ljava/lang/Object;)I') == ['compareTo']
+
+      when:
+        compareTo(instance, null)
+
+      then:
+        thrown(ContractViolationError)
+    }
+
+    def "A call through the generic interface is checked once"() {
+      given:
+        def type = load(COMPARABLE)
+        Comparable instance = type.newInstance()
+
+      when:
+        def result = instance.compareTo('x')
+
+      then:
+        result == 0
+        Indy.linker(type).bootstrapCount == 1
+    }
+
+    def "A violation through the generic interface is still reported by the target"() {
+      given:
+        Comparable instance = load(COMPARABLE).newInstance()
+
+      when:
+        instance.compareTo(null)
+
+      then:
+        def e = thrown(ContractViolationError)
+        e.stackTrace.find { it.className == COMPARABLE.replace('/', '.') }?.methodName == 'compareTo'
+    }
+
+    def "A violating return value through the generic interface is reported once"() {
+      given:
+        def type = load(CALLABLE)
+        Callable instance = type.newInstance()
+
+      when:
+        instance.call()
+
+      then:
+        thrown(ContractViolationError)
+        Indy.linker(type).bootstrapCount == 1
+    }
+
+    def "Bridges to unguarded targets still check"() {
+      given:
+        Comparable instance = load(UNGUARDED).newInstance()
+
+      when:
+        instance.compareTo(null)
+
+      then:
+        thrown(ContractViolationError)
+    }
+
+    private static byte[] instrument(String className, byte[] classFile = generate(className)) {
+        Instrumenter.instrument(new Options(), BridgeGuardsSpec.classLoader, classFile)
+    }
+
+    private static compareTo(Object instance, Object value) {
+        try {
+            Comparable.getMethod('compareTo', Object).invoke(instance, [value] as Object[])
+        }
+        catch ( InvocationTargetException e ) {
+            throw e.cause
+        }
+    }
+
+    private static List<String> calls(byte[] classFile, String method) {
+        ClassNode node = new ClassNode()
+        new ClassReader(classFile).accept(node, 0)
+        node.methods.find { it.name + it.desc == method }.instructions.toArray()
+                .findAll { it instanceof MethodInsnNode }.collect { it.name as String }
+    }
+
+    private static Class load(String className) {
+        DefiningClassLoader.load(className, instrument(className))
+    }
+
+    private static int indys(byte[] classFile, String method) {
+        ClassNode node = new ClassNode()
+        new ClassReader(classFile).accept(node, 0)
+        node.methods.find { it.name + it.desc == method }.instructions.toArray().count { it instanceof InvokeDynamicInsnNode }
+    }
+
+    private static byte[] generate(String className) {
+        ClassWriter cw = new ClassWriter(0)
+        // the bridges may only rely on targets that can't be overridden
+        int access = className == OVERRIDABLE ? ACC_PUBLIC : ACC_PUBLIC | ACC_FINAL
+        if ( className == CALLABLE ) {
+            cw.visit(V1_7, access, className, null, 'java/lang/Object', ['java/util/concurrent/Callable'] as String[])
+        }
+        else {
+            cw.visit(V1_7, access, className, null, 'java/lang/Object', ['java/lang/Comparable'] as String[])
+        }
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, '<init>', '()V', null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESPECIAL, 'java/lang/Object', '<init>', '()V', false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        if ( className == CALLABLE ) {
+            // @NotNull String call() { return null; }
+            mv = cw.visitMethod(ACC_PUBLIC, 'call', '()Ljava/lang/String;', null, null)
+            mv.visitAnnotation(Type.getDescriptor(NotNull), true).visitEnd()
+            mv.visitCode()
+            mv.visitInsn(ACONST_NULL)
+            mv.visitInsn(ARETURN)
+            mv.visitMaxs(1, 1)
+            mv.visitEnd()
+
+            // the bridge as javac generates it, including the copied annotation
+            mv = cw.visitMethod(ACC_PUBLIC | ACC_BRIDGE | ACC_SYNTHETIC, 'call', '()Ljava/lang/Object;', null, null)
+            mv.visitAnnotation(Type.getDescriptor(NotNull), true).visitEnd()
+            mv.visitCode()
+            mv.visitVarInsn(ALOAD, 0)
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, 'call', '()Ljava/lang/String;', false)
+            mv.visitInsn(ARETURN)
+            mv.visitMaxs(1, 1)
+            mv.visitEnd()
+        }
+        else {
+            // int compareTo(@NotNull String that) { return 0; }
+            // (unguarded in LooseName, guarded on the return value in UnrelatedGuards)
+            mv = cw.visitMethod(ACC_PUBLIC, 'compareTo', '(Ljava/lang/String;)I', null, null)
+            if ( className == COMPARABLE || className == OVERRIDABLE ) {
+                mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+            }
+            else if ( className == DIFFERENT ) {
+                mv.visitAnnotation(Type.getDescriptor(NotNull), true).visitEnd()
+            }
+            mv.visitCode()
+            mv.visitInsn(ICONST_0)
+            mv.visitInsn(IRETURN)
+            mv.visitMaxs(1, 2)
+            mv.visitEnd()
+
+            mv = cw.visitMethod(ACC_PUBLIC | ACC_BRIDGE | ACC_SYNTHETIC, 'compareTo', '(Ljava/lang/Object;)I', null, null)
+            mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+            mv.visitCode()
+            mv.visitVarInsn(ALOAD, 0)
+            mv.visitVarInsn(ALOAD, 1)
+            mv.visitTypeInsn(CHECKCAST, 'java/lang/String')
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, 'compareTo', '(Ljava/lang/String;)I', false)
+            mv.visitInsn(IRETURN)
+            mv.visitMaxs(2, 2)
+            mv.visitEnd()
+        }
+
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+    /**
+     * `class OpenNameOverride extends OpenName` overriding `compareTo(String)` without guards.
+     */
+    private static byte[] override() {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, OVERRIDE, null, OVERRIDABLE, null)
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, '<init>', '()V', null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESPECIAL, OVERRIDABLE, '<init>', '()V', false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        mv = cw.visitMethod(ACC_PUBLIC, 'compareTo', '(Ljava/lang/String;)I', null, null)
+        mv.visitCode()
+        mv.visitInsn(ICONST_1)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(1, 2)
+        mv.visitEnd()
+
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+    /**
+     * `final class Bounded implements Comparable<Long>` with `compareTo(@Max(targetMax) Long)`
+     * and a bridge declaring `@Max(bridgeMax)`.
+     */
+    private static byte[] bounded(long targetMax, long bridgeMax) {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL, BOUNDED, null, 'java/lang/Object', ['java/lang/Comparable'] as String[])
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, '<init>', '()V', null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESPECIAL, 'java/lang/Object', '<init>', '()V', false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        mv = cw.visitMethod(ACC_PUBLIC, 'compareTo', '(Ljava/lang/Long;)I', null, null)
+        AnnotationVisitor av = mv.visitParameterAnnotation(0, Type.getDescriptor(Max), true)
+        av.visit('value', targetMax)
+        av.visitEnd()
+        mv.visitCode()
+        mv.visitInsn(ICONST_0)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(1, 2)
+        mv.visitEnd()
+
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_BRIDGE | ACC_SYNTHETIC, 'compareTo', '(Ljava/lang/Object;)I', null, null)
+        av = mv.visitParameterAnnotation(0, Type.getDescriptor(Max), true)
+        av.visit('value', bridgeMax)
+        av.visitEnd()
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitVarInsn(ALOAD, 1)
+        mv.visitTypeInsn(CHECKCAST, 'java/lang/Long')
+        mv.visitMethodInsn(INVOKEVIRTUAL, BOUNDED, 'compareTo', '(Ljava/lang/Long;)I', false)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(2, 2)
+        mv.visitEnd()
+
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.NoNulls
+import ch.raffael.guards.NotNull
+import spock.lang.Specification
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class BudgetSpec extends Specification {
+
+    def previousOptions = GuardsAgent.instance.options
+    def budget = new GuardBudget()
+
+    def setup() {
+        GuardsAgent.instance.options = new OptionsBuilder().withCpuBudget(1).withBudgetSampleRate(10).toOptions()
+    }
+
+    def cleanup() {
+        GuardsAgent.instance.options = previousOptions
+    }
+
+    def "Expensive call sites are demoted to sampling, then to a nop"() {
+      given:
+        def site = budgetSite(Target, 'slow')
+        def handle = site.dynamicInvoker()
+        budget.cpuBudget = 0.000001
+
+      when:
+        run(handle, 640)
+        budget.adjust(1_000_000_000)
+
+      then:
+        site.level == BudgetSite.Level.SAMPLED
+        budget.sampledCallSiteCount == 1
+        budget.demotionCount == 1
+        budget.guardCpuUsage > 0
+
+      when:
+        run(handle, 6400)
+        budget.adjust(1_000_000_000)
+
+      then:
+        site.level == BudgetSite.Level.NOP
+        budget.nopCallSiteCount == 1
+        budget.demotedCallSites.values() as List == ['NOP']
+        !violates(handle, null)
+    }
+
+    def "Demoted call sites are promoted again when the load drops"() {
+      given:
+        def site = budgetSite(Target, 'slow')
+        def handle = site.dynamicInvoker()
+        budget.cpuBudget = 0.000001
+        run(handle, 640)
+        budget.adjust(1_000_000_000)
+
+      when:
+        budget.cpuBudget = 100
+        budget.adjust(1_000_000_000)
+
+      then:
+        site.level == BudgetSite.Level.FULL
+        budget.promotionCount == 1
+        violates(handle, null)
+    }
+
+    def "Cheap call sites stay within a generous budget"() {
+      given:
+        def site = budgetSite(Target, 'fast')
+        budget.cpuBudget = 100
+
+      when:
+        run(site.dynamicInvoker(), 640)
+        budget.adjust(1_000_000_000)
+
+      then:
+        site.level == BudgetSite.Level.FULL
+        budget.demotionCount == 0
+    }
+
+    def "Disabling the budget restores all call sites"() {
+      given:
+        def site = budgetSite(Target, 'slow')
+        budget.cpuBudget = 0.000001
+        run(site.dynamicInvoker(), 640)
+        budget.adjust(1_000_000_000)
+
+      when:
+        budget.cpuBudget = 0
+        budget.adjust(1_000_000_000)
+
+      then:
+        site.level == BudgetSite.Level.FULL
+    }
+
+    def "Agent arguments configure the budget"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('cpuBudget=0.5,budgetInterval=200,budgetSampleRate=50').provideOptions(builder)
+        def options = builder.toOptions()
+
+      then:
+        options.cpuBudget == 0.5
+        options.budgetInterval == 200
+        options.budgetSampleRate == 50
+    }
+
+    private BudgetSite budgetSite(Class<?> type, String method) {
+        (BudgetSite)budget.register((BudgetSite)Linker.create(type)
+                .bootstrap(MethodHandles.lookup(), MethodType.methodType(void, List), method, '(Ljava/util/List;)V', 0, 'value'))
+    }
+
+    private static final List VALUE = ['x'] * 1000
+
+    private static void run(MethodHandle handle, int count) {
+        count.times { handle.invokeWithArguments([VALUE] as Object[]) }
+    }
+
+    private static boolean violates(MethodHandle handle, List value) {
+        try {
+            handle.invokeWithArguments([value] as Object[])
+            return false
+        }
+        catch ( ContractViolationError ignored ) {
+            return true
+        }
+    }
+
+    static class Target {
+        void slow(@NotNull @NoNulls List value) {
+        }
+        void fast(@NotNull List value) {
+        }
+    }
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class CanarySpec extends GuardedListSpecification {
+
+    def "Canary call sites are retired after the given number of passes"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder().withCanaryInvocations(3).toOptions()
+        def handle = guardHandle()
+
+      expect:
+        violates(handle, null)
+        violates(handle, [null])
+        (1..3).every { !violates(handle, ['x']) }
+        !violates(handle, null)
+        !violates(handle, [null])
+    }
+
+    def "Violations don't count as passes"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder().withCanaryInvocations(2).toOptions()
+        def handle = guardHandle()
+
+      expect:
+        !violates(handle, ['x'])
+        (1..5).every { violates(handle, null) }
+        !violates(handle, ['x'])
+        !violates(handle, null)
+    }
+
+    def "Violations reported in report-only mode don't count as passes"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder().withCanaryInvocations(2).withReportOnly(true).toOptions()
+        def site = guardSite()
+        def handle = site.dynamicInvoker()
+        def target = site.@target as GuardTarget
+
+      when:
+        (1..5).each { handle.invokeWithArguments([null] as Object[]) }
+        handle.invokeWithArguments([['x']] as Object[])
+        handle.invokeWithArguments([null] as Object[])
+
+      then:
+        target.violationCount == 6
+
+      when:
+        2.times { handle.invokeWithArguments([['x']] as Object[]) }
+        handle.invokeWithArguments([null] as Object[])
+
+      then:
+        target.violationCount == 6
+    }
+
+    def "Without canary invocations, call sites are never retired"() {
+      given:
+        def handle = guardHandle()
+
+      expect:
+        (1..100).every { !violates(handle, ['x']) }
+        violates(handle, null)
+    }
+
+    def "Agent arguments configure the canary invocations"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('canaryInvocations=1000').provideOptions(builder)
+
+      then:
+        builder.toOptions().canaryInvocations == 1000
+    }
+
+}
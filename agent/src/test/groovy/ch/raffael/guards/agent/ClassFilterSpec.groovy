@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import spock.lang.Specification
+import spock.lang.Unroll
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class ClassFilterSpec extends Specification {
+
+    @Unroll
+    def "Pattern '#pattern' becomes prefix '#prefix'"() {
+      expect:
+        PackageTrie.packagePrefix(pattern) == prefix
+
+      where:
+        pattern               | prefix
+        'com.example'         | 'com/example/'
+        'com.example.*'       | 'com/example/'
+        'com.example.Foo*'    | 'com/example/Foo'
+        ' com.example '       | 'com/example/'
+    }
+
+    def "The trie finds the value of the longest prefix"() {
+      given:
+        def trie = new PackageTrie<String>()
+        trie.put('com/', 'com')
+        trie.put('com/example/', 'example')
+        trie.put('com/example/sub/', 'sub')
+
+      expect:
+        trie.find('com/example/sub/Foo') == 'sub'
+        trie.find('com/example/Foo') == 'example'
+        trie.find('com/examples/Foo') == 'com'
+        trie.find('org/example/Foo') == null
+        trie.size() == 3
+    }
+
+    def "Without includes, everything but the excludes is transformable"() {
+      given:
+        def filter = new ClassFilter([], ['com.example.generated', 'com.example.Gen*'], false)
+
+      expect:
+        filter.isTransformable('com/example/Foo')
+        filter.isTransformable('org/example/Foo')
+        !filter.isTransformable('com/example/generated/Foo')
+        !filter.isTransformable('com/example/Generated')
+    }
+
+    def "With includes, only included classes are transformable and the longest pattern wins"() {
+      given:
+        def filter = new ClassFilter(['com.example', 'com.example.generated.keep'], ['com.example.generated'], false)
+
+      expect:
+        filter.isTransformable('com/example/Foo')
+        !filter.isTransformable('org/example/Foo')
+        !filter.isTransformable('com/example/generated/Foo')
+        filter.isTransformable('com/example/generated/keep/Foo')
+    }
+
+    def "Builtin excludes can't be included"() {
+      given:
+        def filter = new ClassFilter(['java', 'ch.raffael.guards'], [], false)
+
+      expect:
+        !filter.isTransformable('java/lang/String')
+        !filter.isTransformable('ch/raffael/guards/agent/Indy')
+        filter.isTransformable('ch/raffael/guards/NotNull')
+    }
+
+    @Unroll
+    def "Generated class #name is excluded if requested"() {
+      expect:
+        !new ClassFilter([], [], true).isTransformable(name)
+        new ClassFilter([], [], false).isTransformable(name)
+
+      where:
+        name << [
+                'com/sun/proxy/$Proxy12',
+                'com/example/$Proxy3',
+                'com/example/Foo$$EnhancerByCGLIB$$1234',
+                'com/example/Foo$ByteBuddy$abc',
+                'com/example/Foo_$$_jvst12_0',
+                'com/example/Foo$$Lambda$7',
+                'com/example/Foo$HibernateProxy$xyz',
+        ]
+    }
+
+    @Unroll
+    def "Class #name isn't considered generated"() {
+      expect:
+        new ClassFilter([], [], true).isTransformable(name)
+
+      where:
+        name << [
+                'com/example/$$AutoValue_Foo',
+                'com/example/AutoValue_Foo',
+                'com/example/Foo$$anonfun$bar$1',
+                'com/example/FooKt$bar$$inlined$sortedBy$1',
+                'com/example/Foo$Bar',
+        ]
+    }
+
+    def "Agent arguments configure includes and excludes"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('includes=com.example+org.example,excludes=com.example.gen,-excludeGenerated')
+                .provideOptions(builder)
+        def options = builder.toOptions()
+
+      then:
+        options.includes == ['com.example', 'org.example']
+        options.excludes == ['com.example.gen']
+        !options.excludeGenerated
+        options.classFilter.isTransformable('org/example/Foo')
+        !options.classFilter.isTransformable('com/example/gen/Foo')
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import ch.raffael.guards.Min
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.Positive
+import ch.raffael.guards.agent.asm.AnnotationVisitor
+import ch.raffael.guards.agent.asm.ClassReader
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.Label
+import ch.raffael.guards.agent.asm.MethodVisitor
+import ch.raffael.guards.agent.asm.Type
+import ch.raffael.guards.agent.asm.tree.ClassNode
+import ch.raffael.guards.agent.asm.tree.InvokeDynamicInsnNode
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static ch.raffael.guards.agent.DefiningClassLoader.invoke
+import static ch.raffael.guards.agent.DefiningClassLoader.violation
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class CompactCallSitesSpec extends Specification {
+
+    static final String CLASS_NAME = 'com/example/Compact'
+
+    static final Options COMPACT = new Options()
+    static final Options SPREAD = new OptionsBuilder().withCompactCallSites(false).toOptions()
+
+    def "All guarded arguments are checked by one call site"() {
+      when:
+        def bytecode = Instrumenter.instrument(COMPACT, getClass().classLoader, guardedClass())
+
+      then:
+        indyNames(bytecode, 'check') == ['guard:args']
+    }
+
+    def "All returns share one call site checking the return value"() {
+      when:
+        def bytecode = Instrumenter.instrument(COMPACT, getClass().classLoader, guardedClass())
+
+      then:
+        indyNames(bytecode, 'pick') == ['guard:return']
+        indyNames(bytecode, 'count') == ['guard:return']
+    }
+
+    def "Returns within try blocks are checked at each return"() {
+      when:
+        def bytecode = Instrumenter.instrument(COMPACT, getClass().classLoader, guardedClass())
+
+      then:
+        indyNames(bytecode, 'pickTry') == ['guard:return'] * 3
+    }
+
+    def "Without compactCallSites, there's one call site per argument and return"() {
+      when:
+        def bytecode = Instrumenter.instrument(SPREAD, getClass().classLoader, guardedClass())
+
+      then:
+        indyNames(bytecode, 'check') == ['guard:arg0', 'guard:arg1', 'guard:arg2']
+        indyNames(bytecode, 'pick') == ['guard:return'] * 2
+    }
+
+    @Unroll
+    def "Both layouts report the same violations (#method#arguments)"() {
+      given:
+        def compact = load(COMPACT)
+        def spread = load(SPREAD)
+
+      when:
+        def compactMessage = violation(compact, method, arguments as Object[])
+        def spreadMessage = violation(spread, method, arguments as Object[])
+
+      then:
+        compactMessage == spreadMessage?.replace(spread.toString(), compact.toString())
+        (compactMessage != null) == violated
+
+      where:
+        method  | arguments      | violated
+        'check' | ['x', 0, 1L]   | false
+        'check' | [null, 0, 1L]  | true
+        'check' | ['x', -1, 1L]  | true
+        'check' | ['x', 0, 0L]   | true
+        'pick'  | [true]         | false
+        'pick'  | [false]        | true
+        'count' | [true]         | false
+        'count' | [false]        | true
+    }
+
+    def "The call sites that have been invoked are counted per class"() {
+      given:
+        def compact = load(COMPACT)
+        def spread = load(SPREAD)
+
+      when:
+        [compact, spread].each { type ->
+            invoke(type, 'check', 'x', 0, 1L)
+            invoke(type, 'pick', true)
+            invoke(type, 'count', true)
+        }
+
+      then:
+        Indy.linker(compact).bootstrapCount == 3
+        Indy.linker(spread).bootstrapCount == 5
+    }
+
+    def "Agent arguments switch to one call site per argument and return"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('-compactCallSites').provideOptions(builder)
+
+      then:
+        !builder.toOptions().compactCallSites
+        new Options().compactCallSites
+    }
+
+    private static Class load(Options options) {
+        DefiningClassLoader.load(CLASS_NAME, Instrumenter.instrument(options, CompactCallSitesSpec.classLoader, guardedClass()))
+    }
+
+    private static List<String> indyNames(byte[] classFile, String method) {
+        ClassNode node = new ClassNode()
+        new ClassReader(classFile).accept(node, 0)
+        node.methods.find { it.name == method }.instructions.toArray()
+                .findAll { it instanceof InvokeDynamicInsnNode }.collect { it.name as String }
+    }
+
+    private static byte[] guardedClass() {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, CLASS_NAME, null, 'java/lang/Object', null)
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'check', '(Ljava/lang/Object;IJ)V', null, null)
+        mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+        AnnotationVisitor av = mv.visitParameterAnnotation(1, Type.getDescriptor(Min), true)
+        av.visit('value', 0L)
+        av.visitEnd()
+        mv.visitParameterAnnotation(2, Type.getDescriptor(Positive), true).visitEnd()
+        mv.visitCode()
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 4)
+        mv.visitEnd()
+
+        // return 'x' if true, null otherwise
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'pick', '(Z)Ljava/lang/Object;', null, null)
+        mv.visitAnnotation(Type.getDescriptor(NotNull), true).visitEnd()
+        mv.visitCode()
+        Label otherwise = new Label()
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitJumpInsn(IFEQ, otherwise)
+        mv.visitLdcInsn('x')
+        mv.visitInsn(ARETURN)
+        mv.visitLabel(otherwise)
+        mv.visitFrame(F_NEW, 1, [INTEGER] as Object[], 0, [] as Object[])
+        mv.visitInsn(ACONST_NULL)
+        mv.visitInsn(ARETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        // the same in a try block with a handler returning the exception
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'pickTry', '(Z)Ljava/lang/Object;', null, null)
+        mv.visitAnnotation(Type.getDescriptor(NotNull), true).visitEnd()
+        mv.visitCode()
+        Label start = new Label()
+        Label end = new Label()
+        Label handler = new Label()
+        otherwise = new Label()
+        mv.visitTryCatchBlock(start, end, handler, 'java/lang/RuntimeException')
+        mv.visitLabel(start)
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitJumpInsn(IFEQ, otherwise)
+        mv.visitLdcInsn('x')
+        mv.visitInsn(ARETURN)
+        mv.visitLabel(otherwise)
+        mv.visitFrame(F_NEW, 1, [INTEGER] as Object[], 0, [] as Object[])
+        mv.visitInsn(ACONST_NULL)
+        mv.visitInsn(ARETURN)
+        mv.visitLabel(end)
+        mv.visitLabel(handler)
+        mv.visitFrame(F_NEW, 1, [INTEGER] as Object[], 1, ['java/lang/RuntimeException'] as Object[])
+        mv.visitInsn(ARETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        // return 1L if true, 0L otherwise
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'count', '(Z)J', null, null)
+        mv.visitAnnotation(Type.getDescriptor(Positive), true).visitEnd()
+        mv.visitCode()
+        otherwise = new Label()
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitJumpInsn(IFEQ, otherwise)
+        mv.visitInsn(LCONST_1)
+        mv.visitInsn(LRETURN)
+        mv.visitLabel(otherwise)
+        mv.visitFrame(F_NEW, 1, [INTEGER] as Object[], 0, [] as Object[])
+        mv.visitInsn(LCONST_0)
+        mv.visitInsn(LRETURN)
+        mv.visitMaxs(2, 1)
+        mv.visitEnd()
+
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+}
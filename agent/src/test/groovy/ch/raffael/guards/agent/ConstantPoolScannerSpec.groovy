@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import spock.lang.Specification
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class ConstantPoolScannerSpec extends Specification {
+
+    def "Classes without runtime visible annotations are skipped"() {
+      expect:
+        !ConstantPoolScanner.mayContainGuards(classFile(V1_7, null, true, ['Lcom/example/Field;']))
+    }
+
+    def "Classes with only JDK annotations are skipped"() {
+      expect:
+        !ConstantPoolScanner.mayContainGuards(classFile(V1_7, 'Ljava/lang/Deprecated;', true))
+        !ConstantPoolScanner.mayContainGuards(classFile(V1_7, 'Ljavax/annotation/Nonnull;', true))
+    }
+
+    def "Classes with only invisible annotations are skipped"() {
+      expect:
+        !ConstantPoolScanner.mayContainGuards(classFile(V1_7, 'Lcom/example/Guard;', false))
+    }
+
+    def "Classes with runtime visible non-JDK annotations are candidates"() {
+      expect:
+        ConstantPoolScanner.mayContainGuards(classFile(V1_7, 'Lcom/example/Guard;', true))
+        ConstantPoolScanner.mayContainGuards(classFile(V1_8, 'Lcom/example/Guard;', true))
+    }
+
+    def "Classes with runtime visible parameter annotations are candidates"() {
+      expect:
+        ConstantPoolScanner.mayContainGuards(classFile(V1_7, 'Lcom/example/Guard;', true, [], true))
+    }
+
+    def "Bytecode versions the instrumenter doesn't support are skipped"() {
+      expect:
+        !ConstantPoolScanner.mayContainGuards(classFile(V1_6, 'Lcom/example/Guard;', true))
+    }
+
+    def "Garbage is left to ASM"() {
+      expect:
+        ConstantPoolScanner.mayContainGuards([0xCA, 0xFE, 0xBA, 0xBE, 0, 0, 0, 51, 0, 5, 1, 0] as byte[])
+        ConstantPoolScanner.mayContainGuards([1, 2, 3] as byte[])
+    }
+
+    private static byte[] classFile(int version, String annotation, boolean visible,
+                                    List<String> fieldTypes = [], boolean parameter = false) {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(version, ACC_PUBLIC, 'com/example/Scanned', null, 'java/lang/Object', null)
+        fieldTypes.eachWithIndex { String type, int i ->
+            cw.visitField(ACC_PRIVATE, "field$i", type, null, null).visitEnd()
+        }
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'method', '(Ljava/lang/Object;)V', null, null)
+        if ( annotation ) {
+            if ( parameter ) {
+                mv.visitParameterAnnotation(0, annotation, visible).visitEnd()
+            }
+            else {
+                mv.visitAnnotation(annotation, visible).visitEnd()
+            }
+        }
+        mv.visitCode()
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 1)
+        mv.visitEnd()
+        cw.visitEnd()
+        return cw.toByteArray()
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.reflect.InvocationTargetException
+
+import ch.raffael.guards.ContractViolationError
+
+
+/**
+ * Defines a single class from the given bytecode, for specs working with generated and
+ * instrumented class files.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class DefiningClassLoader extends ClassLoader {
+
+    final String className
+    private final byte[] bytecode
+    volatile boolean loaded = false
+
+    DefiningClassLoader(String className, byte[] bytecode, ClassLoader parent = DefiningClassLoader.classLoader) {
+        super(parent)
+        this.className = className.replace('/', '.')
+        this.bytecode = bytecode
+    }
+
+    Class getDefinedClass() {
+        loadClass(className)
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        if ( name == className ) {
+            loaded = true
+            return defineClass(name, bytecode, 0, bytecode.length)
+        }
+        throw new ClassNotFoundException(name)
+    }
+
+    static Class load(String className, byte[] bytecode, ClassLoader parent = DefiningClassLoader.classLoader) {
+        new DefiningClassLoader(className, bytecode, parent).definedClass
+    }
+
+    /**
+     * Invoke a public static method of the given class by name.
+     */
+    static invoke(Class type, String method, Object... arguments) {
+        type.methods.find { it.name == method }.invoke(null, arguments)
+    }
+
+    /**
+     * Invoke a public static method of the given class by name.
+     *
+     * @return The message of the contract violation or `null`, if the method returned normally.
+     */
+    static String violation(Class type, String method, Object... arguments) {
+        try {
+            invoke(type, method, arguments)
+            return null
+        }
+        catch ( InvocationTargetException e ) {
+            assert e.cause instanceof ContractViolationError
+            return e.cause.message
+        }
+    }
+
+}
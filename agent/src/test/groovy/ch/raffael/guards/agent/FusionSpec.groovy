@@ -0,0 +1,148 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.Max
+import ch.raffael.guards.Min
+import ch.raffael.guards.NoNulls
+import ch.raffael.guards.NotEmpty
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.Positive
+import ch.raffael.guards.Unsigned
+import spock.lang.Specification
+import spock.lang.Unroll
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class FusionSpec extends Specification {
+
+    def previousOptions = GuardsAgent.instance.options
+
+    def setup() {
+        // keep the redundant guards
+        GuardsAgent.instance.options = new OptionsBuilder().withEliminateImpliedGuards(false).toOptions()
+    }
+
+    def cleanup() {
+        GuardsAgent.instance.options = previousOptions
+    }
+
+    @Unroll
+    def "Fused range guards on #type.simpleName report the first violated guard for #value"() {
+      given:
+        def handle = guardHandle(method, type)
+
+      expect:
+        violation(handle, value) == expected
+
+      where:
+        method     | type  | value       | expected
+        'range'    | int   | 0           | null
+        'range'    | int   | 100         | null
+        'range'    | int   | -1          | 'Value must be at least 0'
+        'range'    | int   | 101         | 'Value must be at most 100'
+        'positive' | long  | 1L          | null
+        'positive' | long  | 0L          | 'Value must greater than zero'
+        'positive' | long  | 11L         | 'Value must be at most 10'
+        'all'      | short | 5 as short  | null
+        'all'      | short | -1 as short | 'Value must not be negative'
+        'all'      | short | 0 as short  | 'Value must greater than zero'
+        'all'      | short | 2 as short  | 'Value must be at least 3'
+        'all'      | short | 8 as short  | 'Value must be at most 7'
+        'empty'    | int   | 5           | 'Value must be at least 10'
+        'empty'    | int   | 20          | 'Value must be at most 0'
+    }
+
+    def "Violations of fused guards report the guard and its test method"() {
+      when:
+        guardHandle('range', int).invokeWithArguments([-1] as Object[])
+
+      then:
+        def e = thrown(ContractViolationError)
+        e.message.contains('Guard : @' + Min.name)
+        !e.message.contains('Method: (unknown)')
+    }
+
+    def "Sampled guards aren't fused"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder().withEliminateImpliedGuards(false).withSampleRate(Max.name, 2).toOptions()
+        def handle = guardHandle('range', int)
+
+      expect:
+        violation(handle, -1) == 'Value must be at least 0'
+        (1..4).count { violation(handle, 101) != null } == 2
+    }
+
+    @Unroll
+    def "Fused null checks still check all guards for #value"() {
+      given:
+        def handle = guardHandle(method, List)
+
+      expect:
+        violation(handle, value) == expected
+
+      where:
+        method    | value  | expected
+        'notNull' | ['x']  | null
+        'notNull' | null   | 'Value must not be null'
+        'notNull' | [null] | 'Collection may not contain null elements'
+        'notNull' | []     | 'Value may not be empty'
+        'nullable'| ['x']  | null
+        'nullable'| null   | null
+        'nullable'| [null] | 'Collection may not contain null elements'
+        'nullable'| []     | 'Value may not be empty'
+    }
+
+    private static MethodHandle guardHandle(String method, Class type) {
+        Linker.create(Target)
+                .bootstrap(MethodHandles.lookup(), MethodType.methodType(void, type), method, MethodType.methodType(void, type).toMethodDescriptorString(), 0, 'value')
+                .dynamicInvoker()
+    }
+
+    private static String violation(MethodHandle handle, value) {
+        try {
+            handle.invokeWithArguments([value] as Object[])
+            return null
+        }
+        catch ( ContractViolationError e ) {
+            return e.message.readLines()[0].replaceFirst(/^[^:]*: /, '')
+        }
+    }
+
+    static class Target {
+        void range(@Min(0L) @Max(100L) int value) {
+        }
+        void positive(@Positive @Max(10L) long value) {
+        }
+        void all(@Unsigned @Positive @Min(3L) @Max(7L) short value) {
+        }
+        void empty(@Min(10L) @Max(0L) int value) {
+        }
+        void notNull(@NotNull @NoNulls @NotEmpty List value) {
+        }
+        void nullable(@NoNulls @NotEmpty List value) {
+        }
+    }
+
+}
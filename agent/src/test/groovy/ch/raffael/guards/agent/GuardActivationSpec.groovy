@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.reflect.InvocationTargetException
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import spock.lang.Specification
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class GuardActivationSpec extends Specification {
+
+    def activation = GuardActivation.instance
+    def previousOptions = GuardsAgent.instance.options
+
+    def setup() {
+        GuardsAgent.instance.options = new OptionsBuilder().withDormant(true).withUncheckedInternalCalls(true).toOptions()
+    }
+
+    def cleanup() {
+        activation.packageRules.keySet().each { activation.removePackageRule(it) }
+        GuardsAgent.instance.options = previousOptions
+    }
+
+    def "Nothing is active by default, the longest matching package rule wins"() {
+      given:
+        def rules = GuardActivation.Rules.NONE
+
+      expect:
+        !rules.isActive('com/example/Foo')
+
+      when:
+        rules = rules.withPackage('com.example', true).withPackage('com.example.internal', false)
+
+      then:
+        rules.isActive('com/example/Foo')
+        rules.isActive('com/example/api/Foo')
+        !rules.isActive('com/example/internal/Foo')
+        !rules.isActive('com/other/Foo')
+        !rules.withoutPackage('com.example').isActive('com/example/Foo')
+    }
+
+    def "Only candidate classes that change between active and dormant are selected"() {
+      given:
+        def previous = GuardActivation.Rules.NONE.withPackage('java.lang', true)
+        def current = previous.withPackage('java.util', true).withPackage('java.lang.reflect', false)
+        def candidates = ['java/lang/String', 'java/util/ArrayList', 'java/lang/reflect/Method', 'java/io/File'] as Set
+
+      expect:
+        GuardActivation.changedClasses([String, ArrayList, HashMap, java.lang.reflect.Method, java.io.File, int, int[]] as Class[], candidates, previous, current) ==
+                [ArrayList, java.lang.reflect.Method]
+    }
+
+    def "Classes loaded while dormant are recorded, but not instrumented"() {
+      when:
+        def type = generate('Recorded')
+
+      then:
+        activation.candidateClassCount > 0
+        !violates(type)
+    }
+
+    def "Activating a package instruments its loaded classes, deactivating it restores them"() {
+      given:
+        def type = generate('Toggled')
+
+      expect:
+        !violates(type)
+
+      when:
+        activation.activatePackage('com.example.dormant')
+
+      then:
+        violates(type)
+        activation.activeClassCount > 0
+
+      when:
+        activation.deactivatePackage('com.example.dormant')
+
+      then:
+        !violates(type)
+    }
+
+    def "Classes loaded into an active package are instrumented right away"() {
+      given:
+        activation.activatePackage('com.example.dormant')
+
+      when:
+        def type = generate('LoadedActive')
+
+      then:
+        violates(type)
+        !type.declaredMethods.any { it.name.endsWith('$$unchecked') }
+    }
+
+    def "Agent arguments enable the dormant mode"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('+dormant').provideOptions(builder)
+
+      then:
+        builder.toOptions().dormant
+        !new Options().dormant
+    }
+
+    private static boolean violates(Class<?> type) {
+        try {
+            type.getMethod('guarded', Object).invoke(null, [null] as Object[])
+            return false
+        }
+        catch ( InvocationTargetException e ) {
+            if ( e.cause instanceof ContractViolationError ) {
+                return true
+            }
+            throw e
+        }
+    }
+
+    private static Class<?> generate(String name) {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, "com/example/dormant/$name", null, 'java/lang/Object', null)
+        // static void guarded(@NotNull Object value) {}
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'guarded', '(Ljava/lang/Object;)V', null, null)
+        mv.visitParameterAnnotation(0, 'Lch/raffael/guards/NotNull;', true).visitEnd()
+        mv.visitCode()
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 1)
+        mv.visitEnd()
+        cw.visitEnd()
+        byte[] bytecode = cw.toByteArray()
+        new ClassLoader(GuardActivationSpec.classLoader) {
+            Class<?> define() {
+                defineClass("com.example.dormant.$name", bytecode, 0, bytecode.length)
+            }
+        }.define()
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.ref.WeakReference
+
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.Pure
+import ch.raffael.guards.Sensitive
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import ch.raffael.guards.agent.asm.Type
+import ch.raffael.guards.ext.UnsignedOrNotFound
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class GuardAnnotationResolverSpec extends Specification {
+
+    def resolver = GuardAnnotationResolver.forLoader(getClass().classLoader)
+
+    @Unroll
+    def "#descriptor is a guard: #guard"() {
+      expect:
+        resolver.isGuard(descriptor) == guard
+
+      where:
+        descriptor                                  | guard
+        Type.getDescriptor(NotNull)                 | true
+        Type.getDescriptor(UnsignedOrNotFound)      | true
+        Type.getDescriptor(Sensitive)               | false
+        Type.getDescriptor(Pure)                    | false
+        Type.getDescriptor(Deprecated)              | false
+        'Lch/raffael/guards/agent/NoSuchType;'      | true
+    }
+
+    def "Resolvers are cached per class loader"() {
+      expect:
+        GuardAnnotationResolver.forLoader(getClass().classLoader).is(resolver)
+        GuardAnnotationResolver.forLoader(null).is(GuardAnnotationResolver.forLoader(ClassLoader.systemClassLoader))
+    }
+
+    def "Resolvers don't keep their class loader from being garbage collected"() {
+      given:
+        def loader = new WeakReference<ClassLoader>(resolveWithThrowawayLoader())
+
+      when:
+        for( int i = 0; i < 100 && loader.get() != null; i++ ) {
+            System.gc()
+            Thread.sleep(10)
+        }
+
+      then:
+        loader.get() == null
+    }
+
+    def "Only guarded methods are instrumented"() {
+      expect:
+        instrument('Ljava/lang/Deprecated;', true) == null
+        instrument(Type.getDescriptor(Sensitive), true) == null
+        instrument(Type.getDescriptor(NotNull), false) == null
+        references(instrument(Type.getDescriptor(NotNull), true), 'ch/raffael/guards/agent/Indy')
+    }
+
+    private byte[] instrument(String annotation, boolean visible) {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, 'com/example/Resolved', null, 'java/lang/Object', null)
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'method', '(Ljava/lang/Object;)V', null, null)
+        mv.visitParameterAnnotation(0, annotation, visible).visitEnd()
+        mv.visitCode()
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 1)
+        mv.visitEnd()
+        cw.visitEnd()
+        Instrumenter.instrument(new Options(), getClass().classLoader, cw.toByteArray())
+    }
+
+    private static ClassLoader resolveWithThrowawayLoader() {
+        def loader = new URLClassLoader(new URL[0], GuardAnnotationResolverSpec.classLoader)
+        assert GuardAnnotationResolver.forLoader(loader).isGuard(Type.getDescriptor(NotNull))
+        return loader
+    }
+
+    private static boolean references(byte[] classFile, String name) {
+        new String(classFile, 'ISO-8859-1').contains(name)
+    }
+
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.NoNulls
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.definition.PerformanceImpact
+import spock.lang.Specification
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class GuardControlSpec extends Specification {
+
+    static final MethodType GUARD_TYPE = MethodType.methodType(void, List)
+    static final String DESCRIPTOR = '(Ljava/util/List;)V'
+
+    def control = GuardControl.instance
+    def previousOptions = GuardsAgent.instance.options
+
+    def setup() {
+        GuardsAgent.instance.options = new OptionsBuilder().withGuardControl(true).toOptions()
+    }
+
+    def cleanup() {
+        GuardsAgent.instance.options = previousOptions
+        control.reset()
+    }
+
+    def "Guards can be disabled and enabled globally"() {
+      given:
+        def site = callSite()
+
+      expect:
+        site instanceof GuardSite
+        violates(site.dynamicInvoker(), null)
+
+      when:
+        control.enabled = false
+
+      then:
+        !violates(site.dynamicInvoker(), null)
+
+      when:
+        control.enabled = true
+
+      then:
+        violates(site.dynamicInvoker(), null)
+    }
+
+    def "The longest package rule wins"() {
+      given:
+        def site = callSite()
+
+      when:
+        control.disablePackage('com.example')
+
+      then:
+        violates(site.dynamicInvoker(), null)
+
+      when:
+        control.disablePackage('ch.raffael.guards.agent')
+
+      then:
+        !violates(site.dynamicInvoker(), null)
+
+      when:
+        control.enablePackage('ch.raffael.guards.agent.GuardControlSpec*')
+
+      then:
+        violates(site.dynamicInvoker(), null)
+    }
+
+    def "Disabling a guard type or impact level only removes the affected guards"() {
+      given:
+        def site = callSite()
+
+      when:
+        control.setImpactEnabled(PerformanceImpact.HIGH, false)
+
+      then:
+        violates(site.dynamicInvoker(), null)
+        !violates(site.dynamicInvoker(), [null])
+
+      when:
+        control.reset()
+        control.setGuardEnabled(NotNull, false)
+
+      then:
+        !violates(site.dynamicInvoker(), null)
+        violates(site.dynamicInvoker(), [null])
+    }
+
+    def "Sites linked while guards are disabled are linked to nop"() {
+      given:
+        control.enabled = false
+        def site = callSite()
+
+      expect:
+        !violates(site.dynamicInvoker(), null)
+
+      when:
+        control.enabled = true
+
+      then:
+        violates(site.dynamicInvoker(), null)
+    }
+
+    def "Sample rates can be overridden at runtime"() {
+      given:
+        def site = callSite()
+
+      when:
+        control.setSampleRate(NotNull.name, 1000000)
+
+      then:
+        (1..10).count { violates(site.dynamicInvoker(), null) } < 10
+
+      when:
+        control.removeSampleRate(NotNull.name)
+
+      then:
+        (1..10).count { violates(site.dynamicInvoker(), null) } == 10
+    }
+
+    def "Only the sites affected by a change are considered for relinking"() {
+      given:
+        def site = callSite()
+        def other = callSite(Other)
+        def policy = GuardPolicy.DEFAULT
+
+      expect:
+        control.affectedSites(policy, policy.withGuard(NotNull.name, false)).with { contains(site) && !contains(other) }
+        control.affectedSites(policy, policy.withImpact(PerformanceImpact.HIGH, false)).with { contains(site) && contains(other) }
+        control.affectedSites(policy, policy.withPackage('ch.raffael.guards.agent.GuardControlSpec$Other*', false)).with { !contains(site) && contains(other) }
+        control.affectedSites(policy, policy.withSampleRate(NotNull.name, 10)).with { contains(site) && !contains(other) }
+        control.affectedSites(policy, policy.withSampleRate('HIGH', 10)).with { contains(site) && contains(other) }
+        control.affectedSites(policy, policy.withEnabled(false)).with { contains(site) && contains(other) }
+        control.affectedSites(policy, policy).isEmpty()
+    }
+
+    def "A whole policy can be applied at once"() {
+      given:
+        def site = callSite()
+
+      when:
+        control.policy = GuardPolicy.DEFAULT.withGuard(NotNull.name, false).withImpact(PerformanceImpact.HIGH, false)
+
+      then:
+        !violates(site.dynamicInvoker(), null)
+        !violates(site.dynamicInvoker(), [null])
+    }
+
+    private static callSite(Class target = Target) {
+        Linker.create(target).bootstrap(MethodHandles.lookup(), GUARD_TYPE, 'guarded', DESCRIPTOR, 0, 'value')
+    }
+
+    private static boolean violates(MethodHandle handle, List value) {
+        try {
+            handle.invokeWithArguments([value] as Object[])
+            return false
+        }
+        catch ( ContractViolationError ignored ) {
+            return true
+        }
+    }
+
+    static class Target {
+        void guarded(@NotNull @NoNulls List value) {
+        }
+    }
+
+    static class Other {
+        void guarded(@NoNulls List value) {
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.annotation.Annotation
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.Matches
+import ch.raffael.guards.Max
+import ch.raffael.guards.Min
+import spock.lang.Specification
+import spock.lang.Unroll
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class GuardStubsSpec extends Specification {
+
+    def "Stubs are available on this VM"() {
+      expect:
+        GuardStubs.isAvailable()
+    }
+
+    @Unroll
+    def "The stub of #guard on #type checks #value like the handler (#expected)"() {
+      given:
+        def handler = handler(annotation(guard))
+        def testMethod = handler.getClass().getMethod('test', type)
+        testMethod.accessible = true
+
+      when:
+        MethodHandle stub = GuardStubs.stub(testMethod, handler)
+
+      then:
+        stub != null
+        stub.type().parameterArray() == [type] as Class[]
+        stub.invokeWithArguments([value] as Object[]) == expected
+        testMethod.invoke(handler, value) == expected
+
+      where:
+        guard        | type         | value     | expected
+        'min5'       | int          | 4         | false
+        'min5'       | int          | 5         | true
+        'min5'       | long         | 4L        | false
+        'min5'       | long         | 5L        | true
+        'max10'      | int          | 11        | false
+        'max10'      | double       | 10.0d     | true
+        'matchesAbc' | CharSequence | 'abc'     | true
+        'matchesAbc' | CharSequence | 'xabcx'   | false
+        'findAbc'    | CharSequence | 'xabcx'   | true
+    }
+
+    def "Guards with the same values share their stub"() {
+      given:
+        def testMethod = handler(annotation('min5')).getClass().getMethod('test', int)
+
+      expect:
+        GuardStubs.stub(testMethod, handler(annotation('min5'))).is(GuardStubs.stub(testMethod, handler(annotation('otherMin5'))))
+        !GuardStubs.stub(testMethod, handler(annotation('min5'))).is(GuardStubs.stub(testMethod, handler(annotation('min6'))))
+    }
+
+    def "Linked guards use the stubs if enabled"() {
+      given:
+        def previousOptions = GuardsAgent.instance.options
+        GuardsAgent.instance.options = new OptionsBuilder().withSpinGuardStubs(true).toOptions()
+        def handle = Linker.create(Target)
+                .bootstrap(MethodHandles.lookup(), MethodType.methodType(void, int), 'guarded', '(I)V', 0, 'value')
+                .dynamicInvoker()
+
+      when:
+        handle.invokeWithArguments([5] as Object[])
+
+      then:
+        notThrown(ContractViolationError)
+
+      when:
+        handle.invokeWithArguments([4] as Object[])
+
+      then:
+        thrown(ContractViolationError)
+
+      cleanup:
+        GuardsAgent.instance.options = previousOptions
+    }
+
+    def "Agent arguments enable the stubs"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('+spinGuardStubs').provideOptions(builder)
+
+      then:
+        builder.toOptions().spinGuardStubs
+        !new Options().spinGuardStubs
+    }
+
+    private static Annotation annotation(String method) {
+        Annotations.getDeclaredMethod(method).annotations[0]
+    }
+
+    private static handler(Annotation annotation) {
+        def constructor = Class.forName(annotation.annotationType().name + 'GuardHandler').getDeclaredConstructor(annotation.annotationType())
+        constructor.accessible = true
+        constructor.newInstance(annotation)
+    }
+
+    static class Annotations {
+        @Min(5L) void min5() {}
+        @Min(5L) void otherMin5() {}
+        @Min(6L) void min6() {}
+        @Max(10L) void max10() {}
+        @Matches('abc') void matchesAbc() {}
+        @Matches(value = 'abc', find = true) void findAbc() {}
+    }
+
+    static class Target {
+        void guarded(@Min(5L) int value) {
+        }
+    }
+
+}
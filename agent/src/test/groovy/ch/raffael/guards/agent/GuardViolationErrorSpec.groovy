@@ -0,0 +1,128 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.NotNull
+import spock.lang.Specification
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class GuardViolationErrorSpec extends Specification {
+
+    static final MethodType GUARD_TYPE = MethodType.methodType(void, List)
+
+    def previousOptions = GuardsAgent.instance.options
+    MethodHandle handle = Linker.create(Target)
+            .bootstrap(MethodHandles.lookup(), GUARD_TYPE, 'guarded', '(Ljava/util/List;)V', 0, 'value').dynamicInvoker()
+
+    def cleanup() {
+        GuardsAgent.instance.options = previousOptions
+    }
+
+    def "The message is built when it's requested for the first time"() {
+      when:
+        def e = violation()
+
+      then:
+        e instanceof GuardViolationError
+        e.@message == null
+        e.@value == null
+
+      when:
+        def message = e.message
+
+      then:
+        message.startsWith('Contract Violation at ')
+        message.contains('\n  Value : null')
+        e.@message.is(message)
+        e.message.is(message)
+    }
+
+    def "Lazy violations report the same as eager violations"() {
+      given:
+        def lazy = violation()
+        GuardsAgent.instance.options = new OptionsBuilder().withLazyViolations(false).toOptions()
+        def eager = violation()
+
+      expect:
+        !(eager instanceof GuardViolationError)
+        lazy.message == eager.message
+        lazy.toString() == eager.toString()
+        lazy.stackTrace.collect { "$it.className.$it.methodName" } == eager.stackTrace.collect { "$it.className.$it.methodName" }
+        !lazy.stackTrace.any { it.className == GuardInstance.name }
+    }
+
+    def "Printing the stack trace trims it"() {
+      given:
+        def e = violation()
+        def out = new StringWriter()
+
+      when:
+        e.printStackTrace(new PrintWriter(out))
+
+      then:
+        out.toString().startsWith(ContractViolationError.name + ': Contract Violation at ')
+        !out.toString().contains(GuardInstance.name)
+    }
+
+    def "Serialised violations keep their message and stack trace"() {
+      given:
+        def e = violation()
+        def bytes = new ByteArrayOutputStream()
+
+      when:
+        new ObjectOutputStream(bytes).withStream { it.writeObject(e) }
+        ContractViolationError copy = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject()
+
+      then:
+        copy.message == e.message
+        copy.stackTrace == e.stackTrace
+    }
+
+    def "Agent arguments switch to eager violations"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('-lazyViolations').provideOptions(builder)
+
+      then:
+        !builder.toOptions().lazyViolations
+        new Options().lazyViolations
+    }
+
+    private ContractViolationError violation() {
+        try {
+            handle.invokeWithArguments([null] as Object[])
+            throw new AssertionError('No violation')
+        }
+        catch ( ContractViolationError e ) {
+            return e
+        }
+    }
+
+    static class Target {
+        void guarded(@NotNull List value) {
+        }
+    }
+
+}
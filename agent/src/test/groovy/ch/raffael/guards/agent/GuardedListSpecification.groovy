@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.invoke.CallSite
+import java.lang.invoke.MethodHandle
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.NoNulls
+import ch.raffael.guards.NotNull
+import spock.lang.Specification
+
+
+/**
+ * Base class for specs linking the guards of a `@NotNull @NoNulls List` parameter with
+ * different options. The agent's options are restored after each feature.
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+abstract class GuardedListSpecification extends Specification {
+
+    def previousOptions = GuardsAgent.instance.options
+
+    def cleanup() {
+        GuardsAgent.instance.options = previousOptions
+    }
+
+    protected static MethodHandle guardHandle() {
+        guardSite().dynamicInvoker()
+    }
+
+    protected static CallSite guardSite() {
+        Linker.create(Target)
+                .bootstrap(MethodHandles.lookup(), MethodType.methodType(void, List), 'guarded', '(Ljava/util/List;)V', 0, 'value')
+    }
+
+    protected static boolean violates(MethodHandle handle, List value) {
+        try {
+            handle.invokeWithArguments([value] as Object[])
+            return false
+        }
+        catch ( ContractViolationError ignored ) {
+            return true
+        }
+    }
+
+    static class Target {
+        void guarded(@NotNull @NoNulls List value) {
+        }
+    }
+
+}
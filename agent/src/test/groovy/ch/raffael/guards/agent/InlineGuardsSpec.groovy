@@ -0,0 +1,207 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.reflect.InvocationTargetException
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.Max
+import ch.raffael.guards.Min
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.Positive
+import ch.raffael.guards.Unsigned
+import ch.raffael.guards.agent.asm.AnnotationVisitor
+import ch.raffael.guards.agent.asm.ClassReader
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import ch.raffael.guards.agent.asm.Type
+import ch.raffael.guards.agent.asm.tree.ClassNode
+import ch.raffael.guards.agent.asm.tree.InvokeDynamicInsnNode
+import ch.raffael.guards.agent.asm.tree.MethodNode
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static ch.raffael.guards.agent.DefiningClassLoader.invoke
+import static ch.raffael.guards.agent.DefiningClassLoader.violation
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class InlineGuardsSpec extends Specification {
+
+    static final String CLASS_NAME = 'com/example/Inlined'
+    static final String CHECK_DESCRIPTOR = '(Ljava/lang/Object;IJ)V'
+
+    static final Options INLINE = new OptionsBuilder().withInlineGuards(true).toOptions()
+
+    def "Inlined guards only call the linker to report violations"() {
+      when:
+        def bytecode = Instrumenter.instrument(INLINE, getClass().classLoader, guardedClass())
+
+      then:
+        indyNames(bytecode, 'check') == ['guard:arg0:violation', 'guard:arg1:violation', 'guard:arg2:violation']
+        indyNames(bytecode, 'value') == ['guard:return:violation']
+        indyNames(bytecode, '<init>') == ['guard:arg0:violation']
+    }
+
+    def "Guards aren't inlined by default"() {
+      when:
+        def bytecode = Instrumenter.instrument(new Options(), getClass().classLoader, guardedClass())
+
+      then:
+        indyNames(bytecode, 'check') == ['guard:args']
+    }
+
+    def "Sampled guards aren't inlined"() {
+      given:
+        def options = new OptionsBuilder().withInlineGuards(true).withSampleRate(Positive.name, 2).toOptions()
+
+      when:
+        def bytecode = Instrumenter.instrument(options, getClass().classLoader, guardedClass())
+
+      then:
+        indyNames(bytecode, 'check') as Set == ['guard:arg0:violation', 'guard:arg1:violation', 'guard:arg2'] as Set
+    }
+
+    def "Inlined guards let valid values pass"() {
+      given:
+        def type = load(INLINE)
+
+      when:
+        invoke(type, 'check', new Object(), 0, 1L)
+        invoke(type, 'check', 'x', 10, Long.MAX_VALUE)
+        def value = invoke(type, 'value', 42)
+        def instance = type.getConstructor(Object).newInstance('x')
+
+      then:
+        value == 42
+        instance != null
+    }
+
+    @Unroll
+    def "Inlined guards report the same violations as linked guards (#method#arguments)"() {
+      given:
+        def inlined = load(INLINE)
+        def linked = load(new Options())
+
+      when:
+        def inlinedMessage = violation(inlined, method, arguments as Object[])
+        def linkedMessage = violation(linked, method, arguments as Object[])
+
+      then:
+        inlinedMessage != null
+        inlinedMessage == linkedMessage.replace(linked.toString(), inlined.toString())
+
+      where:
+        method  | arguments
+        'check' | [null, 0, 1L]
+        'check' | ['x', -1, 1L]
+        'check' | ['x', 11, 1L]
+        'check' | ['x', 5, 0L]
+        'check' | ['x', 5, Long.MIN_VALUE]
+        'value' | [-1]
+    }
+
+    def "Constructor parameters are checked before the super constructor is called"() {
+      given:
+        def type = load(INLINE)
+
+      when:
+        type.getConstructor(Object).newInstance([null] as Object[])
+
+      then:
+        def e = thrown(InvocationTargetException)
+        e.cause instanceof ContractViolationError
+    }
+
+    def "The prelinker skips the call sites reporting violations"() {
+      given:
+        def bytecode = Instrumenter.instrument(INLINE, getClass().classLoader, guardedClass())
+        def loader = new DefiningClassLoader(CLASS_NAME, bytecode)
+        def type = loader.definedClass
+
+      when:
+        new Prelinker(loader, CLASS_NAME, bytecode).run()
+
+      then:
+        !Indy.linker(type).isResolved('check', CHECK_DESCRIPTOR)
+    }
+
+    def "Agent arguments enable inlining"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('+inlineGuards').provideOptions(builder)
+
+      then:
+        builder.toOptions().inlineGuards
+        !new Options().inlineGuards
+    }
+
+    private static Class load(Options options) {
+        DefiningClassLoader.load(CLASS_NAME, Instrumenter.instrument(options, InlineGuardsSpec.classLoader, guardedClass()))
+    }
+
+    private static List<String> indyNames(byte[] classFile, String method) {
+        ClassNode node = new ClassNode()
+        new ClassReader(classFile).accept(node, 0)
+        MethodNode methodNode = node.methods.find { it.name == method }
+        methodNode.instructions.toArray().findAll { it instanceof InvokeDynamicInsnNode }.collect { it.name as String }
+    }
+
+    private static byte[] guardedClass() {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, CLASS_NAME, null, 'java/lang/Object', null)
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'check', CHECK_DESCRIPTOR, null, null)
+        mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+        annotate(mv.visitParameterAnnotation(1, Type.getDescriptor(Min), true), 0L)
+        annotate(mv.visitParameterAnnotation(1, Type.getDescriptor(Max), true), 10L)
+        mv.visitParameterAnnotation(2, Type.getDescriptor(Positive), true).visitEnd()
+        mv.visitCode()
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 4)
+        mv.visitEnd()
+
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'value', '(I)I', null, null)
+        mv.visitAnnotation(Type.getDescriptor(Unsigned), true).visitEnd()
+        mv.visitCode()
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        mv = cw.visitMethod(ACC_PUBLIC, '<init>', '(Ljava/lang/Object;)V', null, null)
+        mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESPECIAL, 'java/lang/Object', '<init>', '()V', false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(1, 2)
+        mv.visitEnd()
+
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+    private static void annotate(AnnotationVisitor av, long value) {
+        av.visit('value', value)
+        av.visitEnd()
+    }
+
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.agent.asm.ClassReader
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import ch.raffael.guards.agent.asm.Type
+import ch.raffael.guards.agent.asm.tree.ClassNode
+import ch.raffael.guards.agent.asm.tree.InvokeDynamicInsnNode
+import ch.raffael.guards.agent.asm.tree.MethodInsnNode
+import ch.raffael.guards.agent.asm.tree.MethodNode
+import spock.lang.Specification
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class InstrumenterSpec extends Specification {
+
+    def "Only guarded methods are instrumented, all others are copied unchanged"() {
+      given:
+        byte[] original = mixedClass()
+
+      when:
+        byte[] instrumented = Instrumenter.instrument(new Options(), getClass().classLoader, original)
+
+      then:
+        instrumented != null
+        indyCount(method(instrumented, 'guarded')) == 1
+        indyCount(method(instrumented, 'unguarded')) == 0
+        calls(method(instrumented, 'unguarded')) == calls(method(original, 'unguarded'))
+    }
+
+    def "Classes without guarded methods remain unchanged"() {
+      expect:
+        Instrumenter.instrument(new Options(), getClass().classLoader, unguardedClass()) == null
+    }
+
+    def "With XinstrumentAll, all methods with code are instrumented"() {
+      given:
+        def options = new OptionsBuilder().withXInstrumentAll(true).toOptions()
+
+      when:
+        byte[] instrumented = Instrumenter.instrument(options, getClass().classLoader, unguardedClass())
+
+      then:
+        instrumented != null
+        indyCount(method(instrumented, 'unguarded')) == 1
+    }
+
+    private static byte[] mixedClass() {
+        ClassWriter cw = newClass('com/example/Mixed')
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'guarded', '(Ljava/lang/Object;)V', null, null)
+        mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+        mv.visitCode()
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 1)
+        mv.visitEnd()
+        unguardedMethod(cw)
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+    private static byte[] unguardedClass() {
+        ClassWriter cw = newClass('com/example/Unguarded')
+        unguardedMethod(cw)
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+    private static ClassWriter newClass(String name) {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, name, null, 'java/lang/Object', null)
+        cw
+    }
+
+    private static void unguardedMethod(ClassWriter cw) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'unguarded', '(Ljava/lang/Object;)V', null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESTATIC, 'java/util/Objects', 'hashCode', '(Ljava/lang/Object;)I', false)
+        mv.visitInsn(POP)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+    }
+
+    private static MethodNode method(byte[] classFile, String name) {
+        ClassNode node = new ClassNode()
+        new ClassReader(classFile).accept(node, 0)
+        node.methods.find { it.name == name }
+    }
+
+    private static int indyCount(MethodNode method) {
+        method.instructions.toArray().count { it instanceof InvokeDynamicInsnNode }
+    }
+
+    private static List<String> calls(MethodNode method) {
+        method.instructions.toArray().findAll { it instanceof MethodInsnNode }.collect { "$it.owner.$it.name$it.desc" as String }
+    }
+
+}
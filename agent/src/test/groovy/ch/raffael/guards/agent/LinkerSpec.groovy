@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.NotNull
+import spock.lang.Specification
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class LinkerSpec extends Specification {
+
+    static final MethodType GUARD_TYPE = MethodType.methodType(void, Object)
+
+    def linker = Linker.create(Target)
+
+    def "Guards are resolved by method name and descriptor"() {
+      given:
+        def handle = linker.bootstrap(MethodHandles.lookup(), GUARD_TYPE, 'guarded', '(Ljava/lang/Object;)Ljava/lang/Object;', 0, 'value').dynamicInvoker()
+
+      when:
+        handle.invokeWithArguments('foo')
+
+      then:
+        notThrown(ContractViolationError)
+
+      when:
+        handle.invokeWithArguments([null])
+
+      then:
+        thrown(ContractViolationError)
+    }
+
+    def "Call sites of unguarded or unknown methods do nothing"() {
+      when:
+        linker.bootstrap(MethodHandles.lookup(), GUARD_TYPE, name, desc, 0, 'value').dynamicInvoker().invokeWithArguments([null])
+
+      then:
+        notThrown(ContractViolationError)
+
+      where:
+        name        | desc
+        'unguarded' | '(Ljava/lang/Object;)Ljava/lang/Object;'
+        'guarded'   | '(Ljava/lang/String;)Ljava/lang/Object;'
+        'unknown'   | '(Ljava/lang/Object;)V'
+    }
+
+    static class Target {
+        Object guarded(@NotNull Object value) {
+            value
+        }
+        Object unguarded(Object value) {
+            value
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import static ch.raffael.guards.definition.PerformanceImpact.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class MaxImpactSpec extends GuardedListSpecification {
+
+    def "Guards above the maximum impact are not checked"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder().withMaxImpact(MEDIUM).toOptions()
+        def handle = guardHandle()
+
+      expect:
+        violates(handle, null)
+        !violates(handle, [null])
+    }
+
+    def "The maximum impact can be overridden per package"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder()
+                .withMaxImpact(LOW)
+                .withPackageMaxImpact('ch.raffael.guards', MEDIUM)
+                .withPackageMaxImpact('ch.raffael.guards.agent.GuardedListSpecification*', HIGH)
+                .toOptions()
+
+      expect:
+        violates(guardHandle(), [null])
+        GuardsAgent.instance.options.getMaxImpact('ch/raffael/guards/agent/Foo') == MEDIUM
+        GuardsAgent.instance.options.getMaxImpact('com/example/Foo') == LOW
+    }
+
+    def "Agent arguments configure the maximum impact"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('maxImpact=low,packageMaxImpacts=com.example:medium+com.example.batch:high')
+                .provideOptions(builder)
+        def options = builder.toOptions()
+
+      then:
+        options.maxImpact == LOW
+        options.packageMaxImpacts == ['com.example': MEDIUM, 'com.example.batch': HIGH]
+        options.getMaxImpact('com/example/batch/Foo') == HIGH
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.jar.Attributes
+import java.util.jar.JarEntry
+import java.util.jar.JarFile
+import java.util.jar.JarOutputStream
+import java.util.jar.Manifest
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import spock.lang.Specification
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class OfflineInstrumenterSpec extends Specification {
+
+    static final String CLASS_NAME = 'com/example/Offline'
+
+    Path directory = Files.createTempDirectory('guards-offline')
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    def "Guarded classes are instrumented exactly once"() {
+      given:
+        def instrumenter = new OfflineInstrumenter()
+
+      when:
+        def instrumented = instrumenter.instrument(CLASS_NAME, guardedClass())
+
+      then:
+        instrumented != null
+        instrumenter.instrument(CLASS_NAME, instrumented) == null
+        instrumenter.classCount == 2
+        instrumenter.instrumentedCount == 1
+    }
+
+    def "Instrumented classes check their guards without the agent's transformer"() {
+      given:
+        def bytecode = new OfflineInstrumenter().instrument(CLASS_NAME, guardedClass())
+        def loader = new ClassLoader(getClass().classLoader) {
+            @Override
+            protected Class<?> findClass(String name) throws ClassNotFoundException {
+                if ( name == CLASS_NAME.replace('/', '.') ) {
+                    return defineClass(name, bytecode, 0, bytecode.length)
+                }
+                throw new ClassNotFoundException(name)
+            }
+        }
+        def method = loader.loadClass(CLASS_NAME.replace('/', '.')).getMethod('check', Object)
+
+      when:
+        method.invoke(null, 'foo')
+
+      then:
+        notThrown(Exception)
+
+      when:
+        method.invoke(null, [null] as Object[])
+
+      then:
+        def e = thrown(java.lang.reflect.InvocationTargetException)
+        e.cause instanceof ContractViolationError
+    }
+
+    def "JARs are copied including resources and manifest"() {
+      given:
+        def source = directory.resolve('source.jar')
+        def target = directory.resolve('out/target.jar')
+        def manifest = new Manifest()
+        manifest.mainAttributes[Attributes.Name.MANIFEST_VERSION] = '1.0'
+        manifest.mainAttributes.putValue('Main-Class', 'com.example.Offline')
+        new JarOutputStream(Files.newOutputStream(source), manifest).withStream { out ->
+            out.putNextEntry(new JarEntry('com/example/'))
+            out.closeEntry()
+            out.putNextEntry(new JarEntry(CLASS_NAME + '.class'))
+            out.write(guardedClass())
+            out.closeEntry()
+            out.putNextEntry(new JarEntry('com/example/resource.txt'))
+            out.write('Hello'.bytes)
+            out.closeEntry()
+        }
+
+      when:
+        def instrumenter = new OfflineInstrumenter()
+        instrumenter.instrument(source, target)
+        def jar = new JarFile(target.toFile())
+
+      then:
+        instrumenter.instrumentedCount == 1
+        jar.manifest.mainAttributes.getValue('Main-Class') == 'com.example.Offline'
+        jar.getInputStream(jar.getEntry('com/example/resource.txt')).text == 'Hello'
+        !ConstantPoolScanner.mayContainGuards(jar.getInputStream(jar.getEntry(CLASS_NAME + '.class')).bytes)
+
+      cleanup:
+        jar?.close()
+    }
+
+    def "Directories are copied including resources"() {
+      given:
+        def source = directory.resolve('source')
+        def target = directory.resolve('target')
+        Files.createDirectories(source.resolve('com/example'))
+        Files.write(source.resolve(CLASS_NAME + '.class'), guardedClass())
+        Files.write(source.resolve('com/example/resource.txt'), 'Hello'.bytes)
+
+      when:
+        new OfflineInstrumenter().instrument(source, target)
+
+      then:
+        new String(Files.readAllBytes(target.resolve('com/example/resource.txt'))) == 'Hello'
+        Files.readAllBytes(target.resolve(CLASS_NAME + '.class')) != guardedClass()
+    }
+
+    private static byte[] guardedClass() {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, CLASS_NAME, null, 'java/lang/Object', null)
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'check', '(Ljava/lang/Object;)V', null, null)
+        mv.visitParameterAnnotation(0, 'Lch/raffael/guards/NotNull;', true).visitEnd()
+        mv.visitCode()
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 1)
+        mv.visitEnd()
+        cw.visitEnd()
+        return cw.toByteArray()
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import ch.raffael.guards.NoNulls
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.definition.PerformanceImpact
+import spock.lang.Specification
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class PolicyFileSpec extends Specification {
+
+    def control = GuardControl.instance
+    Path dir = Files.createTempDirectory('guards-policy')
+    Path file = dir.resolve('guards.properties')
+
+    def cleanup() {
+        control.reset()
+        Files.deleteIfExists(file)
+        Files.deleteIfExists(dir)
+    }
+
+    def "All rules are read from the policy file"() {
+      given:
+        file.text = '''\
+            |# guards for production
+            |enabled = on
+            |package.com.example = true
+            |package.com.example.generated = false
+            |guard.ch.raffael.guards.NoNulls = false
+            |impact.high = false
+            |sampleRate.ch.raffael.guards.NotNull = 10
+            |sampleRate.MEDIUM = 100
+            |'''.stripMargin()
+
+      when:
+        def policy = PolicyFile.read(file)
+
+      then:
+        policy.enabled
+        policy.packageRules == ['com.example': true, 'com.example.generated': false]
+        policy.disabledGuards == [NoNulls.name] as Set
+        policy.disabledImpacts == [PerformanceImpact.HIGH] as Set
+        policy.getSampleRate(NotNull.name, PerformanceImpact.LOW, 1) == 10
+        policy.getSampleRate(NoNulls.name, PerformanceImpact.MEDIUM, 1) == 100
+        policy.getSampleRate(NoNulls.name, PerformanceImpact.LOW, 1) == 1
+    }
+
+    def "Invalid policy files are rejected"() {
+      when:
+        def properties = new Properties()
+        properties.put(key, value)
+        PolicyFile.parse(properties)
+
+      then:
+        thrown(IllegalArgumentException)
+
+      where:
+        key                     | value
+        'enabled'               | 'maybe'
+        'impact.HUGE'           | 'false'
+        'sampleRate.HIGH'       | 'often'
+        'package.'              | 'true'
+        'unknown'               | 'true'
+    }
+
+    def "The current policy is kept if the file cannot be applied"() {
+      given:
+        control.disableGuard(NotNull.name)
+        file.text = 'enabled = maybe'
+
+      expect:
+        !new PolicyFile(file, control).apply()
+        control.disabledGuards == [NotNull.name] as Set
+        !new PolicyFile(dir.resolve('missing.properties'), control).apply()
+        control.disabledGuards == [NotNull.name] as Set
+    }
+
+    def "The policy is reapplied when the file changes"() {
+      given:
+        file.text = 'guard.ch.raffael.guards.NotNull = false'
+        new PolicyFile(file, control).start()
+
+      expect:
+        control.disabledGuards == [NotNull.name] as Set
+
+      when:
+        file.text = 'guard.ch.raffael.guards.NoNulls = false'
+
+      then:
+        eventually { control.disabledGuards == [NoNulls.name] as Set }
+    }
+
+    def "A policy file implies guard control"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider("policyFile=$file").provideOptions(builder)
+        def options = builder.toOptions()
+
+      then:
+        options.policyFile == file
+        options.guardControl
+        !new Options().guardControl
+    }
+
+    private static boolean eventually(Closure<Boolean> condition) {
+        // some WatchService implementations poll, e.g. every 10 seconds on OS X
+        long timeout = System.currentTimeMillis() + 30000
+        while ( !condition() ) {
+            if ( System.currentTimeMillis() > timeout ) {
+                return false
+            }
+            Thread.sleep(50)
+        }
+        return true
+    }
+
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import ch.raffael.guards.agent.asm.Type
+import spock.lang.Specification
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class PrelinkerSpec extends Specification {
+
+    static final String CLASS_NAME = 'com/example/Prelinked'
+    static final String DESCRIPTOR = '(Ljava/lang/Object;)V'
+
+    def "The call sites of a loaded class are linked ahead of time"() {
+      given:
+        def bytecode = Instrumenter.instrument(new Options(), getClass().classLoader, guardedClass())
+        def loader = new DefiningClassLoader(CLASS_NAME, bytecode)
+        def type = loader.definedClass
+
+      when:
+        new Prelinker(loader, CLASS_NAME, bytecode).run()
+
+      then:
+        Indy.linker(type).isResolved('guarded', DESCRIPTOR)
+    }
+
+    def "Classes that are not loaded are not loaded by the prelinker"() {
+      given:
+        def bytecode = Instrumenter.instrument(new Options(), getClass().classLoader, guardedClass())
+        def loader = new DefiningClassLoader(CLASS_NAME, bytecode)
+
+      when:
+        new Prelinker(loader, CLASS_NAME, bytecode).run()
+
+      then:
+        !loader.loaded
+    }
+
+    private static byte[] guardedClass() {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, CLASS_NAME, null, 'java/lang/Object', null)
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'guarded', DESCRIPTOR, null, null)
+        mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+        mv.visitCode()
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(0, 1)
+        mv.visitEnd()
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+}
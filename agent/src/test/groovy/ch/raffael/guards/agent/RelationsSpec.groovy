@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.annotation.ElementType
+import java.lang.annotation.Retention
+import java.lang.annotation.RetentionPolicy
+import java.lang.annotation.Target as AnnotationTarget
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.Max
+import ch.raffael.guards.Min
+import ch.raffael.guards.NoNulls
+import ch.raffael.guards.NotEmpty
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.Positive
+import ch.raffael.guards.Unsigned
+import spock.lang.Specification
+import spock.lang.Unroll
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class RelationsSpec extends Specification {
+
+    def previousOptions = GuardsAgent.instance.options
+
+    def setup() {
+        GuardsAgent.instance.options = new OptionsBuilder().withEliminateImpliedGuards(true).toOptions()
+    }
+
+    def cleanup() {
+        GuardsAgent.instance.options = previousOptions
+    }
+
+    @Unroll
+    def "#first implies #second: #implies"() {
+      expect:
+        GuardRelations.implies(guard('value', first), guard('value', second)) == implies
+
+      where:
+        first           | second          | implies
+        'Positive'      | 'Unsigned'      | true
+        'Unsigned'      | 'Positive'      | false
+        'Min(5)'        | 'Min(3)'        | true
+        'Min(3)'        | 'Min(5)'        | false
+        'Min(1)'        | 'Unsigned'      | true
+        'Min(0)'        | 'Unsigned'      | true
+        'Unsigned'      | 'Min(0)'        | true
+        'Unsigned'      | 'Min(-1)'       | true
+        'Min(-1)'       | 'Unsigned'      | false
+        'Min(2)'        | 'Positive'      | true
+        'Max(5)'        | 'Max(10)'       | false
+        'Min(3)'        | 'Max(10)'       | false
+        'NotEmpty'      | 'NoNulls'       | false
+        'NoNulls'       | 'NotEmpty'      | false
+        'NotNull'       | 'NotNull'       | true
+        'Positive'      | 'Min(1)'        | true
+        'Min(1)'        | 'Positive'      | true
+        'Positive'      | 'Min(1)/double' | false
+        'Min(1)/double' | 'Positive'      | false
+        'Positive'      | 'Min(1)/char'   | false
+        'Min(1)/char'   | 'Positive'      | false
+    }
+
+    @Unroll
+    def "Rules only drop guards on integral values: #method"() {
+      expect:
+        effective(method) == expected
+
+      where:
+        method           | expected
+        'positiveInt'    | ['Positive']
+        'positiveLong'   | ['Positive']
+        'positiveDouble' | ['Positive', 'Min(1)']
+        'positiveChar'   | ['Positive', 'Min(1)']
+    }
+
+    def "Guards on non-integral values are still checked"() {
+      given:
+        def doubleHandle = Linker.create(Target)
+                .bootstrap(MethodHandles.lookup(), MethodType.methodType(void, double), 'positiveDouble', '(D)V', 0, 'value')
+                .dynamicInvoker()
+        def charHandle = Linker.create(Target)
+                .bootstrap(MethodHandles.lookup(), MethodType.methodType(void, char), 'positiveChar', '(C)V', 0, 'value')
+                .dynamicInvoker()
+
+      when:
+        doubleHandle.invokeWithArguments([0.5d] as Object[])
+
+      then:
+        thrown(ContractViolationError)
+
+      when:
+        charHandle.invokeWithArguments([(char)0] as Object[])
+
+      then:
+        thrown(ContractViolationError)
+    }
+
+    def "Implied guards are dropped, of equal guards the first one is kept"() {
+      expect:
+        effective('positive') == ['Positive']
+        effective('minimums') == ['Min(3)', 'Max(10)']
+        effective('equal') == ['Min(0)']
+        effective('collection') == ['NotNull', 'NoNulls', 'NotEmpty']
+    }
+
+    def "Composite guards are flattened and overlapping implied guards are dropped"() {
+      expect:
+        effective('composite') == ['Positive', 'NotNull']
+    }
+
+    def "Sampled guards and guards above the maximum impact don't imply others"() {
+      when:
+        GuardsAgent.instance.options = new OptionsBuilder().withEliminateImpliedGuards(true).withSampleRate(Positive.name, 10).toOptions()
+
+      then:
+        effective('positive') == ['Positive', 'Unsigned']
+
+      when:
+        GuardsAgent.instance.options = new OptionsBuilder().withEliminateImpliedGuards(false).toOptions()
+
+      then:
+        effective('positive') == ['Positive', 'Unsigned']
+    }
+
+    def "The remaining guard reports the violation"() {
+      given:
+        def handle = Linker.create(Target)
+                .bootstrap(MethodHandles.lookup(), MethodType.methodType(void, int), 'positive', '(I)V', 0, 'value')
+                .dynamicInvoker()
+
+      when:
+        handle.invokeWithArguments([-1] as Object[])
+
+      then:
+        def e = thrown(ContractViolationError)
+        e.message.contains('Value must greater than zero')
+    }
+
+    def "Agent arguments configure the elimination of implied guards"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('+eliminateImpliedGuards').provideOptions(builder)
+
+      then:
+        builder.toOptions().eliminateImpliedGuards
+        !new Options().eliminateImpliedGuards
+    }
+
+    private static List<String> effective(String method) {
+        def member = Target.getDeclaredMethods().find { it.name == method }
+        def target = new GuardTarget(GuardableMember.of(member), 0, 'value')
+        def instances = member.parameterAnnotations[0].collect { new GuardInstance(target, it, null) }
+        GuardRelations.effectiveGuards(instances).collect { describe(it.annotation) }
+    }
+
+    private static GuardInstance guard(String method, String annotation) {
+        def member = Guards.getDeclaredMethods().find { it.name == annotation.replaceAll(/[()\/-]/, '_') }
+        new GuardInstance(new GuardTarget(GuardableMember.of(member), 0, 'value'), member.parameterAnnotations[0][0], null)
+    }
+
+    private static String describe(annotation) {
+        if ( annotation instanceof Min || annotation instanceof Max ) {
+            return "${annotation.annotationType().simpleName}(${annotation.value()})"
+        }
+        return annotation.annotationType().simpleName
+    }
+
+    static class Target {
+        void positive(@Positive @Unsigned int value) {
+        }
+        void minimums(@Min(3L) @Unsigned @Max(10L) int value) {
+        }
+        void equal(@Min(0L) @Unsigned int value) {
+        }
+        void collection(@NotNull @NoNulls @NotEmpty List value) {
+        }
+        void composite(@PositiveCount @Unsigned @NotNull Integer value) {
+        }
+        void positiveInt(@Positive @Min(1L) int value) {
+        }
+        void positiveLong(@Positive @Min(1L) long value) {
+        }
+        void positiveDouble(@Positive @Min(1L) double value) {
+        }
+        void positiveChar(@Positive @Min(1L) char value) {
+        }
+    }
+
+    @SuppressWarnings("GroovyUnusedDeclaration")
+    static class Guards {
+        void Positive(@Positive int value) {}
+        void Unsigned(@Unsigned int value) {}
+        void Min_5_(@Min(5L) int value) {}
+        void Min_3_(@Min(3L) int value) {}
+        void Min_2_(@Min(2L) int value) {}
+        void Min_1_(@Min(1L) int value) {}
+        void Min_1__double(@Min(1L) double value) {}
+        void Min_1__char(@Min(1L) char value) {}
+        void Min_0_(@Min(0L) int value) {}
+        void Min__1_(@Min(-1L) int value) {}
+        void Max_5_(@Max(5L) int value) {}
+        void Max_10_(@Max(10L) int value) {}
+        void NotEmpty(@NotEmpty List value) {}
+        void NoNulls(@NoNulls List value) {}
+        void NotNull(@NotNull List value) {}
+    }
+
+}
+
+@NotNull
+@Positive
+@Retention(RetentionPolicy.RUNTIME)
+@AnnotationTarget([ElementType.PARAMETER, ElementType.METHOD])
+@interface PositiveCount {
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.instrument.Instrumentation
+import java.lang.instrument.UnmodifiableClassException
+
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import spock.lang.Specification
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class RetransformerSpec extends Specification {
+
+    static final Class<?> GuardedMethod = generate('GuardedMethod', 'guarded', true)
+    static final Class<?> GuardedConstructor = generate('GuardedConstructor', '<init>', true)
+    static final Class<?> Unguarded = generate('Unguarded', '<init>', false)
+
+    def instrumentation = Mock(Instrumentation) {
+        isModifiableClass(_) >> true
+    }
+
+    def "Only classes with guarded members are selected for retransformation"() {
+      given:
+        def retransformer = retransformer(new Options())
+
+      when:
+        def candidates = retransformer.selectCandidates([
+                GuardedMethod, GuardedConstructor, Unguarded, String, int[]] as Class[])
+
+      then:
+        candidates == [GuardedMethod, GuardedConstructor]
+        retransformer.loadedCount == 5
+        retransformer.candidateCount == 2
+    }
+
+    def "Classes are retransformed in batches"() {
+      given:
+        def retransformer = retransformer(new OptionsBuilder().withRetransformBatchSize(2).toOptions())
+
+      when:
+        retransformer.retransform([GuardedMethod, GuardedConstructor, Unguarded])
+
+      then:
+        1 * instrumentation.retransformClasses(GuardedMethod, GuardedConstructor)
+        1 * instrumentation.retransformClasses(Unguarded)
+        retransformer.batchCount == 2
+        retransformer.retransformedCount == 3
+    }
+
+    def "If a batch fails, its classes are retransformed one by one"() {
+      given:
+        def retransformer = retransformer(new OptionsBuilder().withRetransformBatchSize(3).toOptions())
+
+      when:
+        retransformer.retransform([GuardedMethod, GuardedConstructor, Unguarded])
+
+      then:
+        1 * instrumentation.retransformClasses(GuardedMethod, GuardedConstructor, Unguarded) >> { throw new UnmodifiableClassException() }
+        1 * instrumentation.retransformClasses(GuardedMethod)
+        1 * instrumentation.retransformClasses(GuardedConstructor) >> { throw new UnmodifiableClassException() }
+        1 * instrumentation.retransformClasses(Unguarded)
+        retransformer.retransformedCount == 2
+        retransformer.failedCount == 1
+    }
+
+    private Retransformer retransformer(Options options) {
+        new Retransformer(instrumentation, GuardsAgent.instance.transformer, options)
+    }
+
+    private static Class<?> generate(String name, String methodName, boolean guarded) {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, "com/example/$name", null, 'java/lang/Object', null)
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, methodName, '(Ljava/lang/Object;)V', null, null)
+        mv.visitParameterAnnotation(0, guarded ? 'Lch/raffael/guards/NotNull;' : 'Lcom/example/Unknown;', true).visitEnd()
+        mv.visitAnnotation('Ljava/lang/Deprecated;', true).visitEnd()
+        mv.visitCode()
+        if ( methodName == '<init>' ) {
+            mv.visitVarInsn(ALOAD, 0)
+            mv.visitMethodInsn(INVOKESPECIAL, 'java/lang/Object', '<init>', '()V', false)
+        }
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(1, 2)
+        mv.visitEnd()
+        cw.visitEnd()
+        byte[] bytecode = cw.toByteArray()
+        new ClassLoader(RetransformerSpec.classLoader) {
+            Class<?> define() {
+                defineClass("com.example.$name", bytecode, 0, bytecode.length)
+            }
+        }.define()
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import ch.raffael.guards.NoNulls
+
+import static ch.raffael.guards.definition.PerformanceImpact.HIGH
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class SamplingSpec extends GuardedListSpecification {
+
+    def "The counting sampler checks the first and then every nth invocation"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder().withSampleRate(HIGH, 4).toOptions()
+        def handle = guardHandle()
+
+      expect:
+        (1..8).collect { violates(handle, [null]) } == [true, false, false, false, true, false, false, false]
+        (1..8).every { violates(handle, null) }
+    }
+
+    def "A sample rate for the guard type takes precedence over the impact level"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder()
+                .withSampleRate(HIGH, 1000)
+                .withSampleRate(NoNulls.name, 2)
+                .toOptions()
+        def handle = guardHandle()
+
+      expect:
+        (1..4).count { violates(handle, [null]) } == 2
+    }
+
+    def "The random sampler checks invocations with a probability of 1/n"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder()
+                .withSampleRate(HIGH, 2)
+                .withSamplingMode(Options.SamplingMode.RANDOM)
+                .toOptions()
+        def handle = guardHandle()
+
+      when:
+        def violations = (1..1000).count { violates(handle, [null]) }
+
+      then:
+        violations > 350 && violations < 650
+    }
+
+    def "Agent arguments configure the sampling"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('sampleRates=high:100+ch.raffael.guards.Matches:10,samplingMode=random')
+                .provideOptions(builder)
+        def options = builder.toOptions()
+
+      then:
+        options.sampleRates == [HIGH: 100, 'ch.raffael.guards.Matches': 10]
+        options.samplingMode == Options.SamplingMode.RANDOM
+    }
+
+}
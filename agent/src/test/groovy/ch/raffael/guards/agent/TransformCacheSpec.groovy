@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.nio.file.Files
+import java.nio.file.Path
+
+import ch.raffael.guards.Min
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.Nullable
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.MethodVisitor
+import ch.raffael.guards.agent.asm.Type
+import spock.lang.Specification
+
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class TransformCacheSpec extends Specification {
+
+    static final Set<String> GUARDS = [Type.getDescriptor(NotNull)] as Set
+
+    Path directory = Files.createTempDirectory('guards-cache')
+
+    def cleanup() {
+        directory.toFile().deleteDir()
+    }
+
+    def "Stored bytecode is found after reopening the cache"() {
+      given:
+        def cache = open()
+
+      when:
+        def miss = cache.lookup('com/example/Foo', bytes(1, 2, 3), GUARDS)
+        cache.store('com/example/Foo', bytes(1, 2, 3), GUARDS, bytes(4, 5, 6))
+        cache.store('com/example/Bar', bytes(7), GUARDS, null)
+        cache.close()
+        cache = open()
+
+      then:
+        miss == null
+        cache.lookup('com/example/Foo', bytes(1, 2, 3), GUARDS) == bytes(4, 5, 6)
+        cache.lookup('com/example/Bar', bytes(7), GUARDS).is(TransformCache.UNCHANGED)
+        cache.lookup('com/example/Foo', bytes(1, 2, 4), GUARDS) == null
+        cache.lookup('com/example/Baz', bytes(1, 2, 3), GUARDS) == null
+        cache.hits == 2
+        cache.misses == 2
+
+      cleanup:
+        cache.close()
+    }
+
+    def "Entries are only found with the same guard annotations"() {
+      given:
+        def cache = open()
+        cache.store('com/example/Foo', bytes(1), GUARDS, bytes(2))
+
+      expect:
+        cache.lookup('com/example/Foo', bytes(1), GUARDS) == bytes(2)
+        cache.lookup('com/example/Foo', bytes(1), [] as Set) == null
+        cache.lookup('com/example/Foo', bytes(1), GUARDS + 'Lcom/example/NowAGuard;') == null
+
+      cleanup:
+        cache.close()
+    }
+
+    def "The guard annotations of a class are resolved for the cache key"() {
+      given:
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, 'com/example/Foo', null, 'java/lang/Object', null)
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC | ACC_ABSTRACT, 'foo', '(Ljava/lang/Object;)Ljava/lang/Object;', null, null)
+        mv.visitAnnotation(Type.getDescriptor(Deprecated), true).visitEnd()
+        mv.visitAnnotation(Type.getDescriptor(Min), true).visitEnd()
+        mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+        mv.visitParameterAnnotation(0, Type.getDescriptor(Nullable), false).visitEnd()
+        mv.visitEnd()
+        cw.visitEnd()
+
+      expect:
+        Instrumenter.guardAnnotations(getClass().classLoader, cw.toByteArray()) as List ==
+                [Type.getDescriptor(Min), Type.getDescriptor(NotNull)]
+    }
+
+    def "Changing instrumentation options discards the cache"() {
+      given:
+        def cache = open()
+        cache.store('com/example/Foo', bytes(1), GUARDS, bytes(2))
+        cache.close()
+
+      when:
+        cache = open(new OptionsBuilder().withCachePath(directory).withXInstrumentAll(true).toOptions())
+
+      then:
+        cache.lookup('com/example/Foo', bytes(1), GUARDS) == null
+
+      cleanup:
+        cache.close()
+    }
+
+    def "Entries not used for cacheMaxAge generations are evicted"() {
+      given:
+        def options = new OptionsBuilder().withCachePath(directory).withCacheMaxAge(2).toOptions()
+        def cache = open(options)
+        cache.store('com/example/Old', bytes(1), GUARDS, bytes(2))
+        cache.store('com/example/Young', bytes(3), GUARDS, bytes(4))
+        cache.close()
+
+      when:
+        2.times {
+            cache = open(options)
+            cache.lookup('com/example/Young', bytes(3), GUARDS)
+            cache.close()
+        }
+        cache = open(options)
+
+      then:
+        cache.lookup('com/example/Old', bytes(1), GUARDS) == null
+        cache.lookup('com/example/Young', bytes(3), GUARDS) == bytes(4)
+
+      cleanup:
+        cache.close()
+    }
+
+    def "A cache directory can only be used by one agent at a time"() {
+      given:
+        def cache = open()
+
+      expect:
+        open() == null
+
+      cleanup:
+        cache.close()
+    }
+
+    private TransformCache open(Options options = new OptionsBuilder().withCachePath(directory).toOptions()) {
+        TransformCache.open(options, 'test')
+    }
+
+    private static byte[] bytes(int... values) {
+        values as byte[]
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Modifier
+
+import ch.raffael.guards.ContractViolationError
+import ch.raffael.guards.Min
+import ch.raffael.guards.NotNull
+import ch.raffael.guards.agent.asm.AnnotationVisitor
+import ch.raffael.guards.agent.asm.ClassReader
+import ch.raffael.guards.agent.asm.ClassWriter
+import ch.raffael.guards.agent.asm.Label
+import ch.raffael.guards.agent.asm.MethodVisitor
+import ch.raffael.guards.agent.asm.Type
+import ch.raffael.guards.agent.asm.tree.ClassNode
+import ch.raffael.guards.agent.asm.tree.MethodInsnNode
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import static ch.raffael.guards.agent.DefiningClassLoader.invoke
+import static ch.raffael.guards.agent.DefiningClassLoader.violation
+import static ch.raffael.guards.agent.asm.Opcodes.*
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class UncheckedInternalCallsSpec extends Specification {
+
+    static final String CLASS_NAME = 'com/example/Internal'
+    static final String COMPARABLE_NAME = 'com/example/Compared'
+
+    static final Options UNCHECKED = new OptionsBuilder().withUncheckedInternalCalls(true).toOptions()
+
+    def "Guarded methods that can't be overridden get an unchecked twin"() {
+      when:
+        def methods = methods(Instrumenter.instrument(UNCHECKED, getClass().classLoader, guardedClass()))
+
+      then:
+        methods.containsKey('sum$$unchecked')
+        methods.containsKey('inner$$unchecked')
+        methods.containsKey('twice$$unchecked')
+        !methods.containsKey('overridable$$unchecked')
+        methods.findAll { it.key.endsWith('$$unchecked') }.values().every { (it & (ACC_PRIVATE | ACC_SYNTHETIC)) == (ACC_PRIVATE | ACC_SYNTHETIC) }
+    }
+
+    def "Calls within the class are rewritten to call the twin"() {
+      when:
+        def bytecode = Instrumenter.instrument(UNCHECKED, getClass().classLoader, guardedClass())
+
+      then:
+        calls(bytecode, 'sum') == ['sum$$unchecked']
+        calls(bytecode, 'sum$$unchecked') == ['sum$$unchecked']
+        calls(bytecode, 'outer$$unchecked') == ['inner$$unchecked']
+        calls(bytecode, 'callTwice') == ['twice$$unchecked']
+        calls(bytecode, 'callOverridable') == ['overridable']
+    }
+
+    def "Calls from methods that don't check their parameters aren't rewritten"() {
+      when:
+        def bytecode = Instrumenter.instrument(UNCHECKED, getClass().classLoader, guardedClass())
+
+      then:
+        calls(bytecode, 'uncheckedCaller') == ['twice']
+
+      when:
+        load(UNCHECKED).newInstance().uncheckedCaller(-1)
+
+      then:
+        thrown(ContractViolationError)
+    }
+
+    @Unroll
+    def "Calls through a generic interface are checked by the bridge's target (#annotatedBridge)"() {
+      given:
+        def bytecode = Instrumenter.instrument(UNCHECKED, getClass().classLoader, comparableClass(annotatedBridge))
+        def instance = DefiningClassLoader.load(COMPARABLE_NAME, bytecode).newInstance()
+
+      expect:
+        calls(bytecode, 'compareTo', COMPARABLE_NAME) as Set == ['compareTo', 'compareTo$$unchecked'] as Set
+
+      when:
+        Comparable.getMethod('compareTo', Object).invoke(instance, [null] as Object[])
+
+      then:
+        def e = thrown(InvocationTargetException)
+        e.cause instanceof ContractViolationError
+
+      where:
+        annotatedBridge << [false, true]
+    }
+
+    def "Without the option, no twins are generated"() {
+      when:
+        def methods = methods(Instrumenter.instrument(new Options(), getClass().classLoader, guardedClass()))
+
+      then:
+        !methods.keySet().any { it.endsWith('$$unchecked') }
+    }
+
+    def "External calls are still checked"() {
+      given:
+        def type = load(UNCHECKED)
+
+      when:
+        invoke(type, 'sum', -1)
+
+      then:
+        def e = thrown(InvocationTargetException)
+        e.cause instanceof ContractViolationError
+    }
+
+    def "Recursion works through the twin"() {
+      expect:
+        invoke(load(UNCHECKED), 'sum', 5) == 15
+    }
+
+    def "Internal calls skip the parameter checks"() {
+      expect:
+        invoke(load(UNCHECKED), 'outer', 5) == -5
+        violation(load(new Options()), 'outer', 5) != null
+    }
+
+    def "Final instance methods are called through the twin"() {
+      given:
+        def instance = load(UNCHECKED).newInstance()
+
+      expect:
+        instance.callTwice(5) == -10
+    }
+
+    def "The checked entry keeps its annotations, the twin has none"() {
+      given:
+        def type = load(UNCHECKED)
+
+      expect:
+        type.getMethod('sum', int).parameterAnnotations[0]*.annotationType() == [Min]
+        type.getDeclaredMethod('sum$$unchecked', int).parameterAnnotations[0].length == 0
+        Modifier.isPrivate(type.getDeclaredMethod('sum$$unchecked', int).modifiers)
+    }
+
+    def "Classes with twins are recognised for retransformation"() {
+      expect:
+        Instrumenter.hasTwins(load(UNCHECKED))
+        !Instrumenter.hasTwins(load(new Options()))
+    }
+
+    def "Agent arguments enable the twins"() {
+      when:
+        def builder = new OptionsBuilder()
+        new AgentArgsOptionsProvider('+uncheckedInternalCalls').provideOptions(builder)
+
+      then:
+        builder.toOptions().uncheckedInternalCalls
+        !new Options().uncheckedInternalCalls
+    }
+
+    private static Class load(Options options) {
+        DefiningClassLoader.load(CLASS_NAME, Instrumenter.instrument(options, UncheckedInternalCallsSpec.classLoader, guardedClass()))
+    }
+
+    private static Map<String, Integer> methods(byte[] classFile) {
+        ClassNode node = new ClassNode()
+        new ClassReader(classFile).accept(node, 0)
+        node.methods.collectEntries { [it.name, it.access] }
+    }
+
+    private static List<String> calls(byte[] classFile, String method, String owner = CLASS_NAME) {
+        ClassNode node = new ClassNode()
+        new ClassReader(classFile).accept(node, 0)
+        node.methods.findAll { it.name == method }*.instructions*.toArray().flatten()
+                .findAll { it instanceof MethodInsnNode && it.owner == owner }.collect { it.name as String }
+    }
+
+    private static void min0(MethodVisitor mv) {
+        AnnotationVisitor av = mv.visitParameterAnnotation(0, Type.getDescriptor(Min), true)
+        av.visit('value', 0L)
+        av.visitEnd()
+    }
+
+    private static byte[] guardedClass() {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC, CLASS_NAME, null, 'java/lang/Object', null)
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, '<init>', '()V', null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESPECIAL, 'java/lang/Object', '<init>', '()V', false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        // static int sum(@Min(0) int n) { return n == 0 ? 0 : n + sum(n - 1); }
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'sum', '(I)I', null, null)
+        min0(mv)
+        mv.visitCode()
+        Label recurse = new Label()
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitJumpInsn(IFNE, recurse)
+        mv.visitInsn(ICONST_0)
+        mv.visitInsn(IRETURN)
+        mv.visitLabel(recurse)
+        mv.visitFrame(F_NEW, 1, [INTEGER] as Object[], 0, [] as Object[])
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitInsn(ICONST_1)
+        mv.visitInsn(ISUB)
+        mv.visitMethodInsn(INVOKESTATIC, CLASS_NAME, 'sum', '(I)I', false)
+        mv.visitInsn(IADD)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(3, 1)
+        mv.visitEnd()
+
+        // static int outer(@Min(0) int n) { return inner(n - 10); }
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, 'outer', '(I)I', null, null)
+        min0(mv)
+        mv.visitCode()
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitIntInsn(BIPUSH, 10)
+        mv.visitInsn(ISUB)
+        mv.visitMethodInsn(INVOKESTATIC, CLASS_NAME, 'inner', '(I)I', false)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(2, 1)
+        mv.visitEnd()
+
+        // private static int inner(@Min(0) int n) { return n; }
+        mv = cw.visitMethod(ACC_PRIVATE | ACC_STATIC, 'inner', '(I)I', null, null)
+        min0(mv)
+        mv.visitCode()
+        mv.visitVarInsn(ILOAD, 0)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        // final int twice(@Min(0) int n) { return n * 2; }
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_FINAL, 'twice', '(I)I', null, null)
+        min0(mv)
+        mv.visitCode()
+        mv.visitVarInsn(ILOAD, 1)
+        mv.visitInsn(ICONST_2)
+        mv.visitInsn(IMUL)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(2, 2)
+        mv.visitEnd()
+
+        // int callTwice(@Min(0) int n) { return twice(n - 10); }
+        mv = cw.visitMethod(ACC_PUBLIC, 'callTwice', '(I)I', null, null)
+        min0(mv)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitVarInsn(ILOAD, 1)
+        mv.visitIntInsn(BIPUSH, 10)
+        mv.visitInsn(ISUB)
+        mv.visitMethodInsn(INVOKEVIRTUAL, CLASS_NAME, 'twice', '(I)I', false)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(3, 2)
+        mv.visitEnd()
+
+        // int uncheckedCaller(int n) { return twice(n); }
+        mv = cw.visitMethod(ACC_PUBLIC, 'uncheckedCaller', '(I)I', null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitVarInsn(ILOAD, 1)
+        mv.visitMethodInsn(INVOKEVIRTUAL, CLASS_NAME, 'twice', '(I)I', false)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(2, 2)
+        mv.visitEnd()
+
+        // int overridable(@Min(0) int n) { return n; }
+        mv = cw.visitMethod(ACC_PUBLIC, 'overridable', '(I)I', null, null)
+        min0(mv)
+        mv.visitCode()
+        mv.visitVarInsn(ILOAD, 1)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(1, 2)
+        mv.visitEnd()
+
+        // int callOverridable(int n) { return overridable(n); }
+        mv = cw.visitMethod(ACC_PUBLIC, 'callOverridable', '(I)I', null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitVarInsn(ILOAD, 1)
+        mv.visitMethodInsn(INVOKEVIRTUAL, CLASS_NAME, 'overridable', '(I)I', false)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(2, 2)
+        mv.visitEnd()
+
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+    /**
+     * `final class Compared implements Comparable<String>` with a guarded
+     * `compareTo(@NotNull String)` and the bridge `compareTo(Object)`, which javac annotates
+     * like its target since Java 8.
+     */
+    private static byte[] comparableClass(boolean annotatedBridge) {
+        ClassWriter cw = new ClassWriter(0)
+        cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL, COMPARABLE_NAME, 'Ljava/lang/Object;Ljava/lang/Comparable<Ljava/lang/String;>;',
+                 'java/lang/Object', ['java/lang/Comparable'] as String[])
+
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, '<init>', '()V', null, null)
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitMethodInsn(INVOKESPECIAL, 'java/lang/Object', '<init>', '()V', false)
+        mv.visitInsn(RETURN)
+        mv.visitMaxs(1, 1)
+        mv.visitEnd()
+
+        // public int compareTo(@NotNull String that) { return that.length(); }
+        mv = cw.visitMethod(ACC_PUBLIC, 'compareTo', '(Ljava/lang/String;)I', null, null)
+        mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 1)
+        mv.visitMethodInsn(INVOKEVIRTUAL, 'java/lang/String', 'length', '()I', false)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(1, 2)
+        mv.visitEnd()
+
+        // the bridge: public int compareTo(Object that) { return compareTo((String)that); }
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_BRIDGE | ACC_SYNTHETIC, 'compareTo', '(Ljava/lang/Object;)I', null, null)
+        if ( annotatedBridge ) {
+            mv.visitParameterAnnotation(0, Type.getDescriptor(NotNull), true).visitEnd()
+        }
+        mv.visitCode()
+        mv.visitVarInsn(ALOAD, 0)
+        mv.visitVarInsn(ALOAD, 1)
+        mv.visitTypeInsn(CHECKCAST, 'java/lang/String')
+        mv.visitMethodInsn(INVOKEVIRTUAL, COMPARABLE_NAME, 'compareTo', '(Ljava/lang/String;)I', false)
+        mv.visitInsn(IRETURN)
+        mv.visitMaxs(2, 2)
+        mv.visitEnd()
+
+        cw.visitEnd()
+        cw.toByteArray()
+    }
+
+}
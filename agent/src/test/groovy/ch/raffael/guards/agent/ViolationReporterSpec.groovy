@@ -0,0 +1,255 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ch.raffael.guards.agent
+
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.MethodType
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Paths
+
+import ch.raffael.guards.Matches
+import ch.raffael.guards.Max
+import ch.raffael.guards.Min
+import ch.raffael.guards.NoNulls
+import ch.raffael.guards.NotEmpty
+import ch.raffael.guards.NotNull
+import groovy.json.JsonSlurper
+import spock.lang.Specification
+
+
+/**
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class ViolationReporterSpec extends Specification {
+
+    def previousOptions = GuardsAgent.instance.options
+
+    def cleanup() {
+        GuardsAgent.instance.options = previousOptions
+    }
+
+    def "Violations are reported instead of thrown and the remaining guards are still checked"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder().withReportOnly(true).withGuardControl(true).toOptions()
+        def site = guardSite('text', String)
+        def handle = site.dynamicInvoker()
+
+      when:
+        handle.invokeWithArguments([''] as Object[])
+        handle.invokeWithArguments(['x'] as Object[])
+
+      then:
+        notThrown(Throwable)
+        site.guardTarget.violationCount == 2
+    }
+
+    def "Repeated violations of fused primitive guards are only counted"() {
+      given:
+        GuardsAgent.instance.options = new OptionsBuilder().withReportOnly(true).withGuardControl(true).toOptions()
+        def site = guardSite('range', int)
+        def handle = site.dynamicInvoker()
+
+      when:
+        (1..5).each { handle.invokeWithArguments([-1] as Object[]) }
+        handle.invokeWithArguments([50] as Object[])
+
+      then:
+        notThrown(Throwable)
+        site.guardTarget.violationCount == 5
+    }
+
+    def "Only the first violation per guard instance and value type is queued"() {
+      given:
+        def reporter = new ViolationReporter(new Options())
+        def notNull = guardInstance('list', 0)
+        def noNulls = guardInstance('list', 1)
+
+      when:
+        3.times { reporter.report(notNull, null) }
+        reporter.report(noNulls, [null] as ArrayList)
+        reporter.report(noNulls, [null] as ArrayList)
+        reporter.report(noNulls, [null] as LinkedList)
+
+      then:
+        reporter.pendingCount == 3
+        notNull.target.violationCount == 3
+        noNulls.target.violationCount == 3
+
+      when:
+        reporter.drain()
+
+      then:
+        reporter.pendingCount == 0
+        reporter.reportedCount == 3
+    }
+
+    def "Primitive violations that have been reported are counted without the value"() {
+      given:
+        def reporter = new ViolationReporter(new Options())
+        def instance = guardInstance('range', 0)
+
+      expect:
+        !instance.countReportedViolation()
+
+      when:
+        reporter.report(instance, -1)
+
+      then:
+        instance.countReportedViolation()
+        instance.target.violationCount == 2
+        reporter.pendingCount == 1
+    }
+
+    def "Violations are dropped if the buffer is full"() {
+      given:
+        def reporter = new ViolationReporter(new OptionsBuilder().withReportBufferSize(3).toOptions())
+
+      expect:
+        reporter.capacity == 4
+
+      when:
+        5.times { reporter.report(guardInstance('list', 1), [null]) }
+
+      then:
+        reporter.pendingCount == 4
+        reporter.droppedCount == 1
+
+      when:
+        reporter.drain()
+        reporter.report(guardInstance('list', 1), [null])
+
+      then:
+        reporter.pendingCount == 1
+        reporter.droppedCount == 1
+    }
+
+    def "At most reportRate violations are written per drain, the others are kept for the next drain"() {
+      given:
+        def reporter = new ViolationReporter(new OptionsBuilder().withReportRate(2).toOptions())
+
+      when:
+        5.times { reporter.report(guardInstance('list', 0), null) }
+        reporter.drain()
+
+      then:
+        reporter.pendingCount == 3
+        reporter.reportedCount == 2
+
+      when:
+        reporter.drain()
+        reporter.drain()
+
+      then:
+        reporter.pendingCount == 0
+        reporter.reportedCount == 5
+    }
+
+    def "All distinct violations are eventually written if there are more than reportRate"() {
+      given:
+        def file = Files.createTempFile('violations', '.jsonl')
+        def reporter = new ViolationReporter(new OptionsBuilder().withReportRate(2).withReportFile(file).toOptions())
+        def instances = [guardInstance('list', 0), guardInstance('list', 1), guardInstance('text', 0), guardInstance('range', 0)]
+
+      when:
+        reporter.report(instances[0], null)
+        reporter.report(instances[1], [null])
+        reporter.report(instances[2], '')
+        reporter.report(instances[3], -1)
+        reporter.drain()
+
+      then:
+        Files.readAllLines(file, StandardCharsets.UTF_8).size() == 2
+
+      when:
+        reporter.drain()
+        def lines = Files.readAllLines(file, StandardCharsets.UTF_8).collect { new JsonSlurper().parseText(it) }
+
+      then:
+        lines*.target == instances*.target.collect { it.appendFullString(new StringBuilder()).toString() }
+        reporter.pendingCount == 0
+        reporter.reportedCount == 4
+        reporter.droppedCount == 0
+
+      cleanup:
+        Files.deleteIfExists(file)
+    }
+
+    def "Violations can be written to a JSON lines file"() {
+      given:
+        def file = Files.createTempFile('violations', '.jsonl')
+        def reporter = new ViolationReporter(new OptionsBuilder().withReportFile(file).toOptions())
+
+      when:
+        reporter.report(guardInstance('list', 0), null)
+        reporter.report(guardInstance('list', 1), [null])
+        reporter.drain()
+        def lines = Files.readAllLines(file, StandardCharsets.UTF_8)
+        def first = new JsonSlurper().parseText(lines[0])
+        def second = new JsonSlurper().parseText(lines[1])
+
+      then:
+        lines.size() == 2
+        first.target.endsWith(':value[0]')
+        first.guard == '@' + NotNull.name + '()'
+        first.valueType == Void.name
+        first.count == 1
+        first.message.startsWith('Contract Violation at Target.list(value)')
+        first.message.contains('\n  Value : null')
+        second.guard.startsWith('@' + NoNulls.name)
+        second.valueType == ArrayList.name
+
+      cleanup:
+        Files.deleteIfExists(file)
+    }
+
+    def "Report-only mode can be configured via agent args"() {
+      given:
+        def builder = new OptionsBuilder()
+
+      when:
+        new AgentArgsOptionsProvider('+reportOnly,reportFile=/tmp/violations.jsonl,reportRate=5,reportBufferSize=64').provideOptions(builder)
+        def options = builder.toOptions()
+
+      then:
+        options.reportOnly
+        options.reportFile == Paths.get('/tmp/violations.jsonl')
+        options.reportRate == 5
+        options.reportBufferSize == 64
+        !new Options().reportOnly
+    }
+
+    private static GuardSite guardSite(String method, Class type) {
+        (GuardSite)Linker.create(Target)
+                .bootstrap(MethodHandles.lookup(), MethodType.methodType(void, type), method, MethodType.methodType(void, type).toMethodDescriptorString(), 0, 'value')
+    }
+
+    private static GuardInstance guardInstance(String method, int annotationIndex) {
+        def member = Target.declaredMethods.find { it.name == method }
+        new GuardInstance(new GuardTarget(GuardableMember.of(member), 0, 'value'), member.parameterAnnotations[0][annotationIndex], null)
+    }
+
+    static class Target {
+        void text(@NotEmpty @Matches('x') String value) {
+        }
+        void range(@Min(0L) @Max(100L) int value) {
+        }
+        void list(@NotNull @NoNulls List value) {
+        }
+    }
+
+}
@@ -29,4 +29,11 @@ public class ContractViolationError extends AssertionError {
         super(message, cause);
     }
 
+    /**
+     * For subclasses that compute their message lazily by overriding {@link #getMessage()}.
+     */
+    protected ContractViolationError() {
+        super();
+    }
+
 }
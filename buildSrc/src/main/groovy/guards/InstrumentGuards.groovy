@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Raffael Herzog
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+
+package guards
+
+import org.gradle.api.DefaultTask
+import org.gradle.api.Task
+import org.gradle.api.file.FileCollection
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.InputFile
+import org.gradle.api.tasks.InputFiles
+import org.gradle.api.tasks.OutputFile
+import org.gradle.api.tasks.TaskAction
+import org.gradle.api.tasks.bundling.AbstractArchiveTask
+
+
+/**
+ * Instruments a JAR ahead of time using the agent's offline instrumenter. The resulting JAR
+ * runs without `-javaagent`, it only needs the agent on the classpath.
+ *
+ * ```
+ * task guardedJar(type:guards.InstrumentGuards) {
+ *     agentClasspath = configurations.guardsAgent
+ *     jar = tasks.jar
+ * }
+ * ```
+ *
+ * @author <a href="mailto:herzog@raffael.ch">Raffael Herzog</a>
+ */
+class InstrumentGuards extends DefaultTask {
+
+    static final String MAIN_CLASS = 'ch.raffael.guards.agent.OfflineInstrumenter'
+
+    @InputFiles
+    FileCollection agentClasspath
+
+    @Input
+    String options = ''
+
+    private Object jar
+    private Object target
+
+    @InputFile
+    File getJar() {
+        if ( jar instanceof AbstractArchiveTask ) {
+            return jar.archivePath
+        }
+        project.file(jar)
+    }
+
+    void setJar(Object jar) {
+        if ( jar instanceof Task ) {
+            dependsOn jar
+        }
+        this.jar = jar
+    }
+
+    @OutputFile
+    File getTarget() {
+        target == null ? project.file("$project.buildDir/guarded/${getJar().name}") : project.file(target)
+    }
+
+    void setTarget(Object target) {
+        this.target = target
+    }
+
+    @TaskAction
+    void instrument() {
+        def arguments = []
+        if ( options ) {
+            arguments += ['-options', options]
+        }
+        arguments += [getJar().path, getTarget().path]
+        project.javaexec {
+            main = MAIN_CLASS
+            classpath = agentClasspath
+            args = arguments
+        }
+    }
+
+}